@@ -0,0 +1,604 @@
+package controller;
+
+import org.json.JSONObject;
+import service.CallSlots;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Bounds the model calls the server takes on.
+ * At most as many calls as the ConcurrencyLimit allows run at once and at most maxQueueDepth wait behind
+ * them, in the order the WaitQueue picks. A call that finds the queue full, or waits longer than
+ * maxWaitMillis, is rejected with a ServerBusyException carrying a retry-after hint instead of piling up.
+ * The limit can be fixed, or adapt to how fast the backend answers and whether it throttles.
+ * Clients can also be rate limited with a token bucket each, so one client cannot keep the queue full. A
+ * request takes a token once, when it arrives, so a request with several model calls is never turned away
+ * halfway through.
+ * An admitted call can hand its slot back while it waits between backend calls, and take a second one for a
+ * hedge only if one is free, so retries and hedges stay within the limit too.
+ */
+public class AdmissionController {
+    private static final double SERVICE_TIME_WEIGHT = 0.2;
+    private static final long BUCKET_SWEEP_INTERVAL = 1000;
+
+    private final ConcurrencyLimit limit;
+    private final Predicate<Throwable> isThrottled;
+    private final int maxQueueDepth;
+    private final long maxWaitMillis;
+    private final double rateLimitPerMinute;
+    private final int rateLimitBurst;
+
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong bucketChecks = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Guarded by lock
+    private final WaitQueue queue;
+    private int inFlight;
+    private double averageServiceMillis = 1000;
+    private long admitted;
+    private long rejected;
+    private long timedOut;
+    private long rateLimited;
+    private final Map<Priority, QueueWait> waits = new EnumMap<>(Priority.class);
+
+    /**
+     * Creates a controller that serves waiting calls in arrival order, without rate limits.
+     * @param maxInFlight - number of model calls allowed to run at once
+     * @param maxQueueDepth - number of calls allowed to wait for a slot
+     * @param maxWaitMillis - longest a call may wait for a slot
+     */
+    public AdmissionController(int maxInFlight, int maxQueueDepth, long maxWaitMillis) {
+        this(maxInFlight, maxQueueDepth, maxWaitMillis, new FifoWaitQueue(), 0, 0);
+    }
+
+    /**
+     * Creates a controller with a fixed number of model calls at once.
+     * @param maxInFlight - number of model calls allowed to run at once
+     * @param maxQueueDepth - number of calls allowed to wait for a slot
+     * @param maxWaitMillis - longest a call may wait for a slot
+     * @param queue - decides which waiting call runs next
+     * @param rateLimitPerMinute - requests each client may start per minute, 0 for no limit
+     * @param rateLimitBurst - requests a client may start at once before the rate limit applies
+     */
+    public AdmissionController(int maxInFlight, int maxQueueDepth, long maxWaitMillis, WaitQueue queue,
+                               double rateLimitPerMinute, int rateLimitBurst) {
+        this(new FixedLimit(maxInFlight), maxQueueDepth, maxWaitMillis, queue, rateLimitPerMinute, rateLimitBurst,
+                e -> false);
+    }
+
+    /**
+     * @param limit - decides how many model calls may run at once, from how the finished ones went
+     * @param maxQueueDepth - number of calls allowed to wait for a slot
+     * @param maxWaitMillis - longest a call may wait for a slot
+     * @param queue - decides which waiting call runs next
+     * @param rateLimitPerMinute - requests each client may start per minute, 0 for no limit
+     * @param rateLimitBurst - requests a client may start at once before the rate limit applies
+     * @param isThrottled - tells if a call failed because the backend is overloaded
+     */
+    public AdmissionController(ConcurrencyLimit limit, int maxQueueDepth, long maxWaitMillis, WaitQueue queue,
+                               double rateLimitPerMinute, int rateLimitBurst, Predicate<Throwable> isThrottled) {
+        this.limit = limit;
+        this.isThrottled = isThrottled;
+        this.maxQueueDepth = maxQueueDepth;
+        this.maxWaitMillis = maxWaitMillis;
+        this.queue = queue;
+        this.rateLimitPerMinute = rateLimitPerMinute;
+        this.rateLimitBurst = Math.max(1, rateLimitBurst);
+
+        for (Priority priority : Priority.values()) {
+            waits.put(priority, new QueueWait());
+        }
+    }
+
+    /**
+     * Runs a call that does not belong to a known client once it is admitted.
+     * @param call - model call
+     * @return result of the call
+     * @throws ServerBusyException if the call is rejected
+     */
+    public <T> T run(Supplier<T> call) {
+        return run(new RequestContext(RequestContext.ANONYMOUS, ""), call);
+    }
+
+    /**
+     * Runs a call once it is admitted.
+     * @param context - request the call belongs to
+     * @param call - model call
+     * @return result of the call
+     * @throws ServerBusyException if the call is rejected
+     * @throws RequestCancelledException if the request is cancelled or its deadline passes while waiting
+     */
+    public <T> T run(RequestContext context, Supplier<T> call) {
+        return run(context, slots -> call.get(), () -> true);
+    }
+
+    /**
+     * Runs a call that makes its backend calls on the slots it is given, once it is admitted.
+     * Only calls that reached the backend are sampled by the limit: a call answered from a cache or by
+     * joining another call says nothing about how the backend copes.
+     * @param context - request the call belongs to
+     * @param call - model call, given the slots it holds
+     * @param reachedBackend - tells, once the call is over, whether it called the backend
+     * @return result of the call
+     * @throws ServerBusyException if the call is rejected
+     * @throws RequestCancelledException if the request is cancelled or its deadline passes while waiting
+     */
+    public <T> T run(RequestContext context, Function<CallSlots, T> call, BooleanSupplier reachedBackend) {
+        CancellationToken cancellation = context.cancellation();
+        cancellation.throwIfCancelled();
+
+        // Wake the call up if it is cancelled while it waits for a slot
+        Runnable stopWaking = cancellation.onCancel(Thread.currentThread()::interrupt);
+        try {
+            acquire(context);
+        } finally {
+            stopWaking.run();
+        }
+
+        // A cancelled call gives its slot up right away, even if the backend call cannot be stopped
+        AdmittedSlot slot = new AdmittedSlot(context);
+        Runnable stopListening = cancellation.onCancel(() -> slot.finish(null, false));
+
+        Throwable failure = null;
+        try {
+            return call.apply(slot);
+        } catch (RuntimeException e) {
+            failure = e;
+            throw e;
+        } finally {
+            stopListening.run();
+            slot.finish(failure, !cancellation.isCancelled() && reachedBackend.getAsBoolean());
+        }
+    }
+
+    /**
+     * Starts an asynchronous call once it is admitted. Nothing blocks while the call waits for a slot or
+     * runs; the slot is handed back when the call's future completes, or as soon as the request is cancelled.
+     * @param context - request the call belongs to
+     * @param call - starts the model call
+     * @return future of the call's result, failed with a ServerBusyException if the call is rejected, or with
+     * a RequestCancelledException if the request is cancelled
+     */
+    public <T> CompletableFuture<T> runAsync(RequestContext context, Supplier<CompletableFuture<T>> call) {
+        return runAsync(context, slots -> call.get(), () -> true);
+    }
+
+    /**
+     * Starts an asynchronous call that makes its backend calls on the slots it is given, once it is admitted.
+     * Like run, only calls that reached the backend are sampled by the limit.
+     * @param context - request the call belongs to
+     * @param call - starts the model call, given the slots it holds
+     * @param reachedBackend - tells, once the call is over, whether it called the backend
+     * @return future of the call's result, failed like runAsync
+     */
+    public <T> CompletableFuture<T> runAsync(RequestContext context, Function<CallSlots, CompletableFuture<T>> call,
+                                             BooleanSupplier reachedBackend) {
+        CancellationToken cancellation = context.cancellation();
+        CompletableFuture<Void> turn;
+        try {
+            cancellation.throwIfCancelled();
+            turn = acquireAsync(context);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return turn.thenCompose(admitted -> {
+            AdmittedSlot slot = new AdmittedSlot(context);
+
+            CompletableFuture<T> result;
+            try {
+                result = call.apply(slot);
+            } catch (RuntimeException e) {
+                result = CompletableFuture.failedFuture(e);
+            }
+
+            // A cancelled call gives its slot up right away and its result is dropped
+            CompletableFuture<T> running = result;
+            Runnable stopListening = cancellation.onCancel(() -> {
+                slot.finish(null, false);
+                running.cancel(false);
+            });
+
+            return running.handle((value, e) -> {
+                stopListening.run();
+                slot.finish(e, !cancellation.isCancelled() && reachedBackend.getAsBoolean());
+                if (cancellation.isCancelled()) {
+                    throw new RequestCancelledException(cancellation.getReason());
+                }
+                if (e != null) {
+                    throw e instanceof CompletionException completion ? completion : new CompletionException(e);
+                }
+                return value;
+            });
+        });
+    }
+
+    /**
+     * Estimates how long a rejected client should wait: the time for the queue in front of it to drain.
+     * @return retry-after hint in milliseconds
+     */
+    public long retryAfterMillis() {
+        lock.lock();
+        try {
+            return (long) Math.ceil(((double) queue.size() / limit.getLimit() + 1) * averageServiceMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the current load and the admission counters.
+     * @return JSONObject of the stats
+     */
+    public JSONObject getStats() {
+        lock.lock();
+        try {
+            JSONObject stats = new JSONObject();
+            stats.put("inFlight", inFlight);
+            stats.put("limit", limit.getLimit());
+            stats.put("queued", queue.size());
+            stats.put("admitted", admitted);
+            stats.put("rejected", rejected);
+            stats.put("timedOut", timedOut);
+            stats.put("rateLimited", rateLimited);
+            stats.put("averageServiceMs", Math.round(averageServiceMillis));
+
+            JSONObject waitStats = new JSONObject();
+            for (Map.Entry<Priority, QueueWait> entry : waits.entrySet()) {
+                waitStats.put(entry.getKey().name(), entry.getValue().toJSON());
+            }
+            stats.put("queueWait", waitStats);
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a token from the client's bucket for a request that is about to start. Called once per request,
+     * before its first model call, and not for the model calls themselves.
+     * @param clientId - client the request is scheduled under
+     * @throws ServerBusyException with the time until the next token if the bucket is empty
+     */
+    public void checkRateLimit(String clientId) {
+        if (rateLimitPerMinute <= 0) return;
+
+        long waitMillis = buckets
+                .computeIfAbsent(clientId, id -> new TokenBucket(rateLimitBurst, rateLimitPerMinute))
+                .tryTake();
+        if (waitMillis > 0) {
+            lock.lock();
+            try {
+                rateLimited++;
+            } finally {
+                lock.unlock();
+            }
+            throw new ServerBusyException(waitMillis);
+        }
+
+        // Forget clients whose buckets have refilled, a new bucket starts full anyway
+        if (bucketChecks.incrementAndGet() % BUCKET_SWEEP_INTERVAL == 0) {
+            buckets.values().removeIf(TokenBucket::isFull);
+        }
+    }
+
+    private void acquire(RequestContext context) {
+        lock.lock();
+        try {
+            QueueWait wait = waits.get(Priority.of(context));
+            if (inFlight < limit.getLimit() && queue.size() == 0) {
+                inFlight++;
+                admitted++;
+                wait.record(0);
+                return;
+            }
+
+            if (queue.size() >= maxQueueDepth) {
+                rejected++;
+                throw new ServerBusyException(retryAfterMillis());
+            }
+
+            AdmissionTicket ticket = new AdmissionTicket(context, lock.newCondition());
+            queue.add(ticket);
+            awaitTurn(ticket, context.cancellation());
+            admitted++;
+            wait.record(System.nanoTime() - ticket.getEnqueuedAt());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a slot, or queues a ticket that is granted one later without a thread waiting for it.
+     * @return future completed once the call holds a slot
+     * @throws ServerBusyException if the queue is full
+     */
+    private CompletableFuture<Void> acquireAsync(RequestContext context) {
+        AdmissionTicket ticket;
+        lock.lock();
+        try {
+            if (inFlight < limit.getLimit() && queue.size() == 0) {
+                inFlight++;
+                admitted++;
+                waits.get(Priority.of(context)).record(0);
+                return CompletableFuture.completedFuture(null);
+            }
+
+            if (queue.size() >= maxQueueDepth) {
+                rejected++;
+                throw new ServerBusyException(retryAfterMillis());
+            }
+
+            ticket = new AdmissionTicket(context, new CompletableFuture<>());
+            queue.add(ticket);
+        } finally {
+            lock.unlock();
+        }
+
+        // Same limits as a blocking wait: maxWaitMillis, and never past the request's deadline
+        CancellationToken cancellation = context.cancellation();
+        long maxWait = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        boolean deadlineFirst = cancellation.remainingNanos() < maxWait;
+        long remaining = Math.max(0, Math.min(maxWait, cancellation.remainingNanos()));
+        CompletableFuture.delayedExecutor(remaining, TimeUnit.NANOSECONDS).execute(() ->
+                abandon(ticket, deadlineFirst ? new RequestCancelledException("Deadline exceeded") : null));
+
+        // Registered without the lock, which a cancellation callback takes
+        Runnable stopWatching = cancellation.onCancel(() ->
+                abandon(ticket, new RequestCancelledException(cancellation.getReason())));
+
+        return ticket.getTurn().thenRun(() -> {
+            stopWatching.run();
+            lock.lock();
+            try {
+                admitted++;
+                waits.get(Priority.of(context)).record(System.nanoTime() - ticket.getEnqueuedAt());
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Takes a ticket that has not been granted a slot yet out of the queue and fails its turn.
+     * @param ticket - asynchronous ticket
+     * @param failure - what the turn fails with, or null to reject it as timed out
+     */
+    private void abandon(AdmissionTicket ticket, RuntimeException failure) {
+        lock.lock();
+        try {
+            if (ticket.isGranted() || ticket.isAbandoned()) return;
+            ticket.abandon();
+            queue.remove(ticket);
+            if (failure == null) {
+                timedOut++;
+                failure = new ServerBusyException(retryAfterMillis());
+            }
+        } finally {
+            lock.unlock();
+        }
+        ticket.getTurn().completeExceptionally(failure);
+    }
+
+    /**
+     * Waits until a finishing call hands its slot to the ticket, for at most maxWaitMillis and never past
+     * the request's deadline. Called with the lock held.
+     */
+    private void awaitTurn(AdmissionTicket ticket, CancellationToken cancellation) {
+        long maxWait = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        boolean deadlineFirst = cancellation.remainingNanos() < maxWait;
+        long remaining = Math.min(maxWait, cancellation.remainingNanos());
+        try {
+            while (!ticket.isGranted()) {
+                if (cancellation.isCancelled()) {
+                    queue.remove(ticket);
+                    cancellation.throwIfCancelled();
+                }
+                if (remaining <= 0) {
+                    queue.remove(ticket);
+                    if (deadlineFirst) {
+                        throw new RequestCancelledException("Deadline exceeded");
+                    }
+                    timedOut++;
+                    throw new ServerBusyException(retryAfterMillis());
+                }
+                remaining = ticket.getCondition().awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            // The slot may have been handed over just before the interrupt, pass it on
+            if (ticket.isGranted()) {
+                releaseSlot();
+            }
+            else {
+                queue.remove(ticket);
+            }
+
+            // A cancelled request was interrupted by its own token, so the interrupt is used up here
+            cancellation.throwIfCancelled();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a model slot", e);
+        }
+    }
+
+    /**
+     * Gives a finished call's slot back.
+     * @param startNanos - when the call started
+     * @param failure - what the call failed with, or null
+     * @param sampled - false for a call cut short by its cancellation, whose latency says nothing
+     */
+    private void release(long startNanos, Throwable failure, boolean sampled) {
+        long latencyNanos = System.nanoTime() - startNanos;
+        long serviceMillis = TimeUnit.NANOSECONDS.toMillis(latencyNanos);
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause()
+                : failure;
+
+        lock.lock();
+        try {
+            averageServiceMillis += SERVICE_TIME_WEIGHT * (serviceMillis - averageServiceMillis);
+            if (sampled) {
+                limit.onSample(startNanos, latencyNanos, inFlight, cause != null && isThrottled.test(cause));
+            }
+            releaseSlot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frees a finished call's slot and hands out every slot the limit now allows to waiting tickets, which
+     * may be none if the limit was cut, or more than one if it grew. Called with the lock held.
+     */
+    private void releaseSlot() {
+        inFlight--;
+        while (inFlight < limit.getLimit()) {
+            AdmissionTicket next = queue.poll();
+            if (next == null) break;
+            inFlight++;
+            next.grant();
+        }
+    }
+
+    /**
+     * The slot an admitted call holds until it finishes. The call can hand it back while it waits between
+     * backend calls and take it again, and can take extra slots for hedges as long as nobody is waiting.
+     * Guarded by the controller's lock.
+     */
+    private final class AdmittedSlot implements CallSlots {
+        private final RequestContext context;
+        private long startNanos = System.nanoTime();
+        private boolean held = true;
+        private boolean finished;
+
+        AdmittedSlot(RequestContext context) {
+            this.context = context;
+        }
+
+        @Override
+        public void release() {
+            lock.lock();
+            try {
+                if (held) {
+                    held = false;
+                    releaseSlot();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void reacquire() {
+            Runnable stopWaking = context.cancellation().onCancel(Thread.currentThread()::interrupt);
+            try {
+                acquire(context);
+            } finally {
+                stopWaking.run();
+            }
+            regain();
+        }
+
+        @Override
+        public CompletableFuture<Void> reacquireAsync() {
+            try {
+                return acquireAsync(context).thenRun(this::regain);
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        @Override
+        public boolean tryAcquireExtra() {
+            lock.lock();
+            try {
+                if (finished || inFlight >= limit.getLimit() || queue.size() > 0) return false;
+                inFlight++;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void releaseExtra() {
+            lock.lock();
+            try {
+                releaseSlot();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Takes the slot just granted again, unless the call finished, by its cancellation, while it waited.
+         * Only the last backend call's latency is sampled.
+         */
+        private void regain() {
+            lock.lock();
+            try {
+                if (finished) {
+                    releaseSlot();
+                    throw new RequestCancelledException(context.cancellation().getReason());
+                }
+                held = true;
+                startNanos = System.nanoTime();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Gives the slot back for good once the call is over or cancelled.
+         * @param failure - what the call failed with, or null
+         * @param sampled - false for a call cut short by its cancellation
+         */
+        void finish(Throwable failure, boolean sampled) {
+            lock.lock();
+            try {
+                if (finished) return;
+                finished = true;
+                if (held) {
+                    held = false;
+                    AdmissionController.this.release(startNanos, failure, sampled);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Queue wait of the calls admitted in one priority class. Guarded by the controller's lock.
+     */
+    private static class QueueWait {
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        void record(long nanos) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("admitted", count);
+            json.put("averageWaitMs", count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos / count));
+            json.put("maxWaitMs", TimeUnit.NANOSECONDS.toMillis(maxNanos));
+            return json;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package controller;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+
+/**
+ * A model call waiting in the AdmissionController for a slot.
+ * A blocking caller waits on the ticket's condition; an asynchronous caller is notified through its turn
+ * future instead, so no thread waits for it.
+ */
+public class AdmissionTicket {
+    private final RequestContext context;
+    private final Condition condition;
+    private final CompletableFuture<Void> turn;
+    private final long enqueuedAt;
+    private boolean granted;
+    private boolean abandoned;
+
+    AdmissionTicket(RequestContext context, Condition condition) {
+        this.context = context;
+        this.condition = condition;
+        this.turn = null;
+        this.enqueuedAt = System.nanoTime();
+    }
+
+    AdmissionTicket(RequestContext context, CompletableFuture<Void> turn) {
+        this.context = context;
+        this.condition = null;
+        this.turn = turn;
+        this.enqueuedAt = System.nanoTime();
+    }
+
+    public RequestContext getContext() {
+        return context;
+    }
+
+    /**
+     * Returns when the ticket started waiting, from System.nanoTime().
+     * @return enqueue time in nanoseconds
+     */
+    public long getEnqueuedAt() {
+        return enqueuedAt;
+    }
+
+    Condition getCondition() {
+        return condition;
+    }
+
+    CompletableFuture<Void> getTurn() {
+        return turn;
+    }
+
+    boolean isGranted() {
+        return granted;
+    }
+
+    boolean isAbandoned() {
+        return abandoned;
+    }
+
+    void abandon() {
+        abandoned = true;
+    }
+
+    void grant() {
+        granted = true;
+        if (condition != null) {
+            condition.signal();
+        }
+        else {
+            // Granted with the controller's lock held, so the call is started from another thread
+            turn.completeAsync(() -> null);
+        }
+    }
+}
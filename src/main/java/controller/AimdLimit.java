@@ -0,0 +1,67 @@
+package controller;
+
+/**
+ * Additive increase, multiplicative decrease limit, like TCP congestion control.
+ * While calls come back as fast as usual and the limit is actually being used, it grows by one per call.
+ * When the backend throttles a call, or recent latency climbs well above its long-run baseline, the limit is
+ * cut by a tenth. Only one cut is made per round trip: calls that started before the last cut were sent
+ * under the old limit and say nothing about the new one.
+ */
+public class AimdLimit implements ConcurrencyLimit {
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double RECENT_WEIGHT = 0.2;
+    private static final double BASELINE_WEIGHT = 0.01;
+
+    private final int minLimit;
+    private final int maxLimit;
+
+    private double limit;
+    private double recentMillis;
+    private double baselineMillis;
+    private long lastDecreaseNanos;
+
+    /**
+     * @param initialLimit - starting limit
+     * @param minLimit - lowest the limit is cut to
+     * @param maxLimit - highest the limit grows to
+     */
+    public AimdLimit(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.lastDecreaseNanos = System.nanoTime();
+    }
+
+    @Override
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    @Override
+    public void onSample(long startNanos, long latencyNanos, int inFlight, boolean dropped) {
+        // A throttled call often fails fast, so its latency is not part of the baseline
+        if (!dropped) {
+            double millis = latencyNanos / 1_000_000.0;
+            if (baselineMillis == 0) {
+                recentMillis = millis;
+                baselineMillis = millis;
+            }
+            else {
+                recentMillis += RECENT_WEIGHT * (millis - recentMillis);
+                baselineMillis += BASELINE_WEIGHT * (millis - baselineMillis);
+            }
+        }
+
+        if (dropped || recentMillis > baselineMillis * LATENCY_TOLERANCE) {
+            if (startNanos - lastDecreaseNanos > 0) {
+                limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+                lastDecreaseNanos = System.nanoTime();
+            }
+        }
+        else if (inFlight * 2 >= limit && limit < maxLimit) {
+            // Growing an idle limit would only make the next burst hit the backend harder
+            limit = Math.min(maxLimit, limit + 1);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells the code running a request that it should stop.
+ * A token is cancelled by a CANCEL from the client, by the client disconnecting, or when its deadline
+ * passes. Code that can abort early registers a callback, everything else checks isCancelled between steps.
+ */
+public class CancellationToken {
+    private final long deadline;
+
+    // Guarded by this
+    private final List<Runnable> callbacks = new ArrayList<>();
+    private volatile String reason;
+
+    private CancellationToken(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Creates a token that cancels itself once the timeout passes.
+     * @param timeoutMillis - time the request has to finish, or 0 for no deadline
+     * @return CancellationToken
+     */
+    public static CancellationToken withTimeout(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            return new CancellationToken(Long.MAX_VALUE);
+        }
+
+        CancellationToken token = new CancellationToken(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS)
+                .execute(() -> token.cancel("Deadline exceeded"));
+        return token;
+    }
+
+    /**
+     * Cancels the token and runs its callbacks. Only the first cancel has an effect.
+     * @param reason - why the request was cancelled
+     * @return true if this call cancelled the token
+     */
+    public synchronized boolean cancel(String reason) {
+        if (this.reason != null) {
+            return false;
+        }
+
+        this.reason = reason;
+
+        // Callbacks may deregister themselves or others while running
+        for (Runnable callback : List.copyOf(callbacks)) {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                System.err.println("Error cancelling request: " + e.getMessage());
+            }
+        }
+        callbacks.clear();
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return reason != null;
+    }
+
+    /**
+     * Returns why the token was cancelled.
+     * @return reason, or null if not cancelled
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Returns how long until the deadline.
+     * @return remaining time in nanoseconds, Long.MAX_VALUE if there is no deadline
+     */
+    public long remainingNanos() {
+        return deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.nanoTime();
+    }
+
+    /**
+     * Registers a callback to run on cancellation, right away if the token is already cancelled.
+     * Once the returned deregistration has run, the callback is neither running nor will it run.
+     * @param callback - what to do on cancellation
+     * @return runnable that removes the callback
+     */
+    public synchronized Runnable onCancel(Runnable callback) {
+        if (reason != null) {
+            callback.run();
+            return () -> {};
+        }
+
+        callbacks.add(callback);
+        return () -> {
+            synchronized (this) {
+                callbacks.remove(callback);
+            }
+        };
+    }
+
+    /**
+     * @throws RequestCancelledException if the token is cancelled
+     */
+    public void throwIfCancelled() {
+        String cancelReason = reason;
+        if (cancelReason != null) {
+            throw new RequestCancelledException(cancelReason);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package controller;
+
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides which client a connection's requests are scheduled and rate limited under.
+ * A client named in a HELLO is only taken at its word when it also sends the key configured for it. Every
+ * other connection is known by its address, so reconnecting or opening more connections under new names
+ * does not reset a rate limit or earn extra turns in the fair queue.
+ */
+public class ClientAuthenticator {
+    private final Map<String, String> keys = new HashMap<>();
+
+    /**
+     * @param keys - "clientId=key" pairs separated by commas, may be empty to know every client by address
+     * @throws IllegalArgumentException if a pair is malformed
+     */
+    public ClientAuthenticator(String keys) {
+        if (keys == null || keys.isBlank()) {
+            return;
+        }
+
+        for (String pair : keys.split(",")) {
+            String[] parts = pair.split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid client key entry: " + pair);
+            }
+            this.keys.put(parts[0].trim(), parts[1].trim());
+        }
+    }
+
+    /**
+     * Returns the client a HELLO's connection is known as.
+     * @param hello - HELLO request, which may carry a clientId and its clientKey
+     * @param address - address the connection comes from
+     * @return the clientId if its key matches, otherwise the address
+     */
+    public String clientIdFor(JSONObject hello, String address) {
+        String clientId = hello.optString(Protocol.CLIENT_ID);
+        String expected = keys.get(clientId);
+        if (expected == null) {
+            return address;
+        }
+
+        byte[] given = hello.optString(Protocol.CLIENT_KEY).getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), given) ? clientId : address;
+    }
+}
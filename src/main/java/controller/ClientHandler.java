@@ -1,42 +1,81 @@
 package controller;
 
-import model.Story;
 import org.json.JSONObject;
-import service.GeminiAPIService;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
 
 public class ClientHandler implements Runnable{
     private final Socket clientSocket;
-    private final GeminiAPIService geminiAPI;
+    private final RequestDispatcher dispatcher;
+    private final ClientAuthenticator authenticator;
 
-    public ClientHandler(Socket socket, GeminiAPIService geminiAPI) {
+    public ClientHandler(Socket socket, RequestDispatcher dispatcher, ClientAuthenticator authenticator) {
         this.clientSocket = socket;
-        this.geminiAPI = geminiAPI;
+        this.dispatcher = dispatcher;
+        this.authenticator = authenticator;
     }
 
     @Override
     public void run() {
         System.out.println("New client connected: " + clientSocket.getInetAddress());
+        InFlightRequests inFlight = new InFlightRequests();
+
+        try {
+            // Streamed chunks are small, send them right away
+            clientSocket.setTcpNoDelay(true);
+            MessageStream stream = new MessageStream(clientSocket.getInputStream(), clientSocket.getOutputStream());
+            String address = clientSocket.getInetAddress().getHostAddress();
+            String clientId = address;
 
-        try (
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)
-        ) {
             String request;
-            while ((request = in.readLine()) != null) {
+            while ((request = stream.read()) != null) {
                 System.out.println("Received request: " + request);
-                String response = handleRequest(request);
-                out.println(response);
+                JSONObject requestJSON = new JSONObject(request);
+
+                // Version handshake, answered in line mode before switching
+                if (Protocol.isHello(requestJSON)) {
+                    clientId = authenticator.clientIdFor(requestJSON, address);
+                    JSONObject reply = Protocol.helloReply(requestJSON);
+                    stream.write(reply.toString());
+                    if (reply.getInt(Protocol.VERSION) == Protocol.FRAMED_VERSION) {
+                        stream.switchToFramed();
+                    }
+                    continue;
+                }
+
+                // Requests are scheduled under the connection's client, whatever they claim
+                requestJSON.put(Protocol.CLIENT_ID, clientId);
+
+                if (Protocol.isCancel(requestJSON)) {
+                    JSONObject reply = dispatcher.cancel(requestJSON, inFlight);
+                    if (reply != null) send(stream, reply.toString());
+                    continue;
+                }
+
+                // Answered on this thread, so it gets through however busy the request pool is
+                if (Protocol.isHealth(requestJSON)) {
+                    send(stream, dispatcher.health(requestJSON, stream.isFramed()));
+                    continue;
+                }
+
+                // Tagged requests run concurrently and are answered as soon as they finish
+                if (RequestDispatcher.isTagged(requestJSON)) {
+                    dispatcher.submit(requestJSON, partial -> send(stream, partial.toString()), inFlight)
+                            .thenAccept(envelope -> send(stream, envelope.toString()));
+                    continue;
+                }
+
+                // Untagged requests run on this thread, so a disconnect is only noticed after they finish
+                String response = dispatcher.handleLegacy(requestJSON, stream.isFramed(), inFlight);
+                send(stream, response);
                 System.out.println("Handled request: " + request);
             }
         } catch (IOException e) {
             System.err.println("Error handling client: " + e.getMessage());
         } finally {
+            // Nobody is left to answer, stop the model calls still running for this client
+            inFlight.cancelAll("Client disconnected");
             try {
                 clientSocket.close();
                 System.out.println("Client disconnected");
@@ -46,29 +85,18 @@ public class ClientHandler implements Runnable{
         }
     }
 
-    private String handleRequest(String request) {
-        JSONObject requestJSON = new JSONObject(request);
-        String prompt = requestJSON.getString("prompt");
-        switch (requestJSON.getString("action")) {
-            case "CREATE_STORY" -> {
-                return generateStory(prompt);
-            }
-            case "EXTRACT_STORY" -> {
-                return extractStory(prompt);
-            }
-            default -> {
-                return null;
-            }
-        }
-    }
-
-    private String generateStory(String request) {
-        String message = geminiAPI.call(request);
-        System.out.println(message);
-        return message;
-    }
+    /**
+     * Writes a response. Responses to tagged requests come from other threads, which the stream serializes.
+     * @param stream - client stream
+     * @param response - response to write
+     */
+    private void send(MessageStream stream, String response) {
+        if (clientSocket.isClosed()) return;
 
-    public String extractStory(String story) {
-        return geminiAPI.extractStory(story);
+        try {
+            stream.write(response);
+        } catch (IOException e) {
+            System.err.println("Error writing to client: " + e.getMessage());
+        }
     }
 }
@@ -0,0 +1,42 @@
+package controller;
+
+/**
+ * Decides how many model calls may run at once.
+ * Implementations are only used while the AdmissionController holds its lock.
+ */
+public interface ConcurrencyLimit {
+    /**
+     * Returns how many calls may run at once right now.
+     * @return current limit
+     */
+    int getLimit();
+
+    /**
+     * Reports a finished call, so the limit can follow how the backend is coping.
+     * @param startNanos - when the call started, from System.nanoTime()
+     * @param latencyNanos - how long the call took
+     * @param inFlight - calls running when it finished, itself included
+     * @param dropped - true if the backend throttled or rejected the call because it is overloaded
+     */
+    void onSample(long startNanos, long latencyNanos, int inFlight, boolean dropped);
+
+    /**
+     * Creates the limit named in the config.
+     * @param type - "FIXED" to always allow maxLimit calls, or "AIMD" to adapt between minLimit and maxLimit
+     * @param initialLimit - starting limit for AIMD
+     * @param minLimit - lowest limit for AIMD
+     * @param maxLimit - highest limit
+     * @return ConcurrencyLimit
+     */
+    static ConcurrencyLimit create(String type, int initialLimit, int minLimit, int maxLimit) {
+        switch (type.toUpperCase()) {
+            case "FIXED" -> {
+                return new FixedLimit(maxLimit);
+            }
+            case "AIMD" -> {
+                return new AimdLimit(initialLimit, minLimit, maxLimit);
+            }
+            default -> throw new IllegalArgumentException("Unknown concurrency limit: " + type);
+        }
+    }
+}
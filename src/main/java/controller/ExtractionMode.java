@@ -0,0 +1,28 @@
+package controller;
+
+import java.util.Locale;
+
+/**
+ * How a story is extracted into characters and locations.
+ * LLM always asks the model. RULES only uses the offline RuleBasedExtractor, which takes milliseconds but
+ * misses more. HYBRID tries the rules first and only asks the model when their confidence is too low.
+ */
+public enum ExtractionMode {
+    LLM,
+    RULES,
+    HYBRID;
+
+    /**
+     * Reads a mode from a request or the config.
+     * @param name - mode name, in any case, or null or empty for the fallback
+     * @param fallback - mode used when no name is given
+     * @return ExtractionMode
+     * @throws IllegalArgumentException if the name is not a mode
+     */
+    public static ExtractionMode fromName(String name, ExtractionMode fallback) {
+        if (name == null || name.isEmpty()) {
+            return fallback;
+        }
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
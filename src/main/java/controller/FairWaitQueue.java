@@ -0,0 +1,118 @@
+package controller;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps one queue per client and serves the clients round-robin.
+ * A client with weight n gets up to n calls in a row before the next client's turn, so a chatty client
+ * cannot starve everyone else by filling the queue.
+ */
+public class FairWaitQueue implements WaitQueue {
+    private final Map<String, Integer> weights;
+    private final Map<String, Deque<AdmissionTicket>> queues = new HashMap<>();
+
+    // Clients with waiting calls, the head is the client being served
+    private final Deque<String> turns = new ArrayDeque<>();
+    private int turnsLeft;
+    private int size;
+
+    /**
+     * @param weights - weight per client id, clients not listed get a weight of 1
+     */
+    public FairWaitQueue(Map<String, Integer> weights) {
+        this.weights = weights;
+    }
+
+    @Override
+    public void add(AdmissionTicket ticket) {
+        String clientId = ticket.getContext().clientId();
+        Deque<AdmissionTicket> queue = queues.computeIfAbsent(clientId, id -> new ArrayDeque<>());
+        if (queue.isEmpty()) {
+            turns.addLast(clientId);
+        }
+
+        queue.addLast(ticket);
+        size++;
+    }
+
+    @Override
+    public AdmissionTicket peek() {
+        String clientId = turns.peekFirst();
+        return clientId == null ? null : queues.get(clientId).peekFirst();
+    }
+
+    @Override
+    public AdmissionTicket poll() {
+        String clientId = turns.peekFirst();
+        if (clientId == null) {
+            return null;
+        }
+
+        if (turnsLeft == 0) {
+            turnsLeft = weights.getOrDefault(clientId, 1);
+        }
+
+        Deque<AdmissionTicket> queue = queues.get(clientId);
+        AdmissionTicket ticket = queue.pollFirst();
+        size--;
+        turnsLeft--;
+
+        // Move on to the next client when this one is done or has used up its turns
+        if (queue.isEmpty()) {
+            queues.remove(clientId);
+            turns.pollFirst();
+            turnsLeft = 0;
+        }
+        else if (turnsLeft == 0) {
+            turns.addLast(turns.pollFirst());
+        }
+
+        return ticket;
+    }
+
+    @Override
+    public void remove(AdmissionTicket ticket) {
+        String clientId = ticket.getContext().clientId();
+        Deque<AdmissionTicket> queue = queues.get(clientId);
+        if (queue == null || !queue.remove(ticket)) {
+            return;
+        }
+
+        size--;
+        if (queue.isEmpty()) {
+            queues.remove(clientId);
+            if (clientId.equals(turns.peekFirst())) turnsLeft = 0;
+            turns.remove(clientId);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Parses client weights.
+     * @param weights - "clientId=weight" pairs separated by commas, may be empty
+     * @return weight per client id
+     */
+    public static Map<String, Integer> parseWeights(String weights) {
+        Map<String, Integer> result = new HashMap<>();
+        if (weights == null || weights.isBlank()) {
+            return result;
+        }
+
+        for (String pair : weights.split(",")) {
+            String[] parts = pair.split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid client weight: " + pair);
+            }
+            result.put(parts[0].trim(), Math.max(1, Integer.parseInt(parts[1].trim())));
+        }
+
+        return result;
+    }
+}
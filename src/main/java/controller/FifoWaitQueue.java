@@ -0,0 +1,36 @@
+package controller;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Serves waiting model calls in arrival order.
+ */
+public class FifoWaitQueue implements WaitQueue {
+    private final Deque<AdmissionTicket> queue = new ArrayDeque<>();
+
+    @Override
+    public void add(AdmissionTicket ticket) {
+        queue.add(ticket);
+    }
+
+    @Override
+    public AdmissionTicket peek() {
+        return queue.peek();
+    }
+
+    @Override
+    public AdmissionTicket poll() {
+        return queue.poll();
+    }
+
+    @Override
+    public void remove(AdmissionTicket ticket) {
+        queue.remove(ticket);
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+}
@@ -0,0 +1,20 @@
+package controller;
+
+/**
+ * Always allows the same number of calls.
+ */
+public class FixedLimit implements ConcurrencyLimit {
+    private final int limit;
+
+    public FixedLimit(int limit) {
+        this.limit = limit;
+    }
+
+    @Override
+    public int getLimit() {
+        return limit;
+    }
+
+    @Override
+    public void onSample(long startNanos, long latencyNanos, int inFlight, boolean dropped) {}
+}
@@ -23,6 +23,14 @@ public class GenerationEngine {
         this.strategy.setQuality(quality);
     }
 
+    public int getQuality() {
+        return strategy.getQuality();
+    }
+
+    public String getStrategyName() {
+        return strategy.getStrategyName();
+    }
+
     public String getResponse(String prompt) {
         System.out.println("Using strategy: " + strategy.getStrategyName());
         return strategy.prompt(prompt);
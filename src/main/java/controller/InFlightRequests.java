@@ -0,0 +1,53 @@
+package controller;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Requests of one connection that are still running, so they can be cancelled by id or all at once
+ * when the client disconnects.
+ */
+public class InFlightRequests {
+    private final Map<Long, CancellationToken> tagged = new ConcurrentHashMap<>();
+    private final Set<CancellationToken> all = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Tracks a request until the returned runnable is run.
+     * @param id - request id, or null for an untagged request
+     * @param token - token of the request
+     * @return runnable that stops tracking the request
+     */
+    public Runnable track(Long id, CancellationToken token) {
+        all.add(token);
+        if (id != null) {
+            tagged.put(id, token);
+        }
+
+        return () -> {
+            all.remove(token);
+            if (id != null) tagged.remove(id, token);
+        };
+    }
+
+    /**
+     * Cancels a tagged request.
+     * @param id - id of the request
+     * @param reason - why it is cancelled
+     * @return true if the request was running and is now cancelled
+     */
+    public boolean cancel(long id, String reason) {
+        CancellationToken token = tagged.get(id);
+        return token != null && token.cancel(reason);
+    }
+
+    /**
+     * Cancels every tracked request.
+     * @param reason - why they are cancelled
+     */
+    public void cancelAll(String reason) {
+        for (CancellationToken token : all) {
+            token.cancel(reason);
+        }
+    }
+}
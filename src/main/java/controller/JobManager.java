@@ -0,0 +1,251 @@
+package controller;
+
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Runs submitted jobs in the background and keeps their results for a while.
+ * A job is not tied to the connection that submitted it: any connection that knows the job id can poll it
+ * or subscribe to its result, so a client that reconnects picks up where it left off. Jobs that find the
+ * model busy wait and try again instead of failing, until their deadline. Finished jobs are swept away in
+ * the background once their retention has passed.
+ */
+public class JobManager {
+    public enum Status { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+    private static final double DURATION_WEIGHT = 0.2;
+    private static final long MAX_SWEEP_INTERVAL_MS = 60000;
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService sweeper;
+    private final long retentionMillis;
+    private final long timeoutMillis;
+    private volatile double averageJobMillis = 1000;
+
+    /**
+     * @param workerCount - number of jobs run at once
+     * @param maxQueued - number of jobs allowed to wait for a worker
+     * @param retentionMillis - how long a finished job's result is kept
+     * @param timeoutMillis - deadline of a job from when it is submitted
+     */
+    public JobManager(int workerCount, int maxQueued, long retentionMillis, long timeoutMillis) {
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, maxQueued)));
+        this.retentionMillis = retentionMillis;
+        this.timeoutMillis = timeoutMillis;
+
+        // Sweep often enough that a result is never kept much longer than its retention
+        long sweepInterval = Math.max(1, Math.min(MAX_SWEEP_INTERVAL_MS, retentionMillis / 2));
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "job-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::removeExpired, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a job.
+     * @param clientId - client that submitted the job
+     * @param work - the job, which should stop when the token is cancelled
+     * @return status of the new job
+     * @throws ServerBusyException if the job queue is full
+     */
+    public JSONObject submit(String clientId, Function<CancellationToken, String> work) {
+        Job job = new Job(UUID.randomUUID().toString(), clientId, CancellationToken.withTimeout(timeoutMillis));
+        jobs.put(job.id, job);
+        try {
+            workers.execute(() -> run(job, work));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            throw new ServerBusyException(retryAfterMillis());
+        }
+
+        return job.toJSON();
+    }
+
+    /**
+     * Returns the status of a job, with its result if it has finished.
+     * @param jobId - id of the job
+     * @return status of the job, or null if the job is unknown or expired
+     */
+    public JSONObject poll(String jobId) {
+        Job job = getJob(jobId);
+        return job == null ? null : job.toJSON();
+    }
+
+    /**
+     * Waits for a job to finish without holding a thread.
+     * @param jobId - id of the job
+     * @return future of the final status of the job, or null if the job is unknown or expired
+     */
+    public CompletableFuture<JSONObject> subscribe(String jobId) {
+        Job job = getJob(jobId);
+        return job == null ? null : job.completion.thenApply(Job::toJSON);
+    }
+
+    /**
+     * Looks a job up, treating one whose retention has passed as gone even if it has not been swept yet.
+     */
+    private Job getJob(String jobId) {
+        Job job = jobs.get(jobId);
+        if (job != null && job.isFinishedBefore(System.currentTimeMillis() - retentionMillis)) {
+            jobs.remove(jobId, job);
+            return null;
+        }
+        return job;
+    }
+
+    /**
+     * Returns how many jobs are known in each state.
+     * @return JSONObject of the counters
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        for (Status status : Status.values()) {
+            stats.put(status.name(), 0);
+        }
+        for (Job job : jobs.values()) {
+            String status = job.getStatus().name();
+            stats.put(status, stats.getInt(status) + 1);
+        }
+        return stats;
+    }
+
+    /**
+     * Stops taking jobs and cancels the ones still running.
+     */
+    public void shutdown() {
+        sweeper.shutdownNow();
+        workers.shutdown();
+        for (Job job : jobs.values()) {
+            job.cancellation.cancel("Server shutting down");
+        }
+    }
+
+    /**
+     * Estimates how long until the job queue has room: the time for the queued jobs to drain.
+     * @return retry-after hint in milliseconds
+     */
+    private long retryAfterMillis() {
+        double queuedPerWorker = (double) workers.getQueue().size() / workers.getMaximumPoolSize();
+        return (long) Math.ceil((queuedPerWorker + 1) * averageJobMillis);
+    }
+
+    private void run(Job job, Function<CancellationToken, String> work) {
+        job.start();
+        long start = System.currentTimeMillis();
+        while (true) {
+            try {
+                String result = work.apply(job.cancellation);
+                recordDuration(System.currentTimeMillis() - start);
+                job.finish(Status.DONE, result, null);
+                return;
+            } catch (ServerBusyException e) {
+                // The job is not in a hurry, wait for the model to have room again
+                if (!sleep(Math.min(e.getRetryAfterMillis(), TimeUnit.NANOSECONDS.toMillis(job.cancellation.remainingNanos())))) {
+                    job.finish(Status.CANCELLED, null, "Interrupted");
+                    return;
+                }
+            } catch (RequestCancelledException e) {
+                job.finish(Status.CANCELLED, null, e.getMessage());
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("Error running job " + job.id + ": " + e.getMessage());
+                job.finish(Status.FAILED, null, e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private synchronized void recordDuration(long millis) {
+        averageJobMillis += DURATION_WEIGHT * (millis - averageJobMillis);
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(Math.max(1, millis));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Forgets finished jobs whose results have been kept long enough.
+     */
+    private void removeExpired() {
+        long oldest = System.currentTimeMillis() - retentionMillis;
+        jobs.values().removeIf(job -> job.isFinishedBefore(oldest));
+    }
+
+    /**
+     * A submitted job and, once it finishes, its result.
+     */
+    private static class Job {
+        private final String id;
+        private final String clientId;
+        private final CancellationToken cancellation;
+        private final long submittedAt = System.currentTimeMillis();
+        private final CompletableFuture<Job> completion = new CompletableFuture<>();
+
+        // Guarded by this
+        private Status status = Status.QUEUED;
+        private String result;
+        private String error;
+        private long finishedAt;
+
+        Job(String id, String clientId, CancellationToken cancellation) {
+            this.id = id;
+            this.clientId = clientId;
+            this.cancellation = cancellation;
+        }
+
+        synchronized void start() {
+            status = Status.RUNNING;
+        }
+
+        void finish(Status finalStatus, String result, String error) {
+            synchronized (this) {
+                this.status = finalStatus;
+                this.result = result;
+                this.error = error;
+                this.finishedAt = System.currentTimeMillis();
+            }
+            completion.complete(this);
+        }
+
+        synchronized Status getStatus() {
+            return status;
+        }
+
+        synchronized boolean isFinishedBefore(long time) {
+            return finishedAt != 0 && finishedAt < time;
+        }
+
+        synchronized JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put(Protocol.JOB_ID, id);
+            json.put(Protocol.CLIENT_ID, clientId);
+            json.put("status", status.name());
+            json.put("submittedAt", submittedAt);
+            if (finishedAt != 0) json.put("finishedAt", finishedAt);
+            if (result != null) json.put("result", result);
+            if (error != null) json.put("error", error);
+            return json;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package controller;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and writes protocol messages on a blocking socket.
+ * A stream starts in line mode (one message per line) and switches to framed mode after a successful
+ * HELLO. A frame is a 4-byte big-endian length followed by that many bytes of UTF-8 payload, so the
+ * payload can contain any text, including a line reading "END".
+ */
+public class MessageStream {
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final DataInputStream in;
+    private final OutputStream out;
+    private volatile boolean framed;
+
+    // Reused between reads, grown when a bigger message arrives
+    private byte[] readBuffer = new byte[INITIAL_BUFFER_SIZE];
+
+    public MessageStream(InputStream in, OutputStream out) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        this.out = new BufferedOutputStream(out);
+    }
+
+    /**
+     * Switches both directions to length-prefixed frames.
+     */
+    public void switchToFramed() {
+        framed = true;
+    }
+
+    public boolean isFramed() {
+        return framed;
+    }
+
+    /**
+     * Reads the next message.
+     * @return message text, or null if the stream has ended
+     * @throws IOException
+     */
+    public String read() throws IOException {
+        return framed ? readFrame() : readLine();
+    }
+
+    /**
+     * Writes a message. Safe to call from several threads.
+     * @param message - message text
+     * @throws IOException
+     */
+    public synchronized void write(String message) throws IOException {
+        byte[] payload = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+
+        if (framed) {
+            out.write(payload.length >>> 24);
+            out.write(payload.length >>> 16);
+            out.write(payload.length >>> 8);
+            out.write(payload.length);
+            out.write(payload);
+        }
+        else {
+            out.write(payload);
+            out.write('\n');
+        }
+
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            out.close();
+        }
+    }
+
+    private String readFrame() throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        if (length < 0 || length > Protocol.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+
+        ensureCapacity(length);
+        in.readFully(readBuffer, 0, length);
+        return new String(readBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private String readLine() throws IOException {
+        int length = 0;
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                return length == 0 ? null : new String(readBuffer, 0, length, StandardCharsets.UTF_8);
+            }
+            if (length == Protocol.MAX_FRAME_SIZE) {
+                throw new IOException("Line longer than " + Protocol.MAX_FRAME_SIZE + " bytes");
+            }
+
+            ensureCapacity(length + 1);
+            readBuffer[length++] = (byte) b;
+        }
+
+        if (length > 0 && readBuffer[length - 1] == '\r') length--;
+        return new String(readBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > readBuffer.length) {
+            byte[] bigger = new byte[Math.max(capacity, readBuffer.length * 2)];
+            System.arraycopy(readBuffer, 0, bigger, 0, readBuffer.length);
+            readBuffer = bigger;
+        }
+    }
+}
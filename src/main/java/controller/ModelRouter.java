@@ -0,0 +1,199 @@
+package controller;
+
+import org.json.JSONObject;
+import service.LatencyTracker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks the model tier a model call is sent to from its action and quality level.
+ * Tiers are listed from the best to the fastest, each with a p95 latency budget. When the recent p95 of the
+ * tier a call is routed to is over its budget, the call falls back to the next faster tier, and so on. A
+ * few calls keep going to the slow tier while it is over budget to probe it, and only the latest probes
+ * decide when it is back, so a tier recovers after a few dozen probes rather than once its whole window of
+ * slow calls has been replaced.
+ */
+public class ModelRouter {
+    // Recent calls needed before the p95 of a tier is trusted
+    private static final int MIN_SAMPLES = 20;
+    private static final int LATENCY_WINDOW = 200;
+    // One in this many calls goes to a tier that is over budget anyway
+    private static final int PROBE_EVERY = 20;
+
+    private final List<Tier> tiers = new ArrayList<>();
+    private final Map<String, Tier> tiersByModel = new HashMap<>();
+    private final Map<String, Tier> routes;
+
+    /**
+     * A model and the latency it is expected to keep to.
+     */
+    private static final class Tier {
+        final String model;
+        final long budgetMillis;
+        final int index;
+        final LatencyTracker latencies = new LatencyTracker(LATENCY_WINDOW);
+        // Latest calls to the tier since it went over budget, guarded by this
+        final LatencyTracker probes = new LatencyTracker(MIN_SAMPLES);
+        final AtomicLong routed = new AtomicLong();
+        final AtomicLong fallbacks = new AtomicLong();
+        final AtomicLong overBudget = new AtomicLong();
+        private boolean probing;
+
+        Tier(String model, long budgetMillis, int index) {
+            this.model = model;
+            this.budgetMillis = budgetMillis;
+            this.index = index;
+        }
+
+        /**
+         * Tells whether calls should avoid the tier, and starts probing it once its p95 goes over budget.
+         */
+        synchronized boolean checkOverBudget() {
+            if (!probing && isOverBudget()) {
+                probing = true;
+                probes.clear();
+            }
+            return probing;
+        }
+
+        /**
+         * Tells whether calls should avoid the tier, without changing its state, for reporting.
+         */
+        synchronized boolean isOverBudget() {
+            return probing || latencies.count() >= MIN_SAMPLES && latencies.percentile(95) > budgetMillis;
+        }
+
+        /**
+         * Adds a call's latency. Once the probes of a tier that is over budget are back within it, the slow
+         * calls are forgotten and the tier takes its calls again.
+         */
+        synchronized void record(long millis) {
+            if (!probing) {
+                latencies.record(millis);
+                return;
+            }
+
+            probes.record(millis);
+            if (probes.count() >= MIN_SAMPLES && probes.percentile(95) <= budgetMillis) {
+                probing = false;
+                latencies.clear();
+            }
+        }
+    }
+
+    /**
+     * @param tiers - tiers from the best to the fastest as "model=p95 budget in ms" pairs, such as
+     *              "gemini-2.5-flash=20000,gemini-2.5-flash-lite=10000"; empty to not route at all
+     * @param routes - "ACTION:quality=model" pairs, where either side of the colon may be "*" and a plain
+     *               "ACTION" matches every quality, such as "CREATE_STORY:3=gemini-2.5-flash,*=gemini-2.5-flash-lite"
+     * @throws IllegalArgumentException if a pair is malformed or a route names a model that is not a tier
+     */
+    public ModelRouter(String tiers, String routes) {
+        for (Map.Entry<String, String> tier : parsePairs(tiers).entrySet()) {
+            Tier parsed = new Tier(tier.getKey(), Long.parseLong(tier.getValue()), this.tiers.size());
+            this.tiers.add(parsed);
+            tiersByModel.put(parsed.model, parsed);
+        }
+
+        this.routes = new HashMap<>();
+        for (Map.Entry<String, String> route : parsePairs(routes).entrySet()) {
+            Tier tier = tiersByModel.get(route.getValue());
+            if (tier == null) {
+                throw new IllegalArgumentException("Route to unknown model tier: " + route.getKey() + "="
+                        + route.getValue());
+            }
+            this.routes.put(route.getKey(), tier);
+        }
+    }
+
+    /**
+     * Picks the model for a call.
+     * @param context - request the call belongs to
+     * @return model name, or null to use the backend's default model
+     */
+    public String route(RequestContext context) {
+        Tier preferred = preferredTier(context);
+        if (preferred == null) {
+            return null;
+        }
+
+        Tier tier = preferred;
+        while (tier.checkOverBudget() && tier.index + 1 < tiers.size()) {
+            if (tier.overBudget.incrementAndGet() % PROBE_EVERY == 0) {
+                break;
+            }
+            tier = tiers.get(tier.index + 1);
+        }
+
+        tier.routed.incrementAndGet();
+        if (tier != preferred) {
+            preferred.fallbacks.incrementAndGet();
+        }
+        return tier.model;
+    }
+
+    private Tier preferredTier(RequestContext context) {
+        String action = context.action();
+        String quality = String.valueOf(context.quality());
+        for (String key : new String[] {action + ":" + quality, action, action + ":*", "*:" + quality, "*"}) {
+            Tier tier = routes.get(key);
+            if (tier != null) return tier;
+        }
+        return null;
+    }
+
+    /**
+     * Adds the latency of a call that was routed to a model.
+     * @param model - model returned by route
+     * @param millis - time the model took to answer
+     */
+    public void record(String model, long millis) {
+        Tier tier = tiersByModel.get(model);
+        if (tier != null) {
+            tier.record(millis);
+        }
+    }
+
+    /**
+     * Returns the p95, budget and traffic of every tier.
+     * @return JSONObject with an object per model
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        for (Tier tier : tiers) {
+            JSONObject json = new JSONObject();
+            json.put("budgetMs", tier.budgetMillis);
+            json.put("p95Ms", tier.latencies.percentile(95));
+            json.put("overBudget", tier.isOverBudget());
+            json.put("routed", tier.routed.get());
+            json.put("fallbacks", tier.fallbacks.get());
+            stats.put(tier.model, json);
+        }
+        return stats;
+    }
+
+    /**
+     * Parses "key=value" pairs separated by commas, keeping their order.
+     */
+    private static Map<String, String> parsePairs(String pairs) {
+        Map<String, String> result = new LinkedHashMap<>();
+        if (pairs == null || pairs.isBlank()) {
+            return result;
+        }
+
+        for (String pair : pairs.split(",")) {
+            String[] parts = pair.split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid model routing entry: " + pair);
+            }
+            result.put(parts[0].trim(), parts[1].trim());
+        }
+
+        return result;
+    }
+}
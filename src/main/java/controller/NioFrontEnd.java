@@ -0,0 +1,440 @@
+package controller;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Selector-based front end for the server.
+ * A single acceptor hands new connections to a few reactor threads which multiplex all the (mostly idle)
+ * sockets. Only complete requests are handed over to the worker pool, so the number of connected
+ * clients is no longer capped by the number of worker threads.
+ */
+public class NioFrontEnd {
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final int port;
+    private final RequestDispatcher dispatcher;
+    private final ClientAuthenticator authenticator;
+    private final ExecutorService workerPool;
+    private final Reactor[] reactors;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    public NioFrontEnd(int port, RequestDispatcher dispatcher, ClientAuthenticator authenticator,
+                       ExecutorService workerPool, int ioThreads) {
+        this.port = port;
+        this.dispatcher = dispatcher;
+        this.authenticator = authenticator;
+        this.workerPool = workerPool;
+        this.reactors = new Reactor[Math.max(1, ioThreads)];
+    }
+
+    /**
+     * Binds the port and accepts connections until the front end is stopped.
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        running = true;
+
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(Selector.open());
+            Thread thread = new Thread(reactors[i], "nio-reactor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        System.out.println("Story Generation Server (NIO) started on port " + port);
+        System.out.println("Waiting for client connection...");
+
+        // Blocking accept on this thread, then spread the connections over the reactors
+        int next = 0;
+        try {
+            while (running) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                System.out.println("New client connected: " + channel.getRemoteAddress());
+
+                reactors[next].register(channel);
+                next = (next + 1) % reactors.length;
+            }
+        } catch (ClosedChannelException e) {
+            // stop() closed the server channel
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes every reactor.
+     */
+    public void stop() {
+        running = false;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing server channel: " + e.getMessage());
+        }
+
+        for (Reactor reactor : reactors) {
+            if (reactor != null) reactor.close();
+        }
+    }
+
+    /**
+     * Returns the address a connection comes from, used as its client id until the client names itself.
+     * @param channel - client channel
+     * @return host address
+     */
+    private static String remoteAddress(SocketChannel channel) {
+        try {
+            if (channel.getRemoteAddress() instanceof InetSocketAddress address) {
+                return address.getAddress().getHostAddress();
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading client address: " + e.getMessage());
+        }
+        return RequestContext.ANONYMOUS;
+    }
+
+    /**
+     * Event loop that owns one selector and all the connections registered on it.
+     */
+    private class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+        Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        void requestWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        void close() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Error closing selector: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running && selector.isOpen()) {
+                try {
+                    selector.select();
+                    registerPending();
+                    enableWrites();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+
+                        try {
+                            if (key.isValid() && key.isReadable()) connection.read();
+                            if (key.isValid() && key.isWritable()) connection.write();
+                        } catch (IOException e) {
+                            connection.close();
+                        }
+                    }
+                } catch (Exception e) {
+                    if (selector.isOpen()) {
+                        System.err.println("Reactor error: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        private void registerPending() throws IOException {
+            SocketChannel channel;
+            while ((channel = pendingRegistrations.poll()) != null) {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(this, channel, key));
+            }
+        }
+
+        private void enableWrites() {
+            Connection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                if (connection.key.isValid()) {
+                    connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+        }
+    }
+
+    /**
+     * State for a single client connection.
+     * Legacy requests on one connection are answered in the order they arrived, one at a time.
+     * Tagged requests run concurrently.
+     */
+    private class Connection {
+        private final Reactor reactor;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+
+        // Partially read message, reused between messages. Only touched on the reactor thread.
+        private byte[] messageBuffer = new byte[READ_BUFFER_SIZE];
+        private int messageLength;
+        private int frameLength = -1;
+        private volatile boolean framed;
+
+        // Guarded by this
+        private final Queue<JSONObject> requestQueue = new ArrayDeque<>();
+        private boolean busy;
+        private String clientId;
+
+        private final InFlightRequests inFlight = new InFlightRequests();
+
+        Connection(Reactor reactor, SocketChannel channel, SelectionKey key) {
+            this.reactor = reactor;
+            this.channel = channel;
+            this.key = key;
+            this.clientId = remoteAddress(channel);
+        }
+
+        /**
+         * Reads what is available and splits it into request lines or frames. Called on the reactor thread.
+         */
+        void read() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                if (framed) {
+                    readFrame();
+                }
+                else {
+                    readLine();
+                }
+            }
+            readBuffer.clear();
+        }
+
+        private void readLine() throws IOException {
+            byte b = readBuffer.get();
+            if (b != '\n') {
+                if (messageLength == Protocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Request line longer than " + Protocol.MAX_FRAME_SIZE + " bytes");
+                }
+                ensureCapacity(messageLength + 1);
+                messageBuffer[messageLength++] = b;
+                return;
+            }
+
+            int length = messageLength;
+            if (length > 0 && messageBuffer[length - 1] == '\r') length--;
+            messageLength = 0;
+            enqueueRequest(new String(messageBuffer, 0, length, StandardCharsets.UTF_8));
+        }
+
+        private void readFrame() throws IOException {
+            // Length header first, then the payload is copied over in bulk
+            if (frameLength < 0) {
+                while (messageLength < 4 && readBuffer.hasRemaining()) {
+                    messageBuffer[messageLength++] = readBuffer.get();
+                }
+                if (messageLength < 4) return;
+
+                frameLength = ((messageBuffer[0] & 0xFF) << 24) | ((messageBuffer[1] & 0xFF) << 16)
+                        | ((messageBuffer[2] & 0xFF) << 8) | (messageBuffer[3] & 0xFF);
+                if (frameLength < 0 || frameLength > Protocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid frame length: " + frameLength);
+                }
+                ensureCapacity(frameLength);
+                messageLength = 0;
+            }
+
+            int count = Math.min(frameLength - messageLength, readBuffer.remaining());
+            readBuffer.get(messageBuffer, messageLength, count);
+            messageLength += count;
+
+            if (messageLength == frameLength) {
+                String request = new String(messageBuffer, 0, frameLength, StandardCharsets.UTF_8);
+                frameLength = -1;
+                messageLength = 0;
+                enqueueRequest(request);
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > messageBuffer.length) {
+                byte[] bigger = new byte[Math.max(capacity, messageBuffer.length * 2)];
+                System.arraycopy(messageBuffer, 0, bigger, 0, messageLength);
+                messageBuffer = bigger;
+            }
+        }
+
+        /**
+         * Flushes queued responses. Called on the reactor thread.
+         */
+        void write() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = writeQueue.peek()) != null) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    // Socket buffer is full, wait for the next OP_WRITE
+                    return;
+                }
+                writeQueue.poll();
+            }
+
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        void close() {
+            // Nobody is left to answer, stop the model calls still running for this client
+            inFlight.cancelAll("Client disconnected");
+            synchronized (this) {
+                requestQueue.clear();
+            }
+
+            key.cancel();
+            try {
+                channel.close();
+                System.out.println("Client disconnected");
+            } catch (IOException e) {
+                System.err.println("Error disconnecting from client: " + e.getMessage());
+            }
+        }
+
+        private synchronized void enqueueRequest(String request) {
+            JSONObject requestJSON;
+            try {
+                requestJSON = new JSONObject(request);
+            } catch (Exception e) {
+                System.err.println("Error handling client: " + e.getMessage());
+                close();
+                return;
+            }
+
+            // Version handshake, answered in line mode before switching
+            if (Protocol.isHello(requestJSON)) {
+                clientId = authenticator.clientIdFor(requestJSON, remoteAddress(channel));
+                JSONObject reply = Protocol.helloReply(requestJSON);
+                send(reply.toString());
+                framed = reply.getInt(Protocol.VERSION) == Protocol.FRAMED_VERSION;
+                return;
+            }
+
+            // Requests are scheduled under the connection's client, whatever they claim
+            requestJSON.put(Protocol.CLIENT_ID, clientId);
+
+            if (Protocol.isCancel(requestJSON)) {
+                JSONObject reply = dispatcher.cancel(requestJSON, inFlight);
+                if (reply != null) send(reply.toString());
+                return;
+            }
+
+            // Answered without a worker, so it gets through however busy the worker pool is
+            if (Protocol.isHealth(requestJSON)) {
+                send(dispatcher.health(requestJSON, framed));
+                return;
+            }
+
+            // Tagged requests bypass the per-connection queue and are answered as soon as they finish
+            if (RequestDispatcher.isTagged(requestJSON)) {
+                System.out.println("Received request: " + request);
+                dispatcher.submit(requestJSON, partial -> send(partial.toString()), inFlight)
+                        .thenAccept(envelope -> send(envelope.toString()));
+                return;
+            }
+
+            requestQueue.add(requestJSON);
+            if (!busy) {
+                dispatchNext();
+            }
+        }
+
+        private synchronized void dispatchNext() {
+            JSONObject request = requestQueue.poll();
+            if (request == null) {
+                busy = false;
+                return;
+            }
+
+            busy = true;
+            try {
+                workerPool.execute(() -> handle(request));
+            } catch (RejectedExecutionException e) {
+                // Worker queue is full, shed the request and move on to the next one
+                long retryAfter = dispatcher.getAdmissionController().retryAfterMillis();
+                String response = Protocol.busy(retryAfter).toString();
+                send(framed ? response : Protocol.legacy(response));
+                dispatchNext();
+            }
+        }
+
+        /**
+         * Handles a legacy request on a worker thread and queues the response for the reactor.
+         */
+        private void handle(JSONObject request) {
+            try {
+                System.out.println("Received request: " + request);
+                send(dispatcher.handleLegacy(request, framed, inFlight));
+                System.out.println("Handled request: " + request);
+            } catch (Exception e) {
+                System.err.println("Error handling client: " + e.getMessage());
+                close();
+            } finally {
+                dispatchNext();
+            }
+        }
+
+        /**
+         * Queues a response line or frame for the reactor. Safe to call from any thread.
+         * @param response - response to write
+         */
+        private void send(String response) {
+            if (!channel.isOpen()) return;
+
+            if (framed) {
+                byte[] payload = String.valueOf(response).getBytes(StandardCharsets.UTF_8);
+                ByteBuffer frame = ByteBuffer.allocate(4 + payload.length);
+                frame.putInt(payload.length).put(payload).flip();
+                writeQueue.add(frame);
+            }
+            else {
+                writeQueue.add(StandardCharsets.UTF_8.encode(response + "\n"));
+            }
+            reactor.requestWrite(this);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package controller;
+
+/**
+ * Priority classes of model calls.
+ * Extractions are short and a user is waiting on them, so they go first. Quality 1 stories come next and
+ * longer, higher quality stories last.
+ */
+public enum Priority {
+    HIGH,
+    NORMAL,
+    LOW;
+
+    /**
+     * Picks the priority class of a model call.
+     * @param context - request the call belongs to
+     * @return Priority
+     */
+    public static Priority of(RequestContext context) {
+        if ("EXTRACT_STORY".equals(context.action())) {
+            return HIGH;
+        }
+        return context.quality() <= 1 ? NORMAL : LOW;
+    }
+
+    /**
+     * Returns how far above the lowest class this class is.
+     * @return rank, higher goes first
+     */
+    public int rank() {
+        return values().length - 1 - ordinal();
+    }
+}
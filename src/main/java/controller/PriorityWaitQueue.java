@@ -0,0 +1,88 @@
+package controller;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Serves higher priority classes first, with a separate queue per class.
+ * Waiting calls age: every agingMillis spent in the queue counts as one class higher, so a long generation
+ * behind a stream of extractions still gets its turn.
+ */
+public class PriorityWaitQueue implements WaitQueue {
+    private final Map<Priority, WaitQueue> queues = new EnumMap<>(Priority.class);
+    private final long agingNanos;
+    private int size;
+
+    /**
+     * @param classQueue - creates the queue used inside each class
+     * @param agingMillis - wait that raises a call by one class
+     */
+    public PriorityWaitQueue(Supplier<WaitQueue> classQueue, long agingMillis) {
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, classQueue.get());
+        }
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, agingMillis));
+    }
+
+    @Override
+    public void add(AdmissionTicket ticket) {
+        queues.get(Priority.of(ticket.getContext())).add(ticket);
+        size++;
+    }
+
+    @Override
+    public AdmissionTicket peek() {
+        WaitQueue next = nextQueue();
+        return next == null ? null : next.peek();
+    }
+
+    @Override
+    public AdmissionTicket poll() {
+        WaitQueue next = nextQueue();
+        if (next == null) {
+            return null;
+        }
+
+        size--;
+        return next.poll();
+    }
+
+    @Override
+    public void remove(AdmissionTicket ticket) {
+        WaitQueue queue = queues.get(Priority.of(ticket.getContext()));
+        int before = queue.size();
+        queue.remove(ticket);
+        size -= before - queue.size();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Finds the class whose next call has the highest priority after aging. Ties go to the higher class.
+     * @return queue to serve next, or null if all are empty
+     */
+    private WaitQueue nextQueue() {
+        long now = System.nanoTime();
+        WaitQueue best = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+
+        for (Priority priority : Priority.values()) {
+            WaitQueue queue = queues.get(priority);
+            AdmissionTicket head = queue.peek();
+            if (head == null) continue;
+
+            double score = priority.rank() + (double) (now - head.getEnqueuedAt()) / agingNanos;
+            if (score > bestScore) {
+                best = queue;
+                bestScore = score;
+            }
+        }
+
+        return best;
+    }
+}
@@ -5,4 +5,18 @@ public interface PromptStrategy {
     String getStrategyName();
     void setQuality(int quality);
     int getQuality();
+
+    /**
+     * Creates a strategy from its name.
+     * @param name - name returned by getStrategyName, such as "NARRATIVE"
+     * @return PromptStrategy
+     */
+    static PromptStrategy fromName(String name) {
+        switch (name.toUpperCase()) {
+            case "NARRATIVE" -> {
+                return new NarrativeStrategy();
+            }
+            default -> throw new IllegalArgumentException("Unknown strategy: " + name);
+        }
+    }
 }
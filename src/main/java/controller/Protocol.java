@@ -0,0 +1,302 @@
+package controller;
+
+import org.json.JSONObject;
+
+/**
+ * Message names and helpers shared by the server and ServerConnection.
+ * Requests that carry an "id" are answered with a single JSON envelope tagged with the same id, so several
+ * requests can be in flight on one connection and answered in any order. Requests without an id get the
+ * legacy reply: the raw text followed by an "END" line.
+ * <p>
+ * A client may open the connection with a HELLO line asking for a protocol version. If the server agrees
+ * to version 2, both sides switch to length-prefixed frames (see MessageStream) for the rest of the
+ * connection. Clients that never send HELLO stay on the version 1 line protocol.
+ * <p>
+ * The HELLO may also carry a "clientId" naming the client for fair scheduling and rate limiting, along with
+ * the "clientKey" the server has configured for it. Clients that do not send one, or send a wrong key, are
+ * known by their address.
+ * <p>
+ * Every request has a deadline, "timeoutMs" from when it arrives or the server's default. A request that
+ * runs past it, or is stopped with a CANCEL naming its id, is answered with a CANCELLED envelope.
+ * <p>
+ * Long work can instead be submitted as a job. SUBMIT answers at once with the job's status and id; POLL
+ * returns the current status and SUBSCRIBE answers once the job has finished, from any connection.
+ * <p>
+ * A streamed CREATE_AND_EXTRACT also sends ENTITIES envelopes between its CHUNKs, each carrying the Story
+ * JSON of the characters and locations found so far, so a client can show them while the story is written.
+ */
+public final class Protocol {
+    // Protocol versions
+    public static final int LINE_VERSION = 1;
+    public static final int FRAMED_VERSION = 2;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    // Request fields
+    public static final String ID = "id";
+    public static final String ACTION = "action";
+    public static final String PROMPT = "prompt";
+    public static final String VERSION = "version";
+    public static final String STREAM = "stream";
+    public static final String CLIENT_ID = "clientId";
+    public static final String CLIENT_KEY = "clientKey";
+    public static final String QUALITY = "quality";
+    public static final String STRATEGY = "strategy";
+    public static final String TIMEOUT = "timeoutMs";
+    public static final String REQUEST_ID = "requestId";
+    public static final String JOB = "job";
+    public static final String JOB_ID = "jobId";
+    public static final String ITEMS = "items";
+    public static final String EXTRACTOR = "extractor";
+
+    // Response fields
+    public static final String TYPE = "type";
+    public static final String BODY = "body";
+    public static final String MESSAGE = "message";
+    public static final String RETRY_AFTER = "retryAfterMs";
+
+    // Response types
+    public static final String RESPONSE = "RESPONSE";
+    public static final String ERROR = "ERROR";
+    public static final String CHUNK = "CHUNK";
+    public static final String ENTITIES = "ENTITIES";
+    public static final String BUSY = "BUSY";
+    public static final String CANCELLED = "CANCELLED";
+
+    // Stops a running tagged request, named by REQUEST_ID
+    public static final String CANCEL = "CANCEL";
+
+    // Job actions: SUBMIT queues the request in JOB, POLL and SUBSCRIBE name the job by JOB_ID
+    public static final String SUBMIT = "SUBMIT";
+    public static final String POLL = "POLL";
+    public static final String SUBSCRIBE = "SUBSCRIBE";
+
+    // Answers with the server's usage, admission and extraction counters
+    public static final String STATS = "STATS";
+
+    // Answers with the server's readiness at once, without waiting on the model
+    public static final String HEALTH = "HEALTH";
+
+    // Handshake, sent as an action by the client and as a type by the server
+    public static final String HELLO = "HELLO";
+
+    // Legacy terminator line
+    public static final String END = "END";
+
+    private Protocol() {}
+
+    /**
+     * Builds a successful response envelope.
+     * @param id - id of the request being answered
+     * @param body - response text
+     * @return JSONObject envelope
+     */
+    public static JSONObject response(long id, String body) {
+        JSONObject envelope = new JSONObject();
+        envelope.put(ID, id);
+        envelope.put(TYPE, RESPONSE);
+        envelope.put(BODY, body);
+        return envelope;
+    }
+
+    /**
+     * Builds a partial-text envelope for a streaming request. Any number of these may come before the
+     * final RESPONSE, which carries the full text.
+     * @param id - id of the request being answered
+     * @param text - newly generated text
+     * @return JSONObject envelope
+     */
+    public static JSONObject chunk(long id, String text) {
+        JSONObject envelope = new JSONObject();
+        envelope.put(ID, id);
+        envelope.put(TYPE, CHUNK);
+        envelope.put(BODY, text);
+        return envelope;
+    }
+
+    /**
+     * Builds a partial-extraction envelope for a streamed CREATE_AND_EXTRACT. Each one replaces the last.
+     * @param id - id of the request being answered
+     * @param storyJSON - Story JSON of the characters and locations found so far
+     * @return JSONObject envelope
+     */
+    public static JSONObject entities(long id, String storyJSON) {
+        JSONObject envelope = new JSONObject();
+        envelope.put(ID, id);
+        envelope.put(TYPE, ENTITIES);
+        envelope.put(BODY, storyJSON);
+        return envelope;
+    }
+
+    /**
+     * Builds an error envelope.
+     * @param id - id of the request that failed
+     * @param message - error message
+     * @return JSONObject envelope
+     */
+    public static JSONObject error(long id, String message) {
+        JSONObject envelope = new JSONObject();
+        envelope.put(ID, id);
+        envelope.put(TYPE, ERROR);
+        envelope.put(MESSAGE, message == null ? "Unknown error" : message);
+        return envelope;
+    }
+
+    /**
+     * Builds the reply to an untagged request that failed.
+     * @param message - error message
+     * @return JSONObject reply
+     */
+    public static JSONObject error(String message) {
+        JSONObject envelope = new JSONObject();
+        envelope.put(TYPE, ERROR);
+        envelope.put(MESSAGE, message == null ? "Unknown error" : message);
+        return envelope;
+    }
+
+    /**
+     * Builds the envelope of a request that was stopped before it finished.
+     * @param id - id of the request that was stopped
+     * @param reason - why it was stopped
+     * @return JSONObject envelope
+     */
+    public static JSONObject cancelled(long id, String reason) {
+        JSONObject envelope = cancelled(reason);
+        envelope.put(ID, id);
+        return envelope;
+    }
+
+    /**
+     * Builds the reply to an untagged request that was stopped before it finished.
+     * @param reason - why it was stopped
+     * @return JSONObject reply
+     */
+    public static JSONObject cancelled(String reason) {
+        JSONObject envelope = new JSONObject();
+        envelope.put(TYPE, CANCELLED);
+        envelope.put(MESSAGE, reason);
+        return envelope;
+    }
+
+    /**
+     * Builds a request that stops a running tagged request.
+     * @param requestId - id of the request to stop
+     * @return JSONObject request
+     */
+    public static JSONObject cancel(long requestId) {
+        JSONObject cancel = new JSONObject();
+        cancel.put(ACTION, CANCEL);
+        cancel.put(REQUEST_ID, requestId);
+        return cancel;
+    }
+
+    /**
+     * Checks if a request stops another request.
+     * @param request - JSON request
+     * @return true if the request is a CANCEL
+     */
+    public static boolean isCancel(JSONObject request) {
+        return CANCEL.equals(request.optString(ACTION));
+    }
+
+    /**
+     * Checks if a request asks for the server's readiness.
+     * @param request - JSON request
+     * @return true if the request is a HEALTH
+     */
+    public static boolean isHealth(JSONObject request) {
+        return HEALTH.equals(request.optString(ACTION));
+    }
+
+    /**
+     * Builds a load-shedding envelope telling the client to try again later.
+     * @param id - id of the request that was turned away
+     * @param retryAfterMillis - how long the client should wait before retrying
+     * @return JSONObject envelope
+     */
+    public static JSONObject busy(long id, long retryAfterMillis) {
+        JSONObject envelope = busy(retryAfterMillis);
+        envelope.put(ID, id);
+        return envelope;
+    }
+
+    /**
+     * Builds a load-shedding reply for an untagged request or a refused connection.
+     * @param retryAfterMillis - how long the client should wait before retrying
+     * @return JSONObject reply
+     */
+    public static JSONObject busy(long retryAfterMillis) {
+        JSONObject envelope = new JSONObject();
+        envelope.put(TYPE, BUSY);
+        envelope.put(RETRY_AFTER, retryAfterMillis);
+        return envelope;
+    }
+
+    /**
+     * Checks if a request is a version handshake.
+     * @param request - JSON request
+     * @return true if the request is a HELLO
+     */
+    public static boolean isHello(JSONObject request) {
+        return HELLO.equals(request.optString(ACTION));
+    }
+
+    /**
+     * Builds the HELLO a client opens the connection with.
+     * @param version - highest version the client supports
+     * @return JSONObject request
+     */
+    public static JSONObject hello(int version) {
+        JSONObject hello = new JSONObject();
+        hello.put(ACTION, HELLO);
+        hello.put(VERSION, version);
+        return hello;
+    }
+
+    /**
+     * Builds a HELLO that also names the client.
+     * @param version - highest version the client supports
+     * @param clientId - id the server schedules the client's requests under
+     * @return JSONObject request
+     */
+    public static JSONObject hello(int version, String clientId) {
+        JSONObject hello = hello(version);
+        hello.put(CLIENT_ID, clientId);
+        return hello;
+    }
+
+    /**
+     * Builds a HELLO that names the client and proves it with the key the server has for it.
+     * @param version - highest version the client supports
+     * @param clientId - id the server schedules the client's requests under
+     * @param clientKey - key configured for the client on the server
+     * @return JSONObject request
+     */
+    public static JSONObject hello(int version, String clientId, String clientKey) {
+        JSONObject hello = hello(version, clientId);
+        hello.put(CLIENT_KEY, clientKey);
+        return hello;
+    }
+
+    /**
+     * Answers a client HELLO with the highest version both sides support.
+     * @param request - HELLO request
+     * @return JSONObject reply
+     */
+    public static JSONObject helloReply(JSONObject request) {
+        int version = Math.max(LINE_VERSION, Math.min(FRAMED_VERSION, request.optInt(VERSION, LINE_VERSION)));
+
+        JSONObject reply = new JSONObject();
+        reply.put(TYPE, HELLO);
+        reply.put(VERSION, version);
+        return reply;
+    }
+
+    /**
+     * Appends the legacy "END" terminator to a response.
+     * @param text - response text
+     * @return text followed by an END line
+     */
+    public static String legacy(String text) {
+        return text + "\n" + END + "\n";
+    }
+}
@@ -0,0 +1,15 @@
+package controller;
+
+/**
+ * Whether the server can answer model requests yet, as reported by the HEALTH action.
+ * The server accepts connections right away and checks the backend's credentials in the background, so it
+ * starts out STARTING until that check is done.
+ */
+public enum Readiness {
+    // Credentials are still being checked with the backend
+    STARTING,
+    // The backend accepted the credentials, or answered a model call
+    READY,
+    // The backend rejected the credentials, or could not be reached and the check is being retried
+    UNAVAILABLE
+}
@@ -0,0 +1,10 @@
+package controller;
+
+/**
+ * Thrown when a request stops because it was cancelled, its client went away, or its deadline passed.
+ */
+public class RequestCancelledException extends RuntimeException {
+    public RequestCancelledException(String reason) {
+        super(reason);
+    }
+}
@@ -0,0 +1,49 @@
+package controller;
+
+import org.json.JSONObject;
+
+/**
+ * What the scheduler and the usage accounting need to know about the request a model call belongs to.
+ * @param clientId - client that sent the request
+ * @param action - action of the request, or of the step being run for requests with several model calls
+ * @param quality - quality level asked for, from 1 - 3
+ * @param strategy - name of the prompt strategy the prompt was built with, or NO_STRATEGY
+ * @param cancellation - cancelled when the request should stop
+ */
+public record RequestContext(String clientId, String action, int quality, String strategy,
+                             CancellationToken cancellation) {
+    public static final String ANONYMOUS = "anonymous";
+    public static final String NO_STRATEGY = "NONE";
+
+    public RequestContext(String clientId, String action) {
+        this(clientId, action, 1);
+    }
+
+    public RequestContext(String clientId, String action, int quality) {
+        this(clientId, action, quality, CancellationToken.withTimeout(0));
+    }
+
+    public RequestContext(String clientId, String action, int quality, CancellationToken cancellation) {
+        this(clientId, action, quality, NO_STRATEGY, cancellation);
+    }
+
+    /**
+     * Reads the context from a request stamped by the connection it arrived on.
+     * @param request - JSON request
+     * @param cancellation - token of the request
+     * @return RequestContext
+     */
+    public static RequestContext from(JSONObject request, CancellationToken cancellation) {
+        return new RequestContext(request.optString(Protocol.CLIENT_ID, ANONYMOUS), request.optString(Protocol.ACTION),
+                request.optInt(Protocol.QUALITY, 1), request.optString(Protocol.STRATEGY, NO_STRATEGY), cancellation);
+    }
+
+    /**
+     * Returns the same context for another step of the request.
+     * @param stepAction - action the step corresponds to
+     * @return RequestContext
+     */
+    public RequestContext withAction(String stepAction) {
+        return new RequestContext(clientId, stepAction, quality, strategy, cancellation);
+    }
+}
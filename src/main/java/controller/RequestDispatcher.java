@@ -0,0 +1,908 @@
+package controller;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import service.CircuitOpenException;
+import service.LLMService;
+import service.ModelUsage;
+import service.RuleBasedExtractor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Turns a request from a client into a response.
+ * Shared by the blocking ClientHandler and the NIO front end so both modes answer requests the same way.
+ */
+public class RequestDispatcher {
+    private final LLMService llmService;
+    private final Executor requestExecutor;
+    private final AdmissionController admissionController;
+    private final long defaultTimeoutMillis;
+    private final JobManager jobManager;
+    private final int batchConcurrency;
+    private final ExtractionMode defaultExtraction;
+    private final double minExtractionConfidence;
+    private final RuleBasedExtractor ruleExtractor = new RuleBasedExtractor();
+    private final AtomicLong ruleExtractions = new AtomicLong();
+    private final AtomicLong modelExtractions = new AtomicLong();
+    private final AtomicLong extractionFallbacks = new AtomicLong();
+    private final UsageStats usageStats;
+    private final ModelRouter modelRouter;
+    private final long startedAtNanos = System.nanoTime();
+    private volatile Readiness readiness = Readiness.STARTING;
+    private volatile String readinessMessage = "Checking credentials with the LLM backend";
+
+    /**
+     * @param llmService - backend used for model calls
+     * @param requestExecutor - runs requests that carry an id, concurrently with the rest of the connection
+     * @param admissionController - bounds the model calls in flight and waiting
+     * @param defaultTimeoutMillis - deadline of requests that do not ask for a shorter one, 0 for none
+     * @param jobManager - runs submitted jobs
+     * @param batchConcurrency - items of one BATCH_CREATE request worked on at once
+     * @param defaultExtraction - how stories are extracted when the request does not say
+     * @param minExtractionConfidence - confidence below which HYBRID extraction falls back to the model
+     * @param usageStats - totals every model call is added to
+     * @param modelRouter - picks the model each call is sent to
+     */
+    public RequestDispatcher(LLMService llmService, Executor requestExecutor, AdmissionController admissionController,
+                             long defaultTimeoutMillis, JobManager jobManager, int batchConcurrency,
+                             ExtractionMode defaultExtraction, double minExtractionConfidence, UsageStats usageStats,
+                             ModelRouter modelRouter) {
+        this.llmService = llmService;
+        this.requestExecutor = requestExecutor;
+        this.admissionController = admissionController;
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+        this.jobManager = jobManager;
+        this.batchConcurrency = Math.max(1, batchConcurrency);
+        this.defaultExtraction = defaultExtraction;
+        this.minExtractionConfidence = minExtractionConfidence;
+        this.usageStats = usageStats;
+        this.modelRouter = modelRouter;
+    }
+
+    /**
+     * Checks if a request wants a tagged, possibly out-of-order response.
+     * @param request - JSON request
+     * @return true if the request carries an id
+     */
+    public static boolean isTagged(JSONObject request) {
+        return request.has(Protocol.ID);
+    }
+
+    /**
+     * Handles an untagged request on the calling thread.
+     * @param request - JSON request
+     * @param framed - whether the connection uses frames, which already delimit the response
+     * @param inFlight - running requests of the connection
+     * @return response text (followed by the END line on the line protocol), or null if the action is unknown
+     */
+    public String handleLegacy(JSONObject request, boolean framed, InFlightRequests inFlight) {
+        CancellationToken cancellation = newCancellation(request);
+        Runnable untrack = inFlight.track(null, cancellation);
+
+        String response;
+        try {
+            if (isJobAction(request)) {
+                // An unknown or expired job is the client's mistake, answer it instead of dropping the connection
+                try {
+                    response = await(handleJob(request));
+                } catch (IllegalArgumentException | JSONException e) {
+                    response = Protocol.error(e.getMessage()).toString();
+                }
+            }
+            else {
+                checkRateLimit(request);
+                // Untagged requests have nowhere to send partial results, so they are answered in one piece
+                request.remove(Protocol.STREAM);
+                response = runCancellable(cancellation, () -> handleRequest(request, chunk -> {}, cancellation));
+            }
+        } catch (ServerBusyException e) {
+            response = Protocol.busy(e.getRetryAfterMillis()).toString();
+        } catch (RequestCancelledException e) {
+            response = Protocol.cancelled(e.getMessage()).toString();
+        } finally {
+            untrack.run();
+        }
+
+        if (response == null || framed) {
+            return response;
+        }
+        return Protocol.legacy(response);
+    }
+
+    /**
+     * Handles a tagged request on the request executor.
+     * The returned future always completes normally; failures are turned into ERROR, BUSY or CANCELLED
+     * envelopes. A cancelled request is answered right away, without waiting for its model call to unwind.
+     * @param request - JSON request with an id
+     * @param partials - receives CHUNK and ENTITIES envelopes sent before the final response of a streaming request
+     * @param inFlight - running requests of the connection, which a CANCEL can name this one from
+     * @return future of the response envelope
+     */
+    public CompletableFuture<JSONObject> submit(JSONObject request, Consumer<JSONObject> partials, InFlightRequests inFlight) {
+        long id = request.getLong(Protocol.ID);
+
+        // Job actions answer from the job manager without taking a request thread
+        if (isJobAction(request)) {
+            return handleJob(request)
+                    .thenApply(body -> Protocol.response(id, body))
+                    .exceptionally(e -> failureEnvelope(id, e));
+        }
+
+        try {
+            checkRateLimit(request);
+        } catch (ServerBusyException e) {
+            return CompletableFuture.completedFuture(Protocol.busy(id, e.getRetryAfterMillis()));
+        }
+
+        CancellationToken cancellation = newCancellation(request);
+        CompletableFuture<JSONObject> result = new CompletableFuture<>();
+
+        Runnable untrack = inFlight.track(id, cancellation);
+        Runnable stopAnswering = cancellation.onCancel(() -> result.complete(Protocol.cancelled(id, cancellation.getReason())));
+        result.whenComplete((envelope, e) -> {
+            stopAnswering.run();
+            untrack.run();
+        });
+
+        // Stop sending chunks once the request is cancelled, which also aborts a streaming model call
+        Consumer<String> onChunk = chunk -> {
+            cancellation.throwIfCancelled();
+            partials.accept(Protocol.chunk(id, chunk));
+        };
+        Consumer<String> onEntities = entities -> {
+            cancellation.throwIfCancelled();
+            partials.accept(Protocol.entities(id, entities));
+        };
+
+        try {
+            // Asynchronous actions only hold a request thread while they start their model calls
+            CompletableFuture<String> response = isAsyncAction(request)
+                    ? CompletableFuture
+                            .supplyAsync(() -> handleRequestAsync(request, onChunk, cancellation), requestExecutor)
+                            .thenCompose(started -> started)
+                    : CompletableFuture.supplyAsync(() -> runCancellable(cancellation,
+                            () -> handleRequest(request, onChunk, onEntities, cancellation)), requestExecutor);
+
+            response
+                    .thenApply(body -> body == null
+                            ? Protocol.error(id, "Unknown action: " + request.optString(Protocol.ACTION))
+                            : Protocol.response(id, body))
+                    .exceptionally(e -> failureEnvelope(id, e))
+                    .thenAccept(result::complete);
+        } catch (RejectedExecutionException e) {
+            // The request pool is full
+            result.complete(Protocol.busy(id, admissionController.retryAfterMillis()));
+        }
+
+        return result;
+    }
+
+    /**
+     * Turns a failed request into the envelope the client is answered with.
+     * @param id - id of the request
+     * @param e - what the request failed with, possibly wrapped by a CompletableFuture
+     * @return BUSY, CANCELLED or ERROR envelope
+     */
+    private static JSONObject failureEnvelope(long id, Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if (cause instanceof ServerBusyException busy) {
+            return Protocol.busy(id, busy.getRetryAfterMillis());
+        }
+        if (cause instanceof RequestCancelledException) {
+            return Protocol.cancelled(id, cause.getMessage());
+        }
+
+        System.err.println("Error handling request " + id + ": " + cause.getMessage());
+        return Protocol.error(id, cause.getMessage());
+    }
+
+    /**
+     * Charges the client's rate limit once for a request that calls the model, before it starts, so none of
+     * its model calls is turned away by the rate limit once it is running.
+     * @param request - JSON request stamped with its client
+     * @throws ServerBusyException if the client is over its rate limit
+     */
+    private void checkRateLimit(JSONObject request) {
+        switch (request.optString(Protocol.ACTION)) {
+            case "CREATE_STORY", "CREATE_STORY_STREAM", "EXTRACT_STORY", "CREATE_AND_EXTRACT", "BATCH_CREATE" ->
+                    admissionController.checkRateLimit(request.optString(Protocol.CLIENT_ID, RequestContext.ANONYMOUS));
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Checks if a request is about a job rather than work to do right away.
+     * @param request - JSON request
+     * @return true for SUBMIT, POLL and SUBSCRIBE
+     */
+    public static boolean isJobAction(JSONObject request) {
+        String action = request.optString(Protocol.ACTION);
+        return Protocol.SUBMIT.equals(action) || Protocol.POLL.equals(action) || Protocol.SUBSCRIBE.equals(action);
+    }
+
+    /**
+     * Handles a job action.
+     * SUBMIT answers with the new job's status at once, POLL with the current status, and SUBSCRIBE once the
+     * job has finished.
+     * @param request - SUBMIT, POLL or SUBSCRIBE request
+     * @return future of the job status JSON
+     */
+    private CompletableFuture<String> handleJob(JSONObject request) {
+        try {
+            switch (request.getString(Protocol.ACTION)) {
+                case Protocol.SUBMIT -> {
+                    // The job runs as the client that submitted it, whichever connection asks for it later
+                    String clientId = request.optString(Protocol.CLIENT_ID, RequestContext.ANONYMOUS);
+                    JSONObject job = request.getJSONObject(Protocol.JOB);
+                    job.put(Protocol.CLIENT_ID, clientId);
+                    // Results are only picked up through POLL and SUBSCRIBE, so there is nothing to stream to
+                    job.remove(Protocol.STREAM);
+                    checkRateLimit(job);
+
+                    JSONObject status = jobManager.submit(clientId, cancellation -> runCancellable(cancellation, () -> {
+                        String response = handleRequest(job, chunk -> {}, cancellation);
+                        if (response == null) {
+                            throw new IllegalArgumentException("Unknown action: " + job.optString(Protocol.ACTION));
+                        }
+                        return response;
+                    }));
+                    return CompletableFuture.completedFuture(status.toString());
+                }
+                case Protocol.POLL -> {
+                    JSONObject status = jobManager.poll(request.getString(Protocol.JOB_ID));
+                    if (status == null) {
+                        throw new IllegalArgumentException("Unknown job: " + request.getString(Protocol.JOB_ID));
+                    }
+                    return CompletableFuture.completedFuture(status.toString());
+                }
+                default -> {
+                    CompletableFuture<JSONObject> status = jobManager.subscribe(request.getString(Protocol.JOB_ID));
+                    if (status == null) {
+                        throw new IllegalArgumentException("Unknown job: " + request.getString(Protocol.JOB_ID));
+                    }
+                    return status.thenApply(JSONObject::toString);
+                }
+            }
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Waits for a future on the calling thread, rethrowing what it failed with.
+     */
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw e;
+        }
+    }
+
+    /**
+     * Stops a running tagged request of the connection.
+     * @param request - CANCEL request naming the request to stop
+     * @param inFlight - running requests of the connection
+     * @return reply saying whether the request was stopped, or null if the CANCEL itself is untagged
+     */
+    public JSONObject cancel(JSONObject request, InFlightRequests inFlight) {
+        boolean cancelled = inFlight.cancel(request.getLong(Protocol.REQUEST_ID), "Cancelled by client");
+        if (!isTagged(request)) {
+            return null;
+        }
+        return Protocol.response(request.getLong(Protocol.ID), String.valueOf(cancelled));
+    }
+
+    /**
+     * Answers a HEALTH request on the calling thread, so it gets through even when every request thread is
+     * busy or the request pool is full.
+     * @param request - HEALTH request, tagged or not
+     * @param framed - true if the connection uses length-prefixed frames
+     * @return reply to send
+     */
+    public String health(JSONObject request, boolean framed) {
+        String body = getHealth().toString();
+        if (isTagged(request)) {
+            return Protocol.response(request.getLong(Protocol.ID), body).toString();
+        }
+        return framed ? body : Protocol.legacy(body);
+    }
+
+    /**
+     * Handles a single JSON request. Streaming actions are answered in one piece.
+     * @param requestJSON - JSON request
+     * @return response text, or null if the action is unknown
+     */
+    public String handleRequest(JSONObject requestJSON) {
+        requestJSON.remove(Protocol.STREAM);
+        return handleRequest(requestJSON, chunk -> {}, newCancellation(requestJSON));
+    }
+
+    /**
+     * Handles a single JSON request.
+     * @param requestJSON - JSON request
+     * @param onChunk - receives partial text of streaming actions
+     * @param cancellation - cancelled when the request should stop
+     * @return response text, or null if the action is unknown
+     * @throws RequestCancelledException if the request is stopped while waiting for the model
+     */
+    public String handleRequest(JSONObject requestJSON, Consumer<String> onChunk, CancellationToken cancellation) {
+        return handleRequest(requestJSON, onChunk, entities -> {}, cancellation);
+    }
+
+    /**
+     * Handles a single JSON request, reporting the characters and locations found so far while a
+     * CREATE_AND_EXTRACT story streams in.
+     * @param requestJSON - JSON request
+     * @param onChunk - receives partial text of streaming actions
+     * @param onEntities - receives partial Story JSON of a streamed CREATE_AND_EXTRACT
+     * @param cancellation - cancelled when the request should stop
+     * @return response text, or null if the action is unknown
+     * @throws RequestCancelledException if the request is stopped while waiting for the model
+     */
+    public String handleRequest(JSONObject requestJSON, Consumer<String> onChunk, Consumer<String> onEntities,
+                                CancellationToken cancellation) {
+        String prompt = requestJSON.optString(Protocol.PROMPT);
+        RequestContext context = RequestContext.from(requestJSON, cancellation);
+        switch (context.action()) {
+            case "CREATE_STORY" -> {
+                return generateStory(context, prompt);
+            }
+            case "CREATE_STORY_STREAM" -> {
+                return callModel(context, llm -> cachedStream(llm, prompt, onChunk),
+                        llm -> llm.callStream(prompt, onChunk));
+            }
+            case "EXTRACT_STORY" -> {
+                return extractStory(context, prompt, extractionMode(requestJSON));
+            }
+            case "CREATE_AND_EXTRACT" -> {
+                if (requestJSON.optBoolean(Protocol.STREAM)) {
+                    return generateAndExtractStream(context, prompt, extractionMode(requestJSON), onChunk, onEntities);
+                }
+                return generateAndExtractStory(context, prompt, extractionMode(requestJSON));
+            }
+            case Protocol.STATS -> {
+                return getStats().toString();
+            }
+            case Protocol.HEALTH -> {
+                return getHealth().toString();
+            }
+            case "BATCH_CREATE" -> {
+                return await(generateBatch(context, requestJSON.getJSONArray(Protocol.ITEMS),
+                        extractionMode(requestJSON), requestJSON.optBoolean(Protocol.STREAM) ? onChunk : null));
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Checks if a request can be handled without a thread waiting for its model calls. Streaming actions
+     * read the model's output on a thread, so they cannot.
+     * @param request - JSON request
+     * @return true for CREATE_STORY, EXTRACT_STORY, BATCH_CREATE and unstreamed CREATE_AND_EXTRACT
+     */
+    public static boolean isAsyncAction(JSONObject request) {
+        return switch (request.optString(Protocol.ACTION)) {
+            case "CREATE_STORY", "EXTRACT_STORY", "BATCH_CREATE" -> true;
+            case "CREATE_AND_EXTRACT" -> !request.optBoolean(Protocol.STREAM);
+            default -> false;
+        };
+    }
+
+    /**
+     * Handles a request by composing asynchronous model calls, so no thread waits while they run.
+     * @param requestJSON - JSON request, for which isAsyncAction is true
+     * @param onChunk - receives each item of a streamed batch
+     * @param cancellation - cancelled when the request should stop
+     * @return future of the response text, or null if the action cannot be handled asynchronously
+     */
+    public CompletableFuture<String> handleRequestAsync(JSONObject requestJSON, Consumer<String> onChunk,
+                                                        CancellationToken cancellation) {
+        String prompt = requestJSON.optString(Protocol.PROMPT);
+        RequestContext context = RequestContext.from(requestJSON, cancellation);
+        switch (context.action()) {
+            case "CREATE_STORY" -> {
+                return generateStoryAsync(context, prompt);
+            }
+            case "EXTRACT_STORY" -> {
+                return extractStoryAsync(context, prompt, extractionMode(requestJSON));
+            }
+            case "CREATE_AND_EXTRACT" -> {
+                return generateAndExtractStoryAsync(context, prompt, extractionMode(requestJSON));
+            }
+            case "BATCH_CREATE" -> {
+                return generateBatch(context, requestJSON.getJSONArray(Protocol.ITEMS), extractionMode(requestJSON),
+                        requestJSON.optBoolean(Protocol.STREAM) ? onChunk : null);
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    private String generateStory(RequestContext context, String request) {
+        return callModel(context, llm -> llm.cachedCall(request), llm -> llm.call(request));
+    }
+
+    private CompletableFuture<String> generateStoryAsync(RequestContext context, String request) {
+        return callModelAsync(context, llm -> llm.cachedCall(request), llm -> llm.callAsync(request));
+    }
+
+    /**
+     * Generates a story and extracts it in one go, keeping the text on the server between the two model calls.
+     * @param context - request the calls belong to
+     * @param prompt - prompt to generate with
+     * @param extraction - how the story is extracted
+     * @return Story JSON with the story text included
+     */
+    private String generateAndExtractStory(RequestContext context, String prompt, ExtractionMode extraction) {
+        String storyText = generateStory(context, prompt);
+
+        // The extraction is short and the client is already waiting, so it is scheduled as one
+        JSONObject storyJSON = new JSONObject(extractStory(context.withAction("EXTRACT_STORY"), storyText, extraction));
+        storyJSON.put("story", storyText);
+        return storyJSON.toString();
+    }
+
+    /**
+     * Streams a story while extracting it sentence by sentence with the rule-based extractor, so the client
+     * sees characters and locations as they appear. When the rules are used for the result it is ready as
+     * soon as the last chunk arrives; otherwise the model extracts the finished story as usual.
+     * @param context - request the calls belong to
+     * @param prompt - prompt to generate with
+     * @param extraction - how the finished story is extracted
+     * @param onChunk - receives partial story text
+     * @param onEntities - receives partial Story JSON whenever the characters or locations found change
+     * @return Story JSON with the story text included
+     */
+    private String generateAndExtractStream(RequestContext context, String prompt, ExtractionMode extraction,
+                                            Consumer<String> onChunk, Consumer<String> onEntities) {
+        RuleBasedExtractor.Session session = ruleExtractor.newSession();
+        String[] lastSent = {null};
+        Consumer<String> sendEntities = entities -> {
+            if (!entities.equals(lastSent[0])) {
+                lastSent[0] = entities;
+                onEntities.accept(entities);
+            }
+        };
+
+        Consumer<String> onStoryChunk = chunk -> {
+            onChunk.accept(chunk);
+            if (!session.accept(chunk)) return;
+
+            RuleBasedExtractor.Extraction changed = session.snapshotIfChanged();
+            if (changed != null) sendEntities.accept(changed.json());
+        };
+        String storyText = callModel(context, llm -> cachedStream(llm, prompt, onStoryChunk),
+                llm -> llm.callStream(prompt, onStoryChunk));
+
+        RuleBasedExtractor.Extraction streamed = session.finish();
+        sendEntities.accept(streamed.json());
+
+        JSONObject storyJSON = new JSONObject(extractStory(context.withAction("EXTRACT_STORY"), storyText, extraction,
+                () -> streamed));
+        storyJSON.put("story", storyText);
+        return storyJSON.toString();
+    }
+
+    /**
+     * Asynchronous version of generateAndExtractStory, without streaming.
+     * @param context - request the calls belong to
+     * @param prompt - prompt to generate with
+     * @param extraction - how the story is extracted
+     * @return future of the Story JSON with the story text included
+     */
+    private CompletableFuture<String> generateAndExtractStoryAsync(RequestContext context, String prompt,
+                                                                   ExtractionMode extraction) {
+        return generateStoryAsync(context, prompt).thenCompose(storyText ->
+                extractStoryAsync(context.withAction("EXTRACT_STORY"), storyText, extraction).thenApply(extracted -> {
+                    JSONObject storyJSON = new JSONObject(extracted);
+                    storyJSON.put("story", storyText);
+                    return storyJSON.toString();
+                }));
+    }
+
+    /**
+     * Generates and extracts a story for every item of a batch, working on up to batchConcurrency items at
+     * once. An item that fails is reported on its own and does not stop the rest.
+     * @param context - batch request the calls belong to
+     * @param items - items with a "prompt" and optionally a "strategy", "quality" and "extractor"
+     * @param extraction - how items that do not name an extractor are extracted
+     * @param onItem - receives each item's result JSON as soon as it finishes, or null to only answer at the end
+     * @return JSON with the succeeded and failed counts, and the results in item order unless they were streamed
+     */
+    private CompletableFuture<String> generateBatch(RequestContext context, JSONArray items, ExtractionMode extraction,
+                                                    Consumer<String> onItem) {
+        JSONObject[] results = new JSONObject[items.length()];
+        AtomicInteger nextItem = new AtomicInteger();
+
+        // Each lane chains the next item onto the one it just finished until none are left
+        List<CompletableFuture<Void>> lanes = new ArrayList<>();
+        for (int i = 0; i < Math.min(batchConcurrency, results.length); i++) {
+            lanes.add(nextBatchItem(context, items, extraction, results, nextItem, onItem));
+        }
+
+        return CompletableFuture.allOf(lanes.toArray(new CompletableFuture[0])).thenApply(done -> {
+            context.cancellation().throwIfCancelled();
+
+            int succeeded = 0;
+            JSONArray resultArray = new JSONArray();
+            for (JSONObject result : results) {
+                if (!result.has("error")) succeeded++;
+                resultArray.put(result);
+            }
+
+            JSONObject batch = new JSONObject();
+            batch.put("succeeded", succeeded);
+            batch.put("failed", results.length - succeeded);
+            if (onItem == null) {
+                batch.put(Protocol.ITEMS, resultArray);
+            }
+            return batch.toString();
+        });
+    }
+
+    /**
+     * Takes the next item of a batch, if any are left, and chains the one after it onto its result.
+     * @return future completed once the lane has run out of items
+     */
+    private CompletableFuture<Void> nextBatchItem(RequestContext context, JSONArray items, ExtractionMode extraction,
+                                                  JSONObject[] results, AtomicInteger nextItem,
+                                                  Consumer<String> onItem) {
+        try {
+            while (true) {
+                int index = nextItem.getAndIncrement();
+                if (index >= results.length || context.cancellation().isCancelled()) {
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                CompletableFuture<JSONObject> item = generateBatchItem(context, index, items.getJSONObject(index),
+                        extraction);
+                if (!item.isDone() || item.isCompletedExceptionally()) {
+                    return item.thenCompose(result -> {
+                        results[index] = result;
+                        if (onItem != null) onItem.accept(result.toString());
+                        return nextBatchItem(context, items, extraction, results, nextItem, onItem);
+                    });
+                }
+
+                // Items answered right away, such as cache hits, are looped over rather than chained
+                results[index] = item.join();
+                if (onItem != null) onItem.accept(results[index].toString());
+            }
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Builds the prompt of a batch item with its strategy and quality, then generates and extracts its story.
+     * @return future of the JSON with the item's index and either its Story JSON or an error
+     */
+    private CompletableFuture<JSONObject> generateBatchItem(RequestContext context, int index, JSONObject item,
+                                                            ExtractionMode extraction) {
+        JSONObject result = new JSONObject();
+        result.put("index", index);
+
+        CompletableFuture<String> story;
+        try {
+            PromptStrategy strategy = PromptStrategy.fromName(item.optString(Protocol.STRATEGY, "NARRATIVE"));
+            GenerationEngine engine = new GenerationEngine(strategy);
+            engine.setQuality(item.optInt(Protocol.QUALITY, 1));
+            String prompt = engine.construct(item.getString(Protocol.PROMPT));
+
+            RequestContext itemContext = new RequestContext(context.clientId(), "CREATE_AND_EXTRACT",
+                    engine.getQuality(), strategy.getStrategyName(), context.cancellation());
+            story = generateAndExtractStoryAsync(itemContext, prompt, extractionMode(item, extraction));
+        } catch (RuntimeException e) {
+            story = CompletableFuture.failedFuture(e);
+        }
+
+        return story.handle((storyText, e) -> {
+            if (e == null) {
+                result.put("story", new JSONObject(storyText));
+                return result;
+            }
+
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof ServerBusyException busy) {
+                result.put("error", busy.getMessage());
+                result.put(Protocol.RETRY_AFTER, busy.getRetryAfterMillis());
+            }
+            else if (cause instanceof RequestCancelledException || context.cancellation().isCancelled()) {
+                throw new CompletionException(cause);
+            }
+            else {
+                result.put("error", String.valueOf(cause.getMessage()));
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Extracts a story the way the mode asks for. Rule-based extractions run right here, without taking a
+     * model slot.
+     * @param context - request the extraction belongs to
+     * @param story - story text
+     * @param extraction - how to extract it
+     * @return Story JSON text
+     */
+    public String extractStory(RequestContext context, String story, ExtractionMode extraction) {
+        return extractStory(context, story, extraction, () -> ruleExtractor.extract(story));
+    }
+
+    private String extractStory(RequestContext context, String story, ExtractionMode extraction,
+                                Supplier<RuleBasedExtractor.Extraction> rules) {
+        String extracted = extractWithRules(rules, extraction);
+        if (extracted != null) {
+            return extracted;
+        }
+
+        modelExtractions.incrementAndGet();
+        return callModel(context, llm -> llm.cachedExtraction(story), llm -> llm.extractStory(story));
+    }
+
+    /**
+     * Runs the rule-based extractor if the mode uses it.
+     * @param rules - runs the rule-based extractor
+     * @param extraction - how the story is extracted
+     * @return Story JSON text, or null if the model has to extract the story
+     */
+    private String extractWithRules(Supplier<RuleBasedExtractor.Extraction> rules, ExtractionMode extraction) {
+        if (extraction == ExtractionMode.LLM) {
+            return null;
+        }
+
+        RuleBasedExtractor.Extraction result = rules.get();
+        if (extraction == ExtractionMode.RULES || result.confidence() >= minExtractionConfidence) {
+            ruleExtractions.incrementAndGet();
+            return result.json();
+        }
+
+        extractionFallbacks.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Reads the extraction mode a request asks for.
+     * @param request - JSON request, or a batch item
+     * @return ExtractionMode
+     */
+    private ExtractionMode extractionMode(JSONObject request) {
+        return extractionMode(request, defaultExtraction);
+    }
+
+    private static ExtractionMode extractionMode(JSONObject request, ExtractionMode fallback) {
+        return ExtractionMode.fromName(request.optString(Protocol.EXTRACTOR), fallback);
+    }
+
+    /**
+     * Returns the usage of model calls by action, strategy, quality, client and model, along with the
+     * admission, extraction, model routing and job counters and those of the layers around the backend, such
+     * as the caches. This is the body of a STATS response.
+     * @return JSONObject of the stats
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("usage", usageStats.toJSON());
+        stats.put("admission", admissionController.getStats());
+        stats.put("extraction", getExtractionStats());
+        stats.put("routing", modelRouter.getStats());
+        stats.put("jobs", jobManager.getStats());
+        stats.put("layers", llmService.getLayerStats());
+        return stats;
+    }
+
+    /**
+     * Sets whether model requests can be answered yet, once the backend's credentials have been checked.
+     * @param readiness - new readiness
+     * @param message - what the check found, shown to HEALTH requests
+     */
+    public void setReadiness(Readiness readiness, String message) {
+        this.readinessMessage = message;
+        this.readiness = readiness;
+    }
+
+    public Readiness getReadiness() {
+        return readiness;
+    }
+
+    /**
+     * Returns the readiness of the server and how long it has been up. This is the body of a HEALTH response.
+     * It never waits on the model, so it answers while the credentials are still being checked.
+     * @return JSONObject of the health
+     */
+    public JSONObject getHealth() {
+        JSONObject health = new JSONObject();
+        health.put("status", readiness.name());
+        health.put("ready", readiness == Readiness.READY);
+        health.put("message", readinessMessage);
+        health.put("model", llmService.getModelName());
+        health.put("uptimeMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAtNanos));
+        return health;
+    }
+
+    /**
+     * Returns how many stories were extracted by the rules and by the model, and how many rule-based
+     * extractions were not confident enough and went to the model.
+     * @return JSONObject of the counters
+     */
+    public JSONObject getExtractionStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("rules", ruleExtractions.get());
+        stats.put("model", modelExtractions.get());
+        stats.put("fallbacks", extractionFallbacks.get());
+        return stats;
+    }
+
+    /**
+     * Runs a model call once the admission controller lets it through, and adds its usage to the stats.
+     * A response the caches already hold is returned without waiting for admission, since it takes no model
+     * slot.
+     * @param context - request the call belongs to
+     * @param cached - looks the call up in the caches of the backend, returning null if it is not there
+     * @param call - model call, made on a view of the backend that calls the routed model, records the
+     *             call's usage and retries or hedges only on the slots the call was admitted with
+     * @return result of the call
+     * @throws ServerBusyException if the server is too busy to take the call, the client is over its rate limit
+     * or the backend is failing
+     */
+    private String callModel(RequestContext context, Function<LLMService, String> cached,
+                             Function<LLMService, String> call) {
+        ModelUsage usage = new ModelUsage();
+        LLMService metered = routedService(context).withUsage(usage);
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            String result = cached.apply(metered);
+            if (result == null) {
+                result = admissionController.run(context, slots -> call.apply(metered.withSlots(slots)),
+                        () -> usage.getCalls() > 0);
+            }
+            failed = false;
+            return result;
+        } catch (CircuitOpenException e) {
+            throw new ServerBusyException(e.getRetryAfterMillis());
+        } finally {
+            recordCall(context, metered.getModelName(), usage, startNanos, failed);
+        }
+    }
+
+    /**
+     * Looks up a streaming call in the caches, passing a hit on as a single chunk like the cache layer does.
+     */
+    private static String cachedStream(LLMService llm, String prompt, Consumer<String> onChunk) {
+        String cached = llm.cachedCall(prompt);
+        if (cached != null) onChunk.accept(cached);
+        return cached;
+    }
+
+    /**
+     * Returns the backend, switched to the model the router picks for the call.
+     */
+    private LLMService routedService(RequestContext context) {
+        String model = modelRouter.route(context);
+        return model != null ? llmService.withModel(model) : llmService;
+    }
+
+    /**
+     * Adds a finished model call to the usage stats, and its latency to the router's view of its model.
+     */
+    private void recordCall(RequestContext context, String model, ModelUsage usage, long startNanos, boolean failed) {
+        usageStats.record(context, model, usage, System.nanoTime() - startNanos, failed);
+        if (usage.getCalls() > 0) {
+            modelRouter.record(model, usage.getModelNanos() / usage.getCalls() / 1_000_000);
+        }
+
+        // A model call that went through proves the backend works, whatever the credential check said
+        if (!failed && usage.getCalls() > 0 && readiness != Readiness.READY) {
+            setReadiness(Readiness.READY, "The LLM backend answered a model call");
+        }
+    }
+
+    private CompletableFuture<String> extractStoryAsync(RequestContext context, String story,
+                                                        ExtractionMode extraction) {
+        String extracted = extractWithRules(() -> ruleExtractor.extract(story), extraction);
+        if (extracted != null) {
+            return CompletableFuture.completedFuture(extracted);
+        }
+
+        modelExtractions.incrementAndGet();
+        return callModelAsync(context, llm -> llm.cachedExtraction(story), llm -> llm.extractStoryAsync(story));
+    }
+
+    /**
+     * Starts an asynchronous model call once the admission controller lets it through, or returns the response
+     * the caches already hold without admission.
+     * @param context - request the call belongs to
+     * @param cached - looks the call up in the caches of the backend, returning null if it is not there
+     * @param call - starts the model call on a view of the backend that calls the routed model and records
+     *             the call's usage
+     * @return future of the result, failed with a ServerBusyException like callModel
+     */
+    private CompletableFuture<String> callModelAsync(RequestContext context, Function<LLMService, String> cached,
+                                                     Function<LLMService, CompletableFuture<String>> call) {
+        ModelUsage usage = new ModelUsage();
+        LLMService metered = routedService(context).withUsage(usage);
+        long startNanos = System.nanoTime();
+
+        String hit = cached.apply(metered);
+        if (hit != null) {
+            recordCall(context, metered.getModelName(), usage, startNanos, false);
+            return CompletableFuture.completedFuture(hit);
+        }
+
+        CompletableFuture<String> result = admissionController.runAsync(context,
+                slots -> call.apply(metered.withSlots(slots)), () -> usage.getCalls() > 0);
+        result.whenComplete((response, e) -> recordCall(context, metered.getModelName(), usage, startNanos,
+                e != null));
+        return result.exceptionallyCompose(e -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof CircuitOpenException open) {
+                return CompletableFuture.failedFuture(new ServerBusyException(open.getRetryAfterMillis()));
+            }
+            return CompletableFuture.failedFuture(cause);
+        });
+    }
+
+    /**
+     * Creates the token of a request, with the deadline the request asks for if it is shorter than the default.
+     * @param request - JSON request
+     * @return CancellationToken
+     */
+    private CancellationToken newCancellation(JSONObject request) {
+        long timeout = request.optLong(Protocol.TIMEOUT, defaultTimeoutMillis);
+        if (defaultTimeoutMillis > 0 && (timeout <= 0 || timeout > defaultTimeoutMillis)) {
+            timeout = defaultTimeoutMillis;
+        }
+        return CancellationToken.withTimeout(timeout);
+    }
+
+    /**
+     * Runs work that is interrupted if the request is cancelled. Whatever the work fails with after the
+     * cancellation, the caller sees a RequestCancelledException.
+     * @param cancellation - token of the request
+     * @param work - work to run on the calling thread
+     * @return result of the work
+     */
+    private static <T> T runCancellable(CancellationToken cancellation, Supplier<T> work) {
+        Runnable stopInterrupting = cancellation.onCancel(Thread.currentThread()::interrupt);
+        try {
+            return work.get();
+        } catch (RuntimeException e) {
+            if (cancellation.isCancelled()) {
+                throw new RequestCancelledException(cancellation.getReason());
+            }
+            throw e;
+        } finally {
+            // Pooled threads are reused, so do not leave an interrupt behind for the next task
+            stopInterrupting.run();
+            Thread.interrupted();
+        }
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    public JobManager getJobManager() {
+        return jobManager;
+    }
+}
@@ -0,0 +1,18 @@
+package controller;
+
+/**
+ * Thrown when the server turns a request away because it is overloaded.
+ * Carries a hint of how long the client should wait before trying again.
+ */
+public class ServerBusyException extends RuntimeException {
+    private final long retryAfterMillis;
+
+    public ServerBusyException(long retryAfterMillis) {
+        super("Server is busy, retry after " + retryAfterMillis + " ms");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
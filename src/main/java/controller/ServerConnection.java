@@ -2,66 +2,428 @@ package controller;
 
 import config.Config;
 import model.Story;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 public class ServerConnection {
     private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private MessageStream stream;
+
+    // Requests waiting for a response, by request id
+    private final Map<Long, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestId = new AtomicLong(1);
+
+    // Name the server schedules this client's requests under, and the key that proves it
+    private final String clientId;
+    private final String clientKey;
+
+    /**
+     * Creates a connection the server knows by its address.
+     */
+    public ServerConnection() {
+        this(null, null);
+    }
+
+    /**
+     * @param clientId - name the server schedules this client's requests under, or null to be known by address
+     * @param clientKey - key the server has configured for the client; without the right one the server
+     *                  ignores the name and knows the client by its address
+     */
+    public ServerConnection(String clientId, String clientKey) {
+        this.clientId = clientId;
+        this.clientKey = clientKey;
+    }
 
     public void connect() throws IOException {
-        socket = new Socket(Config.SERVER_HOST, Config.SERVER_PORT);
-        out = new PrintWriter(socket.getOutputStream(), true);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        connect(Config.SERVER_HOST, Config.SERVER_PORT);
+    }
+
+    public void connect(String host, int port) throws IOException {
+        openStream(host, port);
+
+        // Ask for framed messages. Every request this client sends is tagged, so a server from before
+        // tagged requests, which drops the connection on a HELLO, cannot be talked to at all.
+        stream.write(Protocol.hello(Protocol.FRAMED_VERSION, clientId, clientKey).toString());
+        String reply = stream.read();
+        if (reply == null) {
+            socket.close();
+            throw new IOException("Server closed the connection on HELLO, it does not support tagged requests");
+        }
+
+        JSONObject replyJSON = new JSONObject(reply);
+        if (Protocol.BUSY.equals(replyJSON.optString(Protocol.TYPE))) {
+            socket.close();
+            ServerBusyException busy = new ServerBusyException(replyJSON.getLong(Protocol.RETRY_AFTER));
+            throw new IOException(busy.getMessage(), busy);
+        }
+        if (replyJSON.getInt(Protocol.VERSION) == Protocol.FRAMED_VERSION) {
+            stream.switchToFramed();
+        }
+
+        // Responses can arrive in any order, so a single reader routes them to their requests
+        Thread reader = new Thread(this::readResponses, "server-connection-reader");
+        reader.setDaemon(true);
+        reader.start();
+
         System.out.println("Connected to a server.");
     }
 
+    public String getClientId() {
+        return clientId;
+    }
+
+    private void openStream(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        stream = new MessageStream(socket.getInputStream(), socket.getOutputStream());
+    }
+
     // TODO: Add expected methods here
     public String createStory(String prompt) throws IOException {
+        return await(createStoryAsync(prompt));
+    }
+
+    public CompletableFuture<String> createStoryAsync(String prompt) {
+        JSONObject request = new JSONObject();
+        request.put(Protocol.ACTION, "CREATE_STORY");
+        request.put(Protocol.PROMPT, prompt);
+
+        return sendRequestAsync(request);
+    }
+
+    /**
+     * Generates a story, passing the text along as the server streams it.
+     * @param prompt - prompt to generate with
+     * @param onChunk - receives each piece of text as it arrives, on the connection's reader thread
+     * @return future of the full story text
+     */
+    public CompletableFuture<String> createStoryStream(String prompt, Consumer<String> onChunk) {
+        JSONObject request = new JSONObject();
+        request.put(Protocol.ACTION, "CREATE_STORY_STREAM");
+        request.put(Protocol.PROMPT, prompt);
+
+        return sendRequestAsync(request, onChunk);
+    }
+
+    /**
+     * Generates a story and extracts it on the server in a single round trip.
+     * @param prompt - prompt to generate with
+     * @return future of the extracted Story, with its text set
+     */
+    public CompletableFuture<Story> createAndExtractStory(String prompt) {
+        return createAndExtractStory(prompt, null);
+    }
+
+    /**
+     * Generates a story and extracts it on the server in a single round trip.
+     * @param prompt - prompt to generate with
+     * @param onChunk - receives story text as the server streams it, or null to skip streaming
+     * @return future of the extracted Story, with its text set
+     */
+    public CompletableFuture<Story> createAndExtractStory(String prompt, Consumer<String> onChunk) {
+        return createAndExtractStory(prompt, 1, onChunk);
+    }
+
+    /**
+     * Generates a story and extracts it on the server in a single round trip.
+     * @param prompt - prompt to generate with
+     * @param quality - quality level the prompt was built for, from 1 - 3, which the server schedules by
+     * @param onChunk - receives story text as the server streams it, or null to skip streaming
+     * @return future of the extracted Story, with its text set
+     */
+    public CompletableFuture<Story> createAndExtractStory(String prompt, int quality, Consumer<String> onChunk) {
+        return createAndExtractStory(prompt, null, quality, onChunk, null);
+    }
+
+    /**
+     * Generates a story and extracts it on the server in a single round trip, receiving the characters and
+     * locations found so far while the story streams in.
+     * @param prompt - prompt to generate with
+     * @param strategy - name of the strategy the prompt was built with, which the server's usage stats are
+     *                 broken down by, or null
+     * @param quality - quality level the prompt was built for, from 1 - 3, which the server schedules by
+     * @param onChunk - receives story text as the server streams it, or null to skip streaming
+     * @param onEntities - receives a partial Story, without its text, whenever the server finds new characters
+     *                   or locations; or null to ignore them. Only sent while streaming.
+     * @return future of the extracted Story, with its text set
+     */
+    public CompletableFuture<Story> createAndExtractStory(String prompt, String strategy, int quality,
+                                                         Consumer<String> onChunk, Consumer<Story> onEntities) {
+        JSONObject request = new JSONObject();
+        request.put(Protocol.ACTION, "CREATE_AND_EXTRACT");
+        request.put(Protocol.PROMPT, prompt);
+        request.put(Protocol.QUALITY, quality);
+        if (strategy != null) request.put(Protocol.STRATEGY, strategy);
+        request.put(Protocol.STREAM, onChunk != null);
+
+        Consumer<String> onStoryJSON = onEntities != null
+                ? entities -> onEntities.accept(Story.fromJSON(new JSONObject(entities)))
+                : entities -> {};
+        CompletableFuture<String> response = sendRequestAsync(request, onChunk != null ? onChunk : chunk -> {},
+                onStoryJSON);
+        CompletableFuture<Story> story = response.thenApply(text -> Story.fromJSON(new JSONObject(text)));
+
+        // Cancelling the story cancels the request on the server as well
+        story.whenComplete((result, e) -> {
+            if (e instanceof CancellationException) response.cancel(true);
+        });
+        return story;
+    }
+
+    /**
+     * Generates and extracts a story for each item in one request.
+     * @param items - items with a "prompt", and optionally a "strategy" (such as "NARRATIVE") and a "quality"
+     * @param onItem - receives each item's result as soon as it finishes: its "index" and either its "story"
+     *               or an "error"; or null to get all results in the final response instead
+     * @return future of the batch summary with the "succeeded" and "failed" counts
+     */
+    public CompletableFuture<JSONObject> createBatch(JSONArray items, Consumer<JSONObject> onItem) {
+        JSONObject request = new JSONObject();
+        request.put(Protocol.ACTION, "BATCH_CREATE");
+        request.put(Protocol.ITEMS, items);
+        request.put(Protocol.STREAM, onItem != null);
+
+        Consumer<String> onChunk = onItem != null ? chunk -> onItem.accept(new JSONObject(chunk)) : chunk -> {};
+        return sendRequestAsync(request, onChunk).thenApply(JSONObject::new);
+    }
+
+    /**
+     * Submits a request as a background job. The job keeps running if this connection closes.
+     * @param job - request to run, such as a CREATE_AND_EXTRACT request
+     * @return future of the job id
+     */
+    public CompletableFuture<String> submitJob(JSONObject job) {
+        JSONObject request = new JSONObject();
+        request.put(Protocol.ACTION, Protocol.SUBMIT);
+        request.put(Protocol.JOB, job);
+
+        return sendRequestAsync(request).thenApply(status -> new JSONObject(status).getString(Protocol.JOB_ID));
+    }
+
+    /**
+     * Asks for the status of a job, which includes its "result" or "error" once it has finished.
+     * @param jobId - id of the job, possibly submitted on an earlier connection
+     * @return future of the job status
+     */
+    public CompletableFuture<JSONObject> pollJob(String jobId) {
+        return sendJobRequest(Protocol.POLL, jobId);
+    }
+
+    /**
+     * Waits for a job to finish.
+     * @param jobId - id of the job, possibly submitted on an earlier connection
+     * @return future of the final job status
+     */
+    public CompletableFuture<JSONObject> subscribeJob(String jobId) {
+        return sendJobRequest(Protocol.SUBSCRIBE, jobId);
+    }
+
+    /**
+     * Asks for the server's stats: token, latency and cost totals of model calls by action, strategy, quality
+     * and client, along with its admission and extraction counters and those of its caches.
+     * @return future of the stats
+     */
+    public CompletableFuture<JSONObject> getStats() {
+        JSONObject request = new JSONObject();
+        request.put(Protocol.ACTION, Protocol.STATS);
+
+        return sendRequestAsync(request).thenApply(JSONObject::new);
+    }
+
+    /**
+     * Asks whether the server is ready for model requests. The server answers at once, even while it is still
+     * checking its credentials with the LLM backend.
+     * @return future of the health, with "status" STARTING, READY or UNAVAILABLE
+     */
+    public CompletableFuture<JSONObject> getHealth() {
         JSONObject request = new JSONObject();
-        request.put("action", "CREATE_STORY");
-        request.put("prompt", prompt);
+        request.put(Protocol.ACTION, Protocol.HEALTH);
 
-        return sendRequest(request);
+        return sendRequestAsync(request).thenApply(JSONObject::new);
+    }
+
+    private CompletableFuture<JSONObject> sendJobRequest(String action, String jobId) {
+        JSONObject request = new JSONObject();
+        request.put(Protocol.ACTION, action);
+        request.put(Protocol.JOB_ID, jobId);
+
+        return sendRequestAsync(request).thenApply(JSONObject::new);
     }
 
     public JSONObject extractJSONfromStory(String storyText) throws IOException{
+        return await(extractJSONfromStoryAsync(storyText));
+    }
+
+    public CompletableFuture<JSONObject> extractJSONfromStoryAsync(String storyText) {
         JSONObject request = new JSONObject();
-        request.put("action", "EXTRACT_STORY");
-        request.put("prompt", storyText);
+        request.put(Protocol.ACTION, "EXTRACT_STORY");
+        request.put(Protocol.PROMPT, storyText);
 
-        String response = sendRequest(request);
-        return new JSONObject(response);
+        return sendRequestAsync(request).thenApply(JSONObject::new);
     }
 
     public String sendRequest(JSONObject request) throws IOException {
-        // Send request
-        out.println(request.toString());
+        return await(sendRequestAsync(request));
+    }
 
-        // Receive response
-        StringBuilder sb = new StringBuilder();
-        String line;
-        String response;
+    /**
+     * Sends a request without waiting for its response. Many requests can be in flight at once.
+     * @param request - JSON request, an id is added to it
+     * @return future of the response text
+     */
+    public CompletableFuture<String> sendRequestAsync(JSONObject request) {
+        return sendRequestAsync(request, chunk -> {});
+    }
+
+    /**
+     * Sends a request without waiting for its response. Many requests can be in flight at once.
+     * Cancelling the returned future sends a CANCEL, so the server stops working on the request.
+     * @param request - JSON request, an id is added to it
+     * @param onChunk - receives partial text if the server streams the response
+     * @return future of the response text
+     */
+    public CompletableFuture<String> sendRequestAsync(JSONObject request, Consumer<String> onChunk) {
+        return sendRequestAsync(request, onChunk, entities -> {});
+    }
 
-        while (!(line = in.readLine()).equals("END")) {
-            sb.append(line).append("\n");
+    private CompletableFuture<String> sendRequestAsync(JSONObject request, Consumer<String> onChunk,
+                                                       Consumer<String> onEntities) {
+        long id = nextRequestId.getAndIncrement();
+        PendingRequest pending = new PendingRequest(new CompletableFuture<>(), onChunk, onEntities);
+        pendingRequests.put(id, pending);
+        pending.future().whenComplete((response, e) -> {
+            if (e instanceof CancellationException && pendingRequests.remove(id) != null) {
+                sendCancel(id);
+            }
+        });
+
+        request.put(Protocol.ID, id);
+        try {
+            stream.write(request.toString());
+        } catch (IOException e) {
+            pendingRequests.remove(id);
+            pending.future().completeExceptionally(e);
+        }
+
+        return pending.future();
+    }
+
+    private void sendCancel(long id) {
+        try {
+            stream.write(Protocol.cancel(id).toString());
+        } catch (IOException e) {
+            System.err.println("Error cancelling request " + id + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads response envelopes until the connection closes and completes the matching requests.
+     */
+    private void readResponses() {
+        try {
+            String message;
+            while ((message = stream.read()) != null) {
+                JSONObject envelope = new JSONObject(message);
+                long id = envelope.getLong(Protocol.ID);
+
+                switch (envelope.getString(Protocol.TYPE)) {
+                    case Protocol.CHUNK -> {
+                        PendingRequest pending = pendingRequests.get(id);
+                        if (pending != null) deliver(id, pending, pending.onChunk(), envelope.getString(Protocol.BODY));
+                    }
+                    case Protocol.ENTITIES -> {
+                        PendingRequest pending = pendingRequests.get(id);
+                        if (pending != null) {
+                            deliver(id, pending, pending.onEntities(), envelope.getString(Protocol.BODY));
+                        }
+                    }
+                    case Protocol.BUSY -> {
+                        PendingRequest pending = pendingRequests.remove(id);
+                        if (pending != null) {
+                            pending.future().completeExceptionally(
+                                    new ServerBusyException(envelope.getLong(Protocol.RETRY_AFTER)));
+                        }
+                    }
+                    case Protocol.CANCELLED -> {
+                        PendingRequest pending = pendingRequests.remove(id);
+                        if (pending != null) {
+                            pending.future().completeExceptionally(
+                                    new RequestCancelledException(envelope.getString(Protocol.MESSAGE)));
+                        }
+                    }
+                    case Protocol.ERROR -> {
+                        PendingRequest pending = pendingRequests.remove(id);
+                        if (pending != null) {
+                            pending.future().completeExceptionally(new IOException(envelope.getString(Protocol.MESSAGE)));
+                        }
+                    }
+                    default -> {
+                        PendingRequest pending = pendingRequests.remove(id);
+                        if (pending != null) pending.future().complete(envelope.getString(Protocol.BODY));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            if (isConnected()) {
+                System.err.println("Error reading from server: " + e.getMessage());
+            }
+        } finally {
+            failPendingRequests();
         }
+    }
 
-        response = sb.toString();
+    /**
+     * Passes a streamed message to a request's callback. A callback that throws fails its own request, which
+     * is cancelled on the server, instead of the reader every request on the connection depends on.
+     */
+    private void deliver(long id, PendingRequest pending, Consumer<String> callback, String body) {
+        try {
+            callback.accept(body);
+        } catch (RuntimeException e) {
+            if (pendingRequests.remove(id, pending)) {
+                pending.future().completeExceptionally(e);
+                sendCancel(id);
+            }
+        }
+    }
 
-        return response;
+    private void failPendingRequests() {
+        IOException closed = new IOException("Connection to server closed");
+        for (Long id : pendingRequests.keySet()) {
+            PendingRequest pending = pendingRequests.remove(id);
+            if (pending != null) pending.future().completeExceptionally(closed);
+        }
+    }
+
+    /**
+     * Waits for a response, unwrapping failures into IOExceptions.
+     * A BUSY reply surfaces as an IOException caused by a ServerBusyException with the retry-after hint.
+     */
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) throw ioException;
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the server", e);
+        }
     }
 
     public void disconnect() {
         try {
-            if (in != null) in.close();
-            if (out != null) out.close();
+            if (stream != null) stream.close();
             if (socket != null) socket.close();
             System.out.println("Disconnected from server");
         } catch (IOException e) {
@@ -72,4 +434,10 @@ public class ServerConnection {
     public boolean isConnected() {
         return socket != null && socket.isConnected() && !socket.isClosed();
     }
+
+    /**
+     * A request waiting for its response.
+     */
+    private record PendingRequest(CompletableFuture<String> future, Consumer<String> onChunk,
+                                  Consumer<String> onEntities) {}
 }
@@ -0,0 +1,13 @@
+package controller;
+
+/**
+ * How the server accepts and runs client connections.
+ */
+public enum ServerMode {
+    // One blocking ClientHandler per connection on a fixed thread pool
+    POOL,
+    // Selector-based front end that hands complete requests to the worker pool
+    NIO,
+    // One virtual thread per connection, model calls bounded by the admission controller instead of a thread cap
+    VIRTUAL
+}
@@ -1,56 +1,128 @@
 package controller;
 
 import config.Config;
-import service.GeminiAPIService;
+import service.LLMService;
+import service.LLMServiceFactory;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class StoryGeneratorServer {
+    private static final long AUTH_RETRY_BASE_MS = 1000;
+    private static final long AUTH_RETRY_MAX_MS = 60000;
+
     private final int port;
-    private final GeminiAPIService geminiAPI;
+    private final ServerMode mode;
+    private final LLMService llmService;
+    private final RequestDispatcher dispatcher;
+    private final ClientAuthenticator authenticator;
     private final ExecutorService threadPool;
+    private final ExecutorService requestPool;
+    private NioFrontEnd nioFrontEnd;
     private volatile boolean running;
 
     public StoryGeneratorServer(int port) {
+        this(port, ServerMode.valueOf(Config.SERVER_MODE));
+    }
+
+    public StoryGeneratorServer(int port, ServerMode mode) {
+        this(port, mode, LLMServiceFactory.fromConfig());
+    }
+
+    /**
+     * @param port - port to listen on
+     * @param mode - how connections are accepted and run
+     * @param llmService - backend used for model calls
+     */
+    public StoryGeneratorServer(int port, ServerMode mode, LLMService llmService) {
         this.port = port;
-        this.geminiAPI = new GeminiAPIService();
-        this.threadPool = Executors.newFixedThreadPool(10);
+        this.mode = mode;
+        this.llmService = llmService;
+
+        ConcurrencyLimit limit = ConcurrencyLimit.create(Config.CONCURRENCY_LIMIT,
+                Config.INITIAL_CONCURRENT_MODEL_CALLS, Config.MIN_CONCURRENT_MODEL_CALLS,
+                Config.MAX_CONCURRENT_MODEL_CALLS);
+        AdmissionController admissionController = new AdmissionController(limit,
+                Config.ADMISSION_QUEUE_DEPTH, Config.ADMISSION_MAX_WAIT_MS,
+                WaitQueue.create(Config.SCHEDULER_POLICY, Config.CLIENT_WEIGHTS, Config.PRIORITY_AGING_MS),
+                Config.RATE_LIMIT_PER_MINUTE, Config.RATE_LIMIT_BURST,
+                e -> e instanceof RuntimeException failure && llmService.isThrottled(failure));
+
+        // Requests wait for the model in the admission queue, which decides who goes next. A request pool
+        // that queued requests itself would serve them first come first served before they got there.
+        int maxRequests = Config.MAX_CONCURRENT_MODEL_CALLS + Config.ADMISSION_QUEUE_DEPTH;
+
+        switch (mode) {
+            case VIRTUAL -> {
+                // Threads are cheap, so the model itself is what gets bounded
+                this.threadPool = Executors.newVirtualThreadPerTaskExecutor();
+                this.requestPool = threadPool;
+            }
+            case NIO -> {
+                // Reactors never block, so the worker pool also runs tagged requests
+                this.threadPool = newElasticPool(maxRequests);
+                this.requestPool = threadPool;
+            }
+            default -> {
+                // Handlers block on their sockets, so tagged requests need their own pool
+                this.threadPool = newBoundedPool(10, Config.ADMISSION_QUEUE_DEPTH);
+                this.requestPool = newElasticPool(maxRequests);
+            }
+        }
+        this.dispatcher = new RequestDispatcher(llmService, requestPool, admissionController, Config.REQUEST_TIMEOUT_MS,
+                new JobManager(Config.JOB_WORKERS, Config.JOB_QUEUE_DEPTH,
+                        TimeUnit.MINUTES.toMillis(Config.JOB_RETENTION_MINUTES), Config.JOB_TIMEOUT_MS),
+                Config.BATCH_CONCURRENCY, ExtractionMode.fromName(Config.EXTRACTION_ENGINE, ExtractionMode.LLM),
+                Config.EXTRACTION_MIN_CONFIDENCE,
+                new UsageStats(Config.MODEL_INPUT_PRICE_PER_MILLION, Config.MODEL_OUTPUT_PRICE_PER_MILLION),
+                new ModelRouter(Config.MODEL_TIERS, Config.MODEL_ROUTES));
+        this.authenticator = new ClientAuthenticator(Config.CLIENT_KEYS);
         this.running = false;
     }
 
     /**
-     * Starts the server.
+     * Starts the server. Connections are accepted right away, while the credentials of the LLM backend are
+     * checked in the background; HEALTH requests report when the server is ready.
      * @throws IOException
      */
     public void start() throws IOException {
-        // Authenticate with Gemini API
-        System.out.println("Authenticating with Gemini API...");
-        if (geminiAPI.authenticate()) {
-            System.out.println("Successfully authenticated with Gemini API");
-        }
-        else {
-            System.err.println("Error in authenticating with Gemini API");
-            shutdown();
-        }
-
         running = true;
 
+        if (mode == ServerMode.NIO) {
+            // The front end binds as it starts, well before the credentials have been checked
+            authenticateInBackground();
+            startNio();
+            return;
+        }
+
         // Create server socket and listen for client connections
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             System.out.println("Story Generation Server started on port " + port);
+            authenticateInBackground();
             System.out.println("Waiting for client connection...");
 
             while (running) {
                 // Accept incoming client connections
                 Socket clientSocket = serverSocket.accept();
 
-                // Handle client in separate thread from pool
-                ClientHandler handler = new ClientHandler(clientSocket, geminiAPI);
-                threadPool.execute(handler);
+                // Handle client in separate thread from pool (or its own virtual thread)
+                ClientHandler handler = new ClientHandler(clientSocket, dispatcher, authenticator);
+                try {
+                    threadPool.execute(handler);
+                } catch (RejectedExecutionException e) {
+                    rejectConnection(clientSocket);
+                }
             }
         } catch (IOException e) {
             System.err.println("Server error: " + e.getMessage());
@@ -60,34 +132,138 @@ public class StoryGeneratorServer {
         }
     }
 
+    /**
+     * Checks the credentials of the LLM backend on another thread and records the outcome in the dispatcher.
+     * The server keeps running if the check fails, so HEALTH can tell clients why model requests fail.
+     */
+    private void authenticateInBackground() {
+        System.out.println("Authenticating with LLM backend...");
+        authenticate(1);
+    }
+
+    /**
+     * Makes one attempt to check the credentials of the LLM backend. A failure that may pass, such as a
+     * timeout or a backend that cannot be reached, is tried again after a delay that doubles every attempt,
+     * until the check passes, a model call goes through or the server stops. Credentials the backend rejects,
+     * whether the check fails for good or returns false, are not tried again.
+     * @param attempt - number of this attempt, from 1
+     */
+    private void authenticate(int attempt) {
+        if (!running || dispatcher.getReadiness() == Readiness.READY) return;
+
+        CompletableFuture<Boolean> check;
+        try {
+            check = CompletableFuture.supplyAsync(llmService::authenticate, requestPool);
+        } catch (RejectedExecutionException e) {
+            // The server is shutting down
+            return;
+        }
+
+        check.whenComplete((authenticated, e) -> {
+            if (e == null && authenticated) {
+                System.out.println("Successfully authenticated with LLM backend");
+                dispatcher.setReadiness(Readiness.READY, "Authenticated with the LLM backend");
+                return;
+            }
+            if (e == null) {
+                System.err.println("LLM backend rejected the credentials");
+                dispatcher.setReadiness(Readiness.UNAVAILABLE, "The LLM backend rejected the credentials");
+                return;
+            }
+
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            String reason = cause.getMessage();
+            if (cause instanceof RuntimeException failure && !llmService.isRetryable(failure)) {
+                System.err.println("LLM backend rejected the credentials: " + reason);
+                dispatcher.setReadiness(Readiness.UNAVAILABLE, "The LLM backend rejected the credentials: "
+                        + reason);
+                return;
+            }
+
+            long delay = Math.min(AUTH_RETRY_MAX_MS, AUTH_RETRY_BASE_MS << Math.min(attempt - 1, 16));
+            System.err.println("Error in authenticating with LLM backend: " + reason + ", retrying in " + delay
+                    + " ms");
+            dispatcher.setReadiness(Readiness.UNAVAILABLE, "Could not authenticate with the LLM backend, retrying: "
+                    + reason);
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> authenticate(attempt + 1));
+        });
+    }
+
+    /**
+     * Creates a fixed thread pool whose work queue is bounded, so overflow is rejected instead of piling up.
+     * @param threads - number of threads
+     * @param queueDepth - number of tasks allowed to wait for a thread
+     * @return ExecutorService
+     */
+    private static ExecutorService newBoundedPool(int threads, int queueDepth) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueDepth));
+    }
+
+    /**
+     * Creates a pool that starts a thread for every task up to a limit and rejects the rest without queueing.
+     * Idle threads are let go after a minute.
+     * @param maxThreads - most threads the pool may run
+     * @return ExecutorService
+     */
+    private static ExecutorService newElasticPool(int maxThreads) {
+        return new ThreadPoolExecutor(0, maxThreads, 60L, TimeUnit.SECONDS, new SynchronousQueue<>());
+    }
+
+    /**
+     * Tells a client there is no room for its connection and closes it.
+     * @param clientSocket - connection that was turned away
+     */
+    private void rejectConnection(Socket clientSocket) {
+        long retryAfter = dispatcher.getAdmissionController().retryAfterMillis();
+        System.err.println("Server busy, rejected client: " + clientSocket.getInetAddress());
+
+        try (clientSocket; PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
+            out.println(Protocol.busy(retryAfter));
+        } catch (IOException e) {
+            System.err.println("Error rejecting client: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Starts the selector-based front end. Connections are multiplexed on a few I/O threads and only
+     * complete requests are handed to the thread pool.
+     * @throws IOException
+     */
+    private void startNio() throws IOException {
+        nioFrontEnd = new NioFrontEnd(port, dispatcher, authenticator, threadPool, Config.NIO_IO_THREADS);
+        try {
+            nioFrontEnd.start();
+        } catch (IOException e) {
+            System.err.println("Server error: " + e.getMessage());
+            throw e;
+        } finally {
+            shutdown();
+        }
+    }
+
     /**
      * Turns off the server.
      */
     public void shutdown() {
         running = false;
+        if (nioFrontEnd != null) nioFrontEnd.stop();
         threadPool.shutdown();
+        requestPool.shutdown();
+        dispatcher.getJobManager().shutdown();
+        llmService.shutdown();
 
         // TODO: Close APIs here
         System.out.println("Server shutdown complete");
     }
 
     /**
-     * Checks if the server can run.
+     * Checks if the server can run, by binding its port. It does not wait on the LLM backend, whose
+     * credentials the server checks in the background once started.
      * @return true if the server can run, otherwise false.
      */
     public boolean testRun() throws IOException {
         boolean canRun;
-
-        // Authenticate with Gemini API
-        System.out.println("Authenticating with Gemini API...");
-        if (geminiAPI.authenticate()) {
-            System.out.println("Successfully authenticated with Gemini API");
-        }
-        else {
-            System.err.println("Error in authenticating with Gemini API");
-            shutdown();
-        }
-
         running = true;
 
         // Create server socket and listen for client connections
@@ -104,6 +280,14 @@ public class StoryGeneratorServer {
         return canRun;
     }
 
+    /**
+     * Returns whether the server can answer model requests yet.
+     * @return Readiness
+     */
+    public Readiness getReadiness() {
+        return dispatcher.getReadiness();
+    }
+
     /**
      * Checks if the server is currently running.
      * @return boolean
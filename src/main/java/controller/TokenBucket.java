@@ -0,0 +1,53 @@
+package controller;
+
+/**
+ * Token bucket rate limiter for one client.
+ * Holds up to capacity tokens and refills at a steady rate. Each admitted request takes one token, however
+ * many model calls it makes; retries and hedges of a call take none.
+ */
+public class TokenBucket {
+    private final double capacity;
+    private final double refillPerMilli;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param capacity - largest burst allowed
+     * @param refillPerMinute - tokens added per minute
+     */
+    public TokenBucket(double capacity, double refillPerMinute) {
+        this.capacity = capacity;
+        this.refillPerMilli = refillPerMinute / 60000.0;
+        this.tokens = capacity;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Takes a token if there is one.
+     * @return 0 if a token was taken, otherwise how many milliseconds until the next token
+     */
+    public synchronized long tryTake() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+
+        return (long) Math.ceil((1 - tokens) / refillPerMilli);
+    }
+
+    /**
+     * Checks if the bucket has been idle long enough to refill completely.
+     * @return true if the bucket is full
+     */
+    public synchronized boolean isFull() {
+        refill();
+        return tokens >= capacity;
+    }
+
+    private void refill() {
+        long now = System.currentTimeMillis();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * refillPerMilli);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,115 @@
+package controller;
+
+import org.json.JSONObject;
+import service.LatencyTracker;
+import service.ModelUsage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals of the tokens, model time, latency and cost of model calls, broken down by action, prompt
+ * strategy, quality, client and model, so the kinds of requests behind the latency and the spend can be found.
+ * Latency is measured from when a call asks to be admitted, so it includes time spent waiting for a slot.
+ */
+public class UsageStats {
+    private static final int LATENCY_WINDOW = 500;
+
+    private final double inputPricePerMillion;
+    private final double outputPricePerMillion;
+    private final Totals total = new Totals();
+    private final Map<String, Map<String, Totals>> dimensions = new ConcurrentHashMap<>();
+
+    /**
+     * @param inputPricePerMillion - price of a million prompt tokens
+     * @param outputPricePerMillion - price of a million generated tokens
+     */
+    public UsageStats(double inputPricePerMillion, double outputPricePerMillion) {
+        this.inputPricePerMillion = inputPricePerMillion;
+        this.outputPricePerMillion = outputPricePerMillion;
+    }
+
+    /**
+     * Adds one model call made for a request.
+     * @param context - request the call belongs to
+     * @param model - model the call was sent to
+     * @param usage - what the backend reported for the call, including its retries and hedges
+     * @param latencyNanos - time from asking for admission until the call finished
+     * @param failed - true if the call did not return a result
+     */
+    public void record(RequestContext context, String model, ModelUsage usage, long latencyNanos, boolean failed) {
+        total.add(usage, latencyNanos, failed);
+        totals("action", context.action()).add(usage, latencyNanos, failed);
+        totals("strategy", context.strategy()).add(usage, latencyNanos, failed);
+        totals("quality", String.valueOf(context.quality())).add(usage, latencyNanos, failed);
+        totals("client", context.clientId()).add(usage, latencyNanos, failed);
+        totals("model", model).add(usage, latencyNanos, failed);
+    }
+
+    private Totals totals(String dimension, String key) {
+        return dimensions.computeIfAbsent(dimension, name -> new ConcurrentHashMap<>())
+                .computeIfAbsent(key, name -> new Totals());
+    }
+
+    /**
+     * Returns the totals overall and for every action, strategy, quality, client and model seen so far.
+     * @return JSONObject with "total" and one object per dimension
+     */
+    public JSONObject toJSON() {
+        JSONObject stats = new JSONObject();
+        stats.put("total", total.toJSON());
+        for (Map.Entry<String, Map<String, Totals>> dimension : dimensions.entrySet()) {
+            JSONObject byKey = new JSONObject();
+            dimension.getValue().forEach((key, totals) -> byKey.put(key, totals.toJSON()));
+            stats.put(dimension.getKey(), byKey);
+        }
+        return stats;
+    }
+
+    /**
+     * Totals of the calls that share one key, such as all calls of the action "EXTRACT_STORY".
+     */
+    private final class Totals {
+        final LongAdder calls = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder modelCalls = new LongAdder();
+        final LongAdder inputTokens = new LongAdder();
+        final LongAdder outputTokens = new LongAdder();
+        final LongAdder cachedTokens = new LongAdder();
+        final LongAdder modelNanos = new LongAdder();
+        final LongAdder latencyNanos = new LongAdder();
+        final LatencyTracker latencies = new LatencyTracker(LATENCY_WINDOW);
+
+        void add(ModelUsage usage, long latency, boolean failed) {
+            calls.increment();
+            if (failed) failures.increment();
+            modelCalls.add(usage.getCalls());
+            inputTokens.add(usage.getInputTokens());
+            outputTokens.add(usage.getOutputTokens());
+            cachedTokens.add(usage.getCachedTokens());
+            modelNanos.add(usage.getModelNanos());
+            latencyNanos.add(latency);
+            latencies.record(latency / 1_000_000);
+        }
+
+        JSONObject toJSON() {
+            long count = calls.sum();
+            double cost = (inputTokens.sum() * inputPricePerMillion + outputTokens.sum() * outputPricePerMillion)
+                    / 1_000_000;
+
+            JSONObject json = new JSONObject();
+            json.put("calls", count);
+            json.put("failures", failures.sum());
+            json.put("modelCalls", modelCalls.sum());
+            json.put("inputTokens", inputTokens.sum());
+            json.put("outputTokens", outputTokens.sum());
+            json.put("cachedTokens", cachedTokens.sum());
+            json.put("cost", cost);
+            json.put("modelMs", modelNanos.sum() / 1_000_000);
+            json.put("avgLatencyMs", count > 0 ? latencyNanos.sum() / count / 1_000_000 : 0);
+            json.put("p95LatencyMs", latencies.percentile(95));
+            return json;
+        }
+    }
+}
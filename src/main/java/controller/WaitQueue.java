@@ -0,0 +1,54 @@
+package controller;
+
+import java.util.Map;
+
+/**
+ * Decides which waiting model call gets the next free slot.
+ * Implementations are only used while the AdmissionController holds its lock.
+ */
+public interface WaitQueue {
+    void add(AdmissionTicket ticket);
+
+    /**
+     * Returns the ticket poll would return, without removing it.
+     * @return next ticket, or null if the queue is empty
+     */
+    AdmissionTicket peek();
+
+    /**
+     * Removes and returns the ticket that should run next.
+     * @return next ticket, or null if the queue is empty
+     */
+    AdmissionTicket poll();
+
+    /**
+     * Removes a ticket that gave up waiting.
+     * @param ticket - ticket to remove
+     */
+    void remove(AdmissionTicket ticket);
+
+    int size();
+
+    /**
+     * Creates the queue named by a scheduler policy.
+     * @param policy - "FIFO", "FAIR", or "PRIORITY" for priority classes with fair turns inside each class
+     * @param weights - per-client weights for FAIR and PRIORITY, as "clientId=weight" pairs separated by commas
+     * @param agingMillis - wait that raises a call by one priority class, for PRIORITY
+     * @return WaitQueue
+     */
+    static WaitQueue create(String policy, String weights, long agingMillis) {
+        switch (policy.toUpperCase()) {
+            case "FIFO" -> {
+                return new FifoWaitQueue();
+            }
+            case "FAIR" -> {
+                return new FairWaitQueue(FairWaitQueue.parseWeights(weights));
+            }
+            case "PRIORITY" -> {
+                Map<String, Integer> clientWeights = FairWaitQueue.parseWeights(weights);
+                return new PriorityWaitQueue(() -> new FairWaitQueue(clientWeights), agingMillis);
+            }
+            default -> throw new IllegalArgumentException("Unknown scheduler policy: " + policy);
+        }
+    }
+}
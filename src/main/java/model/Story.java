@@ -9,6 +9,9 @@ import org.json.JSONObject;
 import java.util.*;
 
 public class Story {
+    // Bump whenever generateSchema() or the extraction prompt changes, so cached extractions are not reused
+    public static final int SCHEMA_VERSION = 2;
+
     private String name;
     private Hashtable<String, StoryCharacter> characterDict;
     private Hashtable<String, StoryLocation> locationDict;
@@ -247,12 +250,20 @@ public class Story {
     }
 
     /**
-     * Returns a Schema object of the Story class
+     * Returns the Schema object of the Story class. It is built once and shared, since Schema is immutable.
      * @return Schema object
      */
     public static Schema generateSchema() {
-        Schema characterSchema = StoryCharacter.generateSchema();
-        Schema locationSchema = StoryLocation.generateSchema();
+        return SchemaHolder.SCHEMA;
+    }
+
+    /**
+     * Builds a new Schema object of the Story class, along with the schemas of its characters and locations.
+     * @return Schema object
+     */
+    public static Schema buildSchema() {
+        Schema characterSchema = StoryCharacter.buildSchema();
+        Schema locationSchema = StoryLocation.buildSchema();
 
         Schema characterListSchema = Schema.builder()
                 .type(Type.Known.ARRAY)
@@ -278,4 +289,8 @@ public class Story {
 
         return storySchema;
     }
+
+    private static final class SchemaHolder {
+        static final Schema SCHEMA = buildSchema();
+    }
 }
@@ -119,10 +119,18 @@ public class StoryCharacter {
     }
 
     /**
-     * Returns a Schema object of the StoryCharacter class
+     * Returns the Schema object of the StoryCharacter class. It is built once and shared, since Schema is immutable.
      * @return Schema object
      */
     public static Schema generateSchema() {
+        return SchemaHolder.SCHEMA;
+    }
+
+    /**
+     * Builds a new Schema object of the StoryCharacter class.
+     * @return Schema object
+     */
+    public static Schema buildSchema() {
         Map<String, Schema> characterMap = new HashMap<>();
         characterMap.put("name", Schema.builder().type(Type.Known.STRING).build());
         characterMap.put("race", Schema.builder().type(Type.Known.STRING).build());
@@ -139,4 +147,8 @@ public class StoryCharacter {
 
         return characterSchema;
     }
+
+    private static final class SchemaHolder {
+        static final Schema SCHEMA = buildSchema();
+    }
 }
@@ -67,10 +67,18 @@ public class StoryLocation {
     }
 
     /**
-     * Returns a Schema object of the StoryLocation class
+     * Returns the Schema object of the StoryLocation class. It is built once and shared, since Schema is immutable.
      * @return Schema object
      */
     public static Schema generateSchema() {
+        return SchemaHolder.SCHEMA;
+    }
+
+    /**
+     * Builds a new Schema object of the StoryLocation class.
+     * @return Schema object
+     */
+    public static Schema buildSchema() {
         Map<String, Schema> locationMap = new HashMap<>();
         locationMap.put("name", Schema.builder().type(Type.Known.STRING).build());
         locationMap.put("description", Schema.builder().type(Type.Known.STRING).build());
@@ -83,4 +91,8 @@ public class StoryLocation {
 
         return locationSchema;
     }
+
+    private static final class SchemaHolder {
+        static final Schema SCHEMA = buildSchema();
+    }
 }
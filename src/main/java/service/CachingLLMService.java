@@ -0,0 +1,135 @@
+package service;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Decorator that answers repeated generation prompts from a ResponseCache.
+ * Entries are keyed by the model name and the final prompt, so a regeneration with the same prompt,
+ * strategy and quality skips the model entirely.
+ */
+public class CachingLLMService implements LLMService {
+    private final LLMService delegate;
+    private final ResponseCache cache;
+
+    public CachingLLMService(LLMService delegate, ResponseCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    public boolean authenticate() {
+        return delegate.authenticate();
+    }
+
+    @Override
+    public String getModelName() {
+        return delegate.getModelName();
+    }
+
+    @Override
+    public boolean isThrottled(RuntimeException e) {
+        return delegate.isThrottled(e);
+    }
+
+    @Override
+    public LLMService withModel(String model) {
+        return new CachingLLMService(delegate.withModel(model), cache);
+    }
+
+    @Override
+    public LLMService withUsage(ModelUsage usage) {
+        return new CachingLLMService(delegate.withUsage(usage), cache);
+    }
+
+    @Override
+    public LLMService withSlots(CallSlots slots) {
+        return new CachingLLMService(delegate.withSlots(slots), cache);
+    }
+
+    @Override
+    public String call(String prompt) {
+        String key = cacheKey(prompt);
+        String cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        String response = delegate.call(prompt);
+        cache.put(key, response);
+        return response;
+    }
+
+    @Override
+    public String callStream(String prompt, Consumer<String> onChunk) {
+        String key = cacheKey(prompt);
+        String cached = cache.get(key);
+        if (cached != null) {
+            // Nothing to wait for, so the whole text goes out as a single chunk
+            onChunk.accept(cached);
+            return cached;
+        }
+
+        String response = delegate.callStream(prompt, onChunk);
+        cache.put(key, response);
+        return response;
+    }
+
+    @Override
+    public String extractStory(String story) {
+        return delegate.extractStory(story);
+    }
+
+    @Override
+    public CompletableFuture<String> callAsync(String prompt) {
+        String key = cacheKey(prompt);
+        String cached = cache.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return delegate.callAsync(prompt).thenApply(response -> {
+            cache.put(key, response);
+            return response;
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> extractStoryAsync(String story) {
+        return delegate.extractStoryAsync(story);
+    }
+
+    @Override
+    public String cachedCall(String prompt) {
+        String cached = cache.find(cacheKey(prompt));
+        return cached != null ? cached : delegate.cachedCall(prompt);
+    }
+
+    @Override
+    public String cachedExtraction(String story) {
+        return delegate.cachedExtraction(story);
+    }
+
+    @Override
+    public JSONObject getLayerStats() {
+        JSONObject stats = delegate.getLayerStats();
+        stats.put("responseCache", cache.getStats());
+        return stats;
+    }
+
+    @Override
+    public void shutdown() {
+        cache.shutdown();
+        delegate.shutdown();
+    }
+
+    public ResponseCache getCache() {
+        return cache;
+    }
+
+    private String cacheKey(String prompt) {
+        return delegate.getModelName() + "\n" + prompt;
+    }
+}
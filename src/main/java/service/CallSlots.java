@@ -0,0 +1,65 @@
+package service;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The model slot a call holds while it runs, for layers that wait between backend calls or make more than
+ * one at once. A retry gives the slot back while it backs off, and a hedge only goes out on a slot of its
+ * own, so neither makes the server run more model calls than it admitted.
+ */
+public interface CallSlots {
+    /**
+     * Slots of a call that is not admitted by anything: every call may go out.
+     */
+    CallSlots UNLIMITED = new CallSlots() {
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public void reacquire() {
+        }
+
+        @Override
+        public CompletableFuture<Void> reacquireAsync() {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public boolean tryAcquireExtra() {
+            return true;
+        }
+
+        @Override
+        public void releaseExtra() {
+        }
+    };
+
+    /**
+     * Gives the call's slot back while it is not calling the backend. Does nothing if it is not held.
+     */
+    void release();
+
+    /**
+     * Waits for a slot again after release.
+     * @throws RuntimeException if the call is rejected or cancelled while it waits
+     */
+    void reacquire();
+
+    /**
+     * Waits for a slot again after release without blocking.
+     * @return future completed once the call holds a slot, or failed if it is rejected or cancelled
+     */
+    CompletableFuture<Void> reacquireAsync();
+
+    /**
+     * Takes a second slot for the same call if one is free right now, without queueing for it.
+     * @return true if the slot was taken and must be given back with releaseExtra
+     */
+    boolean tryAcquireExtra();
+
+    /**
+     * Gives back a slot taken with tryAcquireExtra.
+     */
+    void releaseExtra();
+}
@@ -0,0 +1,95 @@
+package service;
+
+import org.json.JSONObject;
+
+/**
+ * Stops calls to a backend that keeps failing.
+ * After failureThreshold failures in a row the circuit opens and calls fail fast for openMillis. Then a
+ * single trial call is let through: if it succeeds the circuit closes again, otherwise it stays open.
+ */
+public class CircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    // Guarded by this
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean trialRunning;
+    private long rejected;
+    private long opened;
+
+    /**
+     * @param failureThreshold - failures in a row that open the circuit, 0 to never open it
+     * @param openMillis - how long the circuit stays open before a trial call
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Asks to make a call.
+     * @throws CircuitOpenException if the circuit is open, or half open with a trial call already running
+     */
+    public synchronized void acquire() {
+        if (state == State.OPEN) {
+            long remaining = openedAt + openMillis - System.currentTimeMillis();
+            if (remaining > 0) {
+                rejected++;
+                throw new CircuitOpenException(remaining);
+            }
+            state = State.HALF_OPEN;
+        }
+
+        if (state == State.HALF_OPEN) {
+            if (trialRunning) {
+                rejected++;
+                throw new CircuitOpenException(openMillis);
+            }
+            trialRunning = true;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        trialRunning = false;
+        state = State.CLOSED;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        trialRunning = false;
+        if (state == State.HALF_OPEN || (failureThreshold > 0 && consecutiveFailures >= failureThreshold)) {
+            if (state != State.OPEN) opened++;
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Gives up a call that was let through but ended neither in success nor in a backend failure.
+     */
+    public synchronized void recordIgnored() {
+        trialRunning = false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the state and counters of the breaker.
+     * @return JSONObject of the stats
+     */
+    public synchronized JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("state", state.name());
+        stats.put("consecutiveFailures", consecutiveFailures);
+        stats.put("opened", opened);
+        stats.put("rejected", rejected);
+        return stats;
+    }
+}
@@ -0,0 +1,17 @@
+package service;
+
+/**
+ * Thrown instead of calling the backend while the circuit breaker considers it unhealthy.
+ */
+public class CircuitOpenException extends RuntimeException {
+    private final long retryAfterMillis;
+
+    public CircuitOpenException(long retryAfterMillis) {
+        super("Model backend is unavailable, retry after " + retryAfterMillis + " ms");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -0,0 +1,328 @@
+package service;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Decorator that coalesces identical requests that are in flight at the same time.
+ * When several clients send the same prompt to the same model, or the same story to extract, only the first
+ * one reaches the backend and everyone else gets its result. Streaming callers that join late first receive
+ * the chunks generated so far, then the rest as they arrive. A streaming caller that stops listening is
+ * dropped; the shared call itself is only aborted once nobody is listening. If the caller running a shared
+ * call is cancelled, the callers waiting on it start the call again instead of failing with it.
+ */
+public class CoalescingLLMService implements LLMService {
+    private final LLMService delegate;
+    private final SingleFlight<String> calls;
+    private final SingleFlight<String> extractions;
+
+    private final Map<String, ChunkFanOut> streams;
+    private final AtomicLong streamCalls;
+    private final AtomicLong sharedStreamCalls;
+
+    public CoalescingLLMService(LLMService delegate) {
+        this.delegate = delegate;
+        this.calls = new SingleFlight<>();
+        this.extractions = new SingleFlight<>();
+        this.streams = new ConcurrentHashMap<>();
+        this.streamCalls = new AtomicLong();
+        this.sharedStreamCalls = new AtomicLong();
+    }
+
+    /**
+     * A view over another delegate that coalesces with, and counts into, the shared service.
+     */
+    private CoalescingLLMService(CoalescingLLMService shared, LLMService delegate) {
+        this.delegate = delegate;
+        this.calls = shared.calls;
+        this.extractions = shared.extractions;
+        this.streams = shared.streams;
+        this.streamCalls = shared.streamCalls;
+        this.sharedStreamCalls = shared.sharedStreamCalls;
+    }
+
+    @Override
+    public boolean authenticate() {
+        return delegate.authenticate();
+    }
+
+    @Override
+    public String getModelName() {
+        return delegate.getModelName();
+    }
+
+    @Override
+    public boolean isThrottled(RuntimeException e) {
+        return delegate.isThrottled(e);
+    }
+
+    @Override
+    public LLMService withModel(String model) {
+        return new CoalescingLLMService(this, delegate.withModel(model));
+    }
+
+    /**
+     * A request that joins a call already in flight adds nothing to its usage; the call is counted once,
+     * for the request that made it.
+     */
+    @Override
+    public LLMService withUsage(ModelUsage usage) {
+        return new CoalescingLLMService(this, delegate.withUsage(usage));
+    }
+
+    @Override
+    public LLMService withSlots(CallSlots slots) {
+        return new CoalescingLLMService(this, delegate.withSlots(slots));
+    }
+
+    @Override
+    public String call(String prompt) {
+        return calls.execute(callKey(prompt), () -> delegate.call(prompt));
+    }
+
+    @Override
+    public String callStream(String prompt, Consumer<String> onChunk) {
+        String key = callKey(prompt);
+        ResumedStream resumed = new ResumedStream(onChunk);
+        while (true) {
+            ChunkFanOut fanOut = new ChunkFanOut(resumed);
+            ChunkFanOut running = streams.putIfAbsent(key, fanOut);
+            if (running != null) {
+                sharedStreamCalls.incrementAndGet();
+                try {
+                    return running.follow(resumed);
+                } catch (CancellationException e) {
+                    // The caller running the stream was cancelled or stopped listening, take over from it
+                    sharedStreamCalls.decrementAndGet();
+                    resumed.restart();
+                    continue;
+                }
+            }
+
+            streamCalls.incrementAndGet();
+            try {
+                String response = delegate.callStream(prompt, fanOut::publish);
+                fanOut.complete(response);
+                return response;
+            } catch (RuntimeException e) {
+                fanOut.fail(e, Thread.currentThread().isInterrupted() || fanOut.isLeaderFailure(e));
+                throw e;
+            } finally {
+                streams.remove(key, fanOut);
+            }
+        }
+    }
+
+    @Override
+    public String extractStory(String story) {
+        return extractions.execute(callKey(story), () -> delegate.extractStory(story));
+    }
+
+    @Override
+    public CompletableFuture<String> callAsync(String prompt) {
+        return calls.executeAsync(callKey(prompt), () -> delegate.callAsync(prompt));
+    }
+
+    /**
+     * Calls routed to different models are not the same call, even with the same prompt or story.
+     */
+    private String callKey(String prompt) {
+        return delegate.getModelName() + "\n" + prompt;
+    }
+
+    @Override
+    public CompletableFuture<String> extractStoryAsync(String story) {
+        return extractions.executeAsync(callKey(story), () -> delegate.extractStoryAsync(story));
+    }
+
+    @Override
+    public String cachedCall(String prompt) {
+        return delegate.cachedCall(prompt);
+    }
+
+    @Override
+    public String cachedExtraction(String story) {
+        return delegate.cachedExtraction(story);
+    }
+
+    @Override
+    public JSONObject getLayerStats() {
+        JSONObject stats = delegate.getLayerStats();
+        stats.put("coalescing", getStats());
+        return stats;
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    /**
+     * Returns how many upstream calls were made and how many were saved by coalescing.
+     * @return JSONObject of the counters
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("calls", calls.getCalls() + streamCalls.get());
+        stats.put("savedCalls", calls.getSharedCalls() + sharedStreamCalls.get());
+        stats.put("extractions", extractions.getCalls());
+        stats.put("savedExtractions", extractions.getSharedCalls());
+        return stats;
+    }
+
+    /**
+     * Passes a caller the chunks of its stream. When the caller takes over a shared stream that was
+     * abandoned, the new stream starts over, so the text the caller already received is skipped.
+     */
+    private static class ResumedStream implements Consumer<String> {
+        private final Consumer<String> onChunk;
+        private int delivered;
+        private int position;
+
+        ResumedStream(Consumer<String> onChunk) {
+            this.onChunk = onChunk;
+        }
+
+        @Override
+        public void accept(String chunk) {
+            int end = position + chunk.length();
+            if (end > delivered) {
+                onChunk.accept(chunk.substring(Math.max(0, delivered - position)));
+                delivered = end;
+            }
+            position = end;
+        }
+
+        void restart() {
+            position = 0;
+        }
+    }
+
+    /**
+     * Passes the chunks of one streaming call to every caller waiting on it.
+     * The caller running the call receives them on its own thread as they are published. Every other caller
+     * gets a queue of its own that it drains on its own thread, so a slow or failing listener holds up
+     * nobody else.
+     */
+    private static class ChunkFanOut {
+        /**
+         * Marks the end of a follower's queue, compared by identity.
+         */
+        private static final String END_OF_STREAM = new String();
+
+        private final List<String> chunks = new ArrayList<>();
+        private final List<BlockingQueue<String>> followers = new ArrayList<>();
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private Consumer<String> leader;
+        private RuntimeException leaderFailure;
+        private boolean ended;
+
+        ChunkFanOut(Consumer<String> leader) {
+            this.leader = leader;
+        }
+
+        void publish(String chunk) {
+            Consumer<String> listener;
+            synchronized (this) {
+                // Abort the upstream call once nobody is listening any more
+                if (leader == null && followers.isEmpty()) {
+                    throw leaderFailure;
+                }
+
+                chunks.add(chunk);
+                for (BlockingQueue<String> follower : followers) {
+                    follower.add(chunk);
+                }
+                listener = leader;
+            }
+            if (listener == null) return;
+
+            try {
+                listener.accept(chunk);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    leader = null;
+                    leaderFailure = e;
+                    if (followers.isEmpty()) throw e;
+                }
+            }
+        }
+
+        synchronized boolean isLeaderFailure(RuntimeException e) {
+            return e == leaderFailure;
+        }
+
+        void complete(String response) {
+            result.complete(response);
+            end();
+        }
+
+        /**
+         * Fails the call for the followers. An abandoned call, whose caller was cancelled or stopped listening,
+         * is retried by the followers instead.
+         */
+        void fail(RuntimeException e, boolean abandoned) {
+            if (abandoned) {
+                result.cancel(false);
+            }
+            else {
+                result.completeExceptionally(e);
+            }
+            end();
+        }
+
+        private synchronized void end() {
+            ended = true;
+            for (BlockingQueue<String> follower : followers) {
+                follower.add(END_OF_STREAM);
+            }
+        }
+
+        /**
+         * Replays the chunks so far, then passes on the rest as they are published, on the calling thread.
+         * @throws CancellationException if the call was abandoned by the caller running it
+         */
+        String follow(Consumer<String> subscriber) {
+            BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+            synchronized (this) {
+                queue.addAll(chunks);
+                if (ended) {
+                    queue.add(END_OF_STREAM);
+                }
+                else {
+                    followers.add(queue);
+                }
+            }
+
+            try {
+                for (String chunk = take(queue); chunk != END_OF_STREAM; chunk = take(queue)) {
+                    subscriber.accept(chunk);
+                }
+                return SingleFlight.join(result);
+            } finally {
+                synchronized (this) {
+                    followers.remove(queue);
+                }
+            }
+        }
+
+        private static String take(BlockingQueue<String> queue) {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a shared call", e);
+            }
+        }
+    }
+}
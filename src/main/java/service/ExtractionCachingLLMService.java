@@ -0,0 +1,153 @@
+package service;
+
+import model.Story;
+import org.json.JSONObject;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Decorator that answers repeated story extractions from a ResponseCache.
+ * Entries are keyed by a hash of the story text and the schema version. Concurrent extractions of the same
+ * text share a single model call.
+ */
+public class ExtractionCachingLLMService implements LLMService {
+    private final LLMService delegate;
+    private final ResponseCache cache;
+    private final SingleFlight<String> extractions;
+
+    public ExtractionCachingLLMService(LLMService delegate, ResponseCache cache) {
+        this(delegate, cache, new SingleFlight<>());
+    }
+
+    private ExtractionCachingLLMService(LLMService delegate, ResponseCache cache, SingleFlight<String> extractions) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.extractions = extractions;
+    }
+
+    @Override
+    public boolean authenticate() {
+        return delegate.authenticate();
+    }
+
+    @Override
+    public String getModelName() {
+        return delegate.getModelName();
+    }
+
+    @Override
+    public boolean isThrottled(RuntimeException e) {
+        return delegate.isThrottled(e);
+    }
+
+    @Override
+    public LLMService withModel(String model) {
+        return new ExtractionCachingLLMService(delegate.withModel(model), cache, extractions);
+    }
+
+    @Override
+    public LLMService withUsage(ModelUsage usage) {
+        return new ExtractionCachingLLMService(delegate.withUsage(usage), cache, extractions);
+    }
+
+    @Override
+    public LLMService withSlots(CallSlots slots) {
+        return new ExtractionCachingLLMService(delegate.withSlots(slots), cache, extractions);
+    }
+
+    @Override
+    public String call(String prompt) {
+        return delegate.call(prompt);
+    }
+
+    @Override
+    public String callStream(String prompt, Consumer<String> onChunk) {
+        return delegate.callStream(prompt, onChunk);
+    }
+
+    @Override
+    public String extractStory(String story) {
+        String key = cacheKey(story);
+        String cached = cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Join an extraction of the same text that is already running
+        return extractions.execute(key, () -> {
+            // Another extraction may have finished between the lookup and taking the slot, already counted
+            String response = cache.peek(key);
+            if (response == null) {
+                response = delegate.extractStory(story);
+                cache.put(key, response);
+            }
+            return response;
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> callAsync(String prompt) {
+        return delegate.callAsync(prompt);
+    }
+
+    @Override
+    public CompletableFuture<String> extractStoryAsync(String story) {
+        String key = cacheKey(story);
+        String cached = cache.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return extractions.executeAsync(key, () -> {
+            String response = cache.peek(key);
+            if (response != null) {
+                return CompletableFuture.completedFuture(response);
+            }
+            return delegate.extractStoryAsync(story).thenApply(extracted -> {
+                cache.put(key, extracted);
+                return extracted;
+            });
+        });
+    }
+
+    @Override
+    public String cachedCall(String prompt) {
+        return delegate.cachedCall(prompt);
+    }
+
+    @Override
+    public String cachedExtraction(String story) {
+        String cached = cache.find(cacheKey(story));
+        return cached != null ? cached : delegate.cachedExtraction(story);
+    }
+
+    @Override
+    public JSONObject getLayerStats() {
+        JSONObject stats = delegate.getLayerStats();
+        stats.put("extractionCache", cache.getStats());
+        return stats;
+    }
+
+    @Override
+    public void shutdown() {
+        cache.shutdown();
+        delegate.shutdown();
+    }
+
+    public ResponseCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns how many extractions joined one that was already running instead of calling the model.
+     * @return number of shared calls
+     */
+    public long getSharedCalls() {
+        return extractions.getSharedCalls();
+    }
+
+    private static String cacheKey(String story) {
+        return ResponseCache.hash("schema-v" + Story.SCHEMA_VERSION + "\n" + story);
+    }
+}
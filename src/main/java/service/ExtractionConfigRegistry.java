@@ -0,0 +1,48 @@
+package service;
+
+import com.google.genai.types.Content;
+import com.google.genai.types.GenerateContentConfig;
+import com.google.genai.types.Part;
+import model.Story;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds the request config of story extractions once per model and schema version, and shares it between
+ * threads, since GenerateContentConfig and Schema are immutable.
+ * The extraction instructions are sent as a system instruction, so every extraction starts with the same prefix
+ * and the story text comes last.
+ */
+public class ExtractionConfigRegistry {
+    public static final String INSTRUCTIONS = "Extract the story that follows into JSON. List every named character "
+            + "with their race, species, age, gender and a short description, and every named location with a "
+            + "short description. Use \"Unknown\" for text values and 0 for ages the story does not give.";
+
+    private final Map<String, GenerateContentConfig> configs = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the config to extract a story with a model, building it on the first call.
+     * Threads that race on the first call may each build one, but all of them get the one that was kept.
+     * @param model - model the extraction is sent to
+     * @return shared GenerateContentConfig
+     */
+    public GenerateContentConfig extractionConfig(String model) {
+        String key = model + "@v" + Story.SCHEMA_VERSION;
+        GenerateContentConfig config = configs.get(key);
+        if (config == null) {
+            GenerateContentConfig built = buildConfig();
+            config = configs.putIfAbsent(key, built);
+            if (config == null) config = built;
+        }
+        return config;
+    }
+
+    private static GenerateContentConfig buildConfig() {
+        return GenerateContentConfig.builder()
+                .responseMimeType("application/json")
+                .responseSchema(Story.generateSchema())
+                .systemInstruction(Content.fromParts(Part.fromText(INSTRUCTIONS)))
+                .build();
+    }
+}
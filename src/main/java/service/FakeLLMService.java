@@ -0,0 +1,231 @@
+package service;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * Offline backend for load tests and benchmarks.
+ * The text it returns only depends on the prompt, so runs are repeatable. Latency, jitter, error rate and
+ * output size are configurable to imitate a real model.
+ */
+public class FakeLLMService implements LLMService {
+    private static final String[] CHARACTERS = {"Alice", "Bram", "Cora", "Dorian", "Elena", "Finn"};
+    private static final String[] LOCATIONS = {"Ashford", "Brightmoor", "Silver Lake", "Old Mill"};
+    private static final String[] WORDS = {
+            "the", "quiet", "wind", "carried", "a", "story", "through", "long", "night", "and", "morning",
+            "light", "found", "small", "path", "near", "river", "where", "old", "friends", "waited", "for",
+            "news", "that", "never", "seemed", "to", "come", "until", "one", "day", "everything", "changed"
+    };
+    private static final int WORDS_PER_CHUNK = 8;
+
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double errorRate;
+    private final int outputWords;
+    private final String model;
+    private final ModelUsage usage;
+
+    /**
+     * @param latencyMillis - base latency of every call
+     * @param jitterMillis - extra random latency, from 0 up to this value
+     * @param errorRate - chance from 0 to 1 that a call fails
+     * @param outputWords - number of words in a generated story
+     */
+    public FakeLLMService(long latencyMillis, long jitterMillis, double errorRate, int outputWords) {
+        this(latencyMillis, jitterMillis, errorRate, outputWords, "fake", null);
+    }
+
+    private FakeLLMService(long latencyMillis, long jitterMillis, double errorRate, int outputWords, String model,
+                           ModelUsage usage) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorRate = errorRate;
+        this.outputWords = outputWords;
+        this.model = model;
+        this.usage = usage;
+    }
+
+    /**
+     * Returns a view that reports a token for every word of the prompt and of the response, so usage
+     * accounting can be tried offline.
+     * @param usage - usage of the request the calls are made for
+     * @return FakeLLMService with the same settings
+     */
+    @Override
+    public LLMService withUsage(ModelUsage usage) {
+        return new FakeLLMService(latencyMillis, jitterMillis, errorRate, outputWords, model, usage);
+    }
+
+    /**
+     * Returns a view that answers as the named model. The fake only has one model, so only the name changes.
+     * @param model - name of the model
+     * @return FakeLLMService with the same settings
+     */
+    @Override
+    public LLMService withModel(String model) {
+        return new FakeLLMService(latencyMillis, jitterMillis, errorRate, outputWords, model, usage);
+    }
+
+    @Override
+    public boolean authenticate() {
+        return true;
+    }
+
+    @Override
+    public String getModelName() {
+        return model;
+    }
+
+    @Override
+    public String call(String prompt) {
+        long startNanos = System.nanoTime();
+        sleep(sampleLatency());
+        maybeFail(startNanos);
+        String response = String.join(" ", generateWords(prompt));
+        recordUsage(prompt, response, startNanos);
+        return response;
+    }
+
+    @Override
+    public String callStream(String prompt, Consumer<String> onChunk) {
+        List<String> words = generateWords(prompt);
+        int chunks = (words.size() + WORDS_PER_CHUNK - 1) / WORDS_PER_CHUNK;
+        StringBuilder sb = new StringBuilder();
+        long startNanos = System.nanoTime();
+
+        // Spread the latency over the chunks, like tokens arriving from a real model
+        long chunkLatency = sampleLatency() / Math.max(1, chunks);
+        for (int i = 0; i < chunks; i++) {
+            sleep(chunkLatency);
+            if (i == 0) maybeFail(startNanos);
+
+            List<String> chunkWords = words.subList(i * WORDS_PER_CHUNK, Math.min(words.size(), (i + 1) * WORDS_PER_CHUNK));
+            String chunk = (i == 0 ? "" : " ") + String.join(" ", chunkWords);
+            sb.append(chunk);
+            onChunk.accept(chunk);
+        }
+
+        recordUsage(prompt, sb.toString(), startNanos);
+        return sb.toString();
+    }
+
+    @Override
+    public String extractStory(String story) {
+        long startNanos = System.nanoTime();
+        sleep(sampleLatency());
+        maybeFail(startNanos);
+
+        JSONArray characters = new JSONArray();
+        for (String name : CHARACTERS) {
+            if (!story.contains(name)) continue;
+
+            JSONObject character = new JSONObject();
+            character.put("name", name);
+            character.put("age", 20 + Math.abs(name.hashCode() % 40));
+            character.put("race", "Unknown");
+            character.put("species", "Human");
+            character.put("gender", "Unknown");
+            character.put("description", name + " appears in the story.");
+            characters.put(character);
+        }
+
+        JSONArray locations = new JSONArray();
+        for (String name : LOCATIONS) {
+            if (!story.contains(name)) continue;
+
+            JSONObject location = new JSONObject();
+            location.put("name", name);
+            location.put("description", "A place in the story.");
+            locations.put(location);
+        }
+
+        int summaryEnd = story.indexOf('.');
+        JSONObject storyJSON = new JSONObject();
+        storyJSON.put("name", "Story " + Integer.toHexString(story.hashCode()));
+        storyJSON.put("summary", summaryEnd > 0 ? story.substring(0, summaryEnd + 1) : story);
+        storyJSON.put("characters", characters);
+        storyJSON.put("locations", locations);
+
+        recordUsage(story, storyJSON.toString(), startNanos);
+        return storyJSON.toString();
+    }
+
+    private void recordUsage(String prompt, String response, long startNanos) {
+        if (usage != null) {
+            usage.record(countWords(prompt), countWords(response), 0, System.nanoTime() - startNanos);
+        }
+    }
+
+    private static int countWords(String text) {
+        String trimmed = text.strip();
+        return trimmed.isEmpty() ? 0 : trimmed.split("\\s+").length;
+    }
+
+    /**
+     * Builds the words of a story. The same prompt always gives the same words.
+     * @param prompt - prompt to generate with
+     * @return list of words
+     */
+    private List<String> generateWords(String prompt) {
+        Random random = new Random(prompt.hashCode());
+        String hero = CHARACTERS[random.nextInt(CHARACTERS.length)];
+        String place = LOCATIONS[random.nextInt(LOCATIONS.length)];
+
+        List<String> words = new ArrayList<>(outputWords);
+        words.add(hero);
+        words.add("lived");
+        words.add("in");
+        words.add(place + ".");
+
+        while (words.size() < outputWords) {
+            // Every so often mention someone or somewhere, so extraction has something to find
+            int roll = random.nextInt(20);
+            if (roll == 0) {
+                words.add(CHARACTERS[random.nextInt(CHARACTERS.length)]);
+            }
+            else if (roll == 1) {
+                words.add(LOCATIONS[random.nextInt(LOCATIONS.length)]);
+            }
+            else {
+                words.add(WORDS[random.nextInt(WORDS.length)]);
+            }
+        }
+
+        return words;
+    }
+
+    /**
+     * Picks the latency of one call: the base latency plus random jitter.
+     * @return latency in milliseconds
+     */
+    private long sampleLatency() {
+        long jitter = jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0;
+        return latencyMillis + jitter;
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the fake backend", e);
+        }
+    }
+
+    /**
+     * Fails the call at the configured rate. A failed call is counted in the usage with its time only, like
+     * a failed call to Gemini.
+     */
+    private void maybeFail(long startNanos) {
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            if (usage != null) usage.record(0, 0, 0, System.nanoTime() - startNanos);
+            throw new IllegalStateException("Fake backend error");
+        }
+    }
+}
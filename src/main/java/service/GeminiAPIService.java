@@ -1,69 +1,215 @@
 package service;
 
 import com.google.genai.Client;
+import com.google.genai.ResponseStream;
+import com.google.genai.errors.ApiException;
+import com.google.genai.errors.ClientException;
 import com.google.genai.types.*;
 import config.Config;
-import model.Story;
 import model.StoryCharacter;
 import org.json.JSONObject;
 
-public class GeminiAPIService {
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+public class GeminiAPIService implements LLMService {
+    private static final String DEFAULT_MODEL = "gemini-2.5-flash-lite";
+
     private final Client client;
-    private final Schema storySchema;
+    private final ExtractionConfigRegistry extractionConfigs;
+    private final String model;
+    private final ModelUsage usage;
 
     public GeminiAPIService() {
-        client = Client.builder().apiKey(Config.GEMINI_API_KEY).build();
-        storySchema = Story.generateSchema();
+        this(Client.builder().apiKey(Config.GEMINI_API_KEY).build(), new ExtractionConfigRegistry(), DEFAULT_MODEL,
+                null);
+    }
+
+    private GeminiAPIService(Client client, ExtractionConfigRegistry extractionConfigs, String model,
+                             ModelUsage usage) {
+        this.client = client;
+        this.extractionConfigs = extractionConfigs;
+        this.model = model;
+        this.usage = usage;
     }
 
     /**
      * Checks for the connection with Gemini API.
      * @return true if authentication is successful, else false
      */
+    @Override
     public boolean authenticate() {
         GenerateContentResponse response =
                 client.models.generateContent(
-                        "gemini-2.5-flash-lite",
+                        model,
                         "Please reply with just \"yes\". No other words should be included.",
                         null);
 
         return response.text().equals("yes");
     }
 
+    @Override
+    public String getModelName() {
+        return model;
+    }
+
     /**
      * Sends a request to Gemini.
      * @param prompt - prompt to generate with
      * @return response text
      */
+    @Override
     public String call(String prompt) {
-        GenerateContentResponse response =
-                client.models.generateContent(
-                        "gemini-2.5-flash-lite",
-                        prompt,
-                        null);
+        return generate(prompt, null).text();
+    }
+
+    /**
+     * Sends a request through the SDK's asynchronous client, so no thread waits for the response.
+     * @param prompt - prompt to generate with
+     * @return future of the response text
+     */
+    @Override
+    public CompletableFuture<String> callAsync(String prompt) {
+        return generateAsync(prompt, null).thenApply(GenerateContentResponse::text);
+    }
+
+    /**
+     * Sends a request to Gemini and passes the text along as the model produces it.
+     * @param prompt - prompt to generate with
+     * @param onChunk - receives each piece of text as it arrives
+     * @return full response text
+     */
+    @Override
+    public String callStream(String prompt, Consumer<String> onChunk) {
+        StringBuilder sb = new StringBuilder();
+        long startNanos = System.nanoTime();
+        GenerateContentResponse last = null;
+
+        try (ResponseStream<GenerateContentResponse> stream =
+                     client.models.generateContentStream(
+                             model,
+                             prompt,
+                             null)) {
+            for (GenerateContentResponse response : stream) {
+                // The usage of the whole stream comes with its last response
+                last = response;
+                String text = response.text();
+                if (text == null || text.isEmpty()) {
+                    continue;
+                }
 
-        return response.text() + "\nEND\n";
+                sb.append(text);
+                onChunk.accept(text);
+            }
+        } finally {
+            recordUsage(last, startNanos);
+        }
+
+        return sb.toString();
     }
 
     /**
-     * Extracts a story through the GeminiAPI to JSON.
+     * Extracts a story through the GeminiAPI to JSON. The instructions are in the shared extraction config,
+     * so the prompt is just the story.
      * @param story - story to be extracted
      * @return JSONObject representation of story
      */
+    @Override
     public String extractStory(String story) {
-        GenerateContentConfig config =
-                GenerateContentConfig.builder()
-                        .responseMimeType("application/json")
-                        .responseSchema(storySchema)
-                        .build();
+        return generate(story, extractionConfigs.extractionConfig(model)).text();
+    }
 
-        GenerateContentResponse response =
-                client.models.generateContent(
-                        "gemini-2.5-flash-lite",
-                        String.format("Extract the story: %s", story),
-                        config);
+    /**
+     * Extracts a story through the SDK's asynchronous client.
+     * @param story - story to be extracted
+     * @return future of the JSON text of the extracted story
+     */
+    @Override
+    public CompletableFuture<String> extractStoryAsync(String story) {
+        return generateAsync(story, extractionConfigs.extractionConfig(model))
+                .thenApply(GenerateContentResponse::text);
+    }
+
+    /**
+     * Returns a view that adds the usage metadata and time of every call to the given usage.
+     * @param usage - usage of the request the calls are made for
+     * @return GeminiAPIService sharing this one's client
+     */
+    @Override
+    public LLMService withUsage(ModelUsage usage) {
+        return new GeminiAPIService(client, extractionConfigs, model, usage);
+    }
+
+    /**
+     * Returns a view that calls another Gemini model with the same client.
+     * @param model - name of the Gemini model, such as "gemini-2.5-flash"
+     * @return GeminiAPIService calling the model
+     */
+    @Override
+    public LLMService withModel(String model) {
+        return new GeminiAPIService(client, extractionConfigs, model, usage);
+    }
+
+    private GenerateContentResponse generate(String prompt, GenerateContentConfig config) {
+        long startNanos = System.nanoTime();
+        GenerateContentResponse response = null;
+        try {
+            response = client.models.generateContent(model, prompt, config);
+            return response;
+        } finally {
+            recordUsage(response, startNanos);
+        }
+    }
+
+    private CompletableFuture<GenerateContentResponse> generateAsync(String prompt, GenerateContentConfig config) {
+        long startNanos = System.nanoTime();
+        return client.async.models
+                .generateContent(model, prompt, config)
+                .whenComplete((response, e) -> recordUsage(response, startNanos));
+    }
+
+    /**
+     * Adds a call to the usage of this view, if it has one. Failed calls are counted with their time only.
+     * @param response - response of the call, or null if it failed
+     * @param startNanos - when the call was sent
+     */
+    private void recordUsage(GenerateContentResponse response, long startNanos) {
+        if (usage == null) {
+            return;
+        }
+
+        long nanos = System.nanoTime() - startNanos;
+        GenerateContentResponseUsageMetadata metadata = response != null ? response.usageMetadata().orElse(null) : null;
+        if (metadata == null) {
+            usage.record(0, 0, 0, nanos);
+            return;
+        }
+
+        usage.record(metadata.promptTokenCount().orElse(0), metadata.candidatesTokenCount().orElse(0),
+                metadata.cachedContentTokenCount().orElse(0), nanos);
+    }
 
-        return response.text() + "\nEND\n";
+    /**
+     * Client errors (4xx) are rejected the same way every time, except for timeouts and rate limiting.
+     * @param e - failure of a call
+     * @return true if the call is worth retrying
+     */
+    @Override
+    public boolean isRetryable(RuntimeException e) {
+        if (e instanceof ClientException clientError) {
+            return clientError.code() == 408 || clientError.code() == 429;
+        }
+        return true;
+    }
+
+    /**
+     * Rate limiting (429) and an overloaded model (503) mean Gemini wants fewer calls.
+     * @param e - failure of a call
+     * @return true if Gemini pushed back
+     */
+    @Override
+    public boolean isThrottled(RuntimeException e) {
+        return e instanceof ApiException apiError && (apiError.code() == 429 || apiError.code() == 503);
     }
 
     public static void main(String[] args) {
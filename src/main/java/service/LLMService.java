@@ -0,0 +1,154 @@
+package service;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * A text generation backend the server can send prompts to.
+ * Lets the server run against Gemini or an offline fake without any other change.
+ */
+public interface LLMService {
+    /**
+     * Checks for the connection with the backend.
+     * @return true if authentication is successful, else false
+     */
+    boolean authenticate();
+
+    /**
+     * Returns the name of the model used for generation.
+     * @return model name
+     */
+    String getModelName();
+
+    /**
+     * Sends a request to the backend.
+     * @param prompt - prompt to generate with
+     * @return response text
+     */
+    String call(String prompt);
+
+    /**
+     * Sends a request to the backend and passes the text along as it is produced.
+     * @param prompt - prompt to generate with
+     * @param onChunk - receives each piece of text as it arrives
+     * @return full response text
+     */
+    String callStream(String prompt, Consumer<String> onChunk);
+
+    /**
+     * Extracts a story to JSON matching Story.generateSchema().
+     * @param story - story to be extracted
+     * @return JSON text of the extracted story
+     */
+    String extractStory(String story);
+
+    /**
+     * Sends a request to the backend without blocking the caller.
+     * Backends without an asynchronous client make the blocking call on a virtual thread of its own.
+     * @param prompt - prompt to generate with
+     * @return future of the response text
+     */
+    default CompletableFuture<String> callAsync(String prompt) {
+        return CompletableFuture.supplyAsync(() -> call(prompt), Thread.ofVirtual()::start);
+    }
+
+    /**
+     * Extracts a story to JSON without blocking the caller.
+     * @param story - story to be extracted
+     * @return future of the JSON text of the extracted story
+     */
+    default CompletableFuture<String> extractStoryAsync(String story) {
+        return CompletableFuture.supplyAsync(() -> extractStory(story), Thread.ofVirtual()::start);
+    }
+
+    /**
+     * Returns the response a cache of this service already holds for the prompt, without calling the backend.
+     * Lets the server answer a repeated request without admitting it as a model call.
+     * Layers without a response cache pass the lookup on; the backend returns null.
+     * @param prompt - prompt to generate with
+     * @return cached response text, or null if there is none
+     */
+    default String cachedCall(String prompt) {
+        return null;
+    }
+
+    /**
+     * Returns the extraction a cache of this service already holds for the story, without calling the backend.
+     * Layers without an extraction cache pass the lookup on; the backend returns null.
+     * @param story - story to be extracted
+     * @return cached JSON text of the extracted story, or null if there is none
+     */
+    default String cachedExtraction(String story) {
+        return null;
+    }
+
+    /**
+     * Returns a view of this service that sends its calls to another model of the same backend. The view
+     * shares everything else, such as caches and in-flight calls, with this service.
+     * Backends with a single model return themselves.
+     * @param model - name of the model to call
+     * @return LLMService calling the model
+     */
+    default LLMService withModel(String model) {
+        return this;
+    }
+
+    /**
+     * Returns a view of this service whose backend calls add the tokens and time they use to the given
+     * usage. The view shares everything else, such as caches and in-flight calls, with this service.
+     * Backends that do not report usage return themselves.
+     * @param usage - usage of the request the calls are made for
+     * @return LLMService recording into usage
+     */
+    default LLMService withUsage(ModelUsage usage) {
+        return this;
+    }
+
+    /**
+     * Returns a view of this service whose calls go out on the model slots the server admitted them with.
+     * The view shares everything else, such as caches and in-flight calls, with this service.
+     * Layers that make one backend call per call return themselves.
+     * @param slots - slots of the call the view is made for
+     * @return LLMService using slots
+     */
+    default LLMService withSlots(CallSlots slots) {
+        return this;
+    }
+
+    /**
+     * Stops the threads this service and the services it wraps keep, once the server no longer makes calls.
+     */
+    default void shutdown() {
+    }
+
+    /**
+     * Returns the counters of this service and of the services it wraps, one object per layer, such as the
+     * hits of a cache. Decorators add their own entry to the stats of their delegate.
+     * @return JSONObject with an object per layer that keeps counters, empty if none do
+     */
+    default JSONObject getLayerStats() {
+        return new JSONObject();
+    }
+
+    /**
+     * Tells whether a failed call may succeed if it is made again, such as after a timeout or an overloaded
+     * backend, as opposed to a request the backend will always reject.
+     * @param e - failure of a call
+     * @return true if the call is worth retrying
+     */
+    default boolean isRetryable(RuntimeException e) {
+        return true;
+    }
+
+    /**
+     * Tells whether a call failed because the backend is overloaded or throttling us, which is a sign to
+     * send it fewer calls at once.
+     * @param e - failure of a call
+     * @return true if the backend pushed back
+     */
+    default boolean isThrottled(RuntimeException e) {
+        return false;
+    }
+}
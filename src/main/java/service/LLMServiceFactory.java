@@ -0,0 +1,64 @@
+package service;
+
+import config.Config;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Builds the LLM backend selected in the config.
+ */
+public class LLMServiceFactory {
+    private LLMServiceFactory() {}
+
+    /**
+     * Creates the backend named by Config.LLM_BACKEND, wrapped in the layers enabled in the config.
+     * @return LLMService
+     */
+    public static LLMService fromConfig() {
+        LLMService service = create(Config.LLM_BACKEND);
+
+        // Innermost, so coalesced and cached calls share one set of retries and one circuit breaker
+        service = new ResilientLLMService(service, Config.RETRY_MAX_ATTEMPTS, Config.RETRY_BASE_DELAY_MS,
+                Config.RETRY_MAX_DELAY_MS, new CircuitBreaker(Config.CIRCUIT_FAILURE_THRESHOLD, Config.CIRCUIT_OPEN_MS),
+                Config.HEDGE_ENABLED, Config.HEDGE_MIN_DELAY_MS);
+
+        if (Config.COALESCE_REQUESTS) {
+            service = new CoalescingLLMService(service);
+        }
+
+        if (Config.RESPONSE_CACHE_ENABLED) {
+            ResponseCache cache = new ResponseCache(Config.RESPONSE_CACHE_MAX_ENTRIES,
+                    Config.RESPONSE_CACHE_MAX_DISK_ENTRIES, Duration.ofMinutes(Config.RESPONSE_CACHE_TTL_MINUTES),
+                    Path.of(Config.RESPONSE_CACHE_DIR));
+            service = new CachingLLMService(service, cache);
+        }
+
+        if (Config.EXTRACTION_CACHE_ENABLED) {
+            ResponseCache cache = new ResponseCache(Config.EXTRACTION_CACHE_MAX_ENTRIES,
+                    Config.EXTRACTION_CACHE_MAX_DISK_ENTRIES, Duration.ofMinutes(Config.EXTRACTION_CACHE_TTL_MINUTES),
+                    Path.of(Config.EXTRACTION_CACHE_DIR));
+            service = new ExtractionCachingLLMService(service, cache);
+        }
+
+        return service;
+    }
+
+    /**
+     * Creates a backend by name.
+     * @param backend - "GEMINI" or "FAKE"
+     * @return LLMService
+     */
+    public static LLMService create(String backend) {
+        switch (backend.toUpperCase()) {
+            case "GEMINI" -> {
+                return new GeminiAPIService();
+            }
+            case "FAKE" -> {
+                return new FakeLLMService(Config.FAKE_LATENCY_MS, Config.FAKE_LATENCY_JITTER_MS,
+                        Config.FAKE_ERROR_RATE, Config.FAKE_OUTPUT_WORDS);
+            }
+            default -> throw new IllegalArgumentException("Unknown LLM backend: " + backend);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package service;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent calls to answer percentile questions such as "what is the p95".
+ */
+public class LatencyTracker {
+    private final long[] window;
+
+    // Guarded by this
+    private int next;
+    private int count;
+
+    /**
+     * @param windowSize - number of recent calls kept
+     */
+    public LatencyTracker(int windowSize) {
+        this.window = new long[windowSize];
+    }
+
+    public synchronized void record(long millis) {
+        window[next] = millis;
+        next = (next + 1) % window.length;
+        count = Math.min(count + 1, window.length);
+    }
+
+    /**
+     * Forgets every recorded latency.
+     */
+    public synchronized void clear() {
+        next = 0;
+        count = 0;
+    }
+
+    /**
+     * Returns how many latencies are in the window.
+     * @return number of recorded calls, at most the window size
+     */
+    public synchronized int count() {
+        return count;
+    }
+
+    /**
+     * Returns a percentile of the recent latencies.
+     * @param percentile - from 0 to 100
+     * @return latency in milliseconds, or 0 if nothing has been recorded
+     */
+    public long percentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (count == 0) return 0;
+            sorted = Arrays.copyOf(window, count);
+        }
+
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
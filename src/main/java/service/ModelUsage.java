@@ -0,0 +1,52 @@
+package service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tokens and time used by the backend calls made on behalf of one request.
+ * Filled in by backends that report usage, through a view from LLMService.withUsage. Retries and hedges
+ * add to it as well, since they are paid for; calls answered from a cache or shared with another request
+ * add nothing.
+ */
+public class ModelUsage {
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong inputTokens = new AtomicLong();
+    private final AtomicLong outputTokens = new AtomicLong();
+    private final AtomicLong cachedTokens = new AtomicLong();
+    private final AtomicLong modelNanos = new AtomicLong();
+
+    /**
+     * Adds one backend call.
+     * @param inputTokens - tokens of the prompt
+     * @param outputTokens - tokens generated
+     * @param cachedTokens - tokens of the prompt served from a context cache
+     * @param nanos - time the call took
+     */
+    public void record(long inputTokens, long outputTokens, long cachedTokens, long nanos) {
+        calls.incrementAndGet();
+        this.inputTokens.addAndGet(inputTokens);
+        this.outputTokens.addAndGet(outputTokens);
+        this.cachedTokens.addAndGet(cachedTokens);
+        modelNanos.addAndGet(nanos);
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getInputTokens() {
+        return inputTokens.get();
+    }
+
+    public long getOutputTokens() {
+        return outputTokens.get();
+    }
+
+    public long getCachedTokens() {
+        return cachedTokens.get();
+    }
+
+    public long getModelNanos() {
+        return modelNanos.get();
+    }
+}
@@ -0,0 +1,508 @@
+package service;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Decorator that keeps transient backend failures away from clients.
+ * Failed calls are retried after an exponential backoff with full jitter, so clients that failed together
+ * do not all come back at the same moment. A call that is slower than the recent p95 can be hedged with a
+ * second identical call, and whichever finishes first wins. A circuit breaker stops calling a backend that
+ * keeps failing, so requests fail fast instead of piling up behind it.
+ * Retries and hedges stay within the model slots the server admitted the call with: a call gives its slot
+ * back while it backs off, and a hedge is only sent if a second slot is free at that moment.
+ */
+public class ResilientLLMService implements LLMService {
+    // Recent calls needed before the p95 is trusted for hedging
+    private static final int MIN_HEDGE_SAMPLES = 20;
+    private static final int LATENCY_WINDOW = 200;
+
+    private final LLMService delegate;
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final CircuitBreaker breaker;
+    private final boolean hedge;
+    private final long hedgeMinDelayMillis;
+
+    private final LatencyTracker callLatencies;
+    private final LatencyTracker extractLatencies;
+    private final ExecutorService hedgeExecutor;
+    private final CallSlots slots;
+
+    private final AtomicLong attempts;
+    private final AtomicLong retries;
+    private final AtomicLong hedges;
+    private final AtomicLong hedgeWins;
+    private final AtomicLong hedgesSkipped;
+
+    /**
+     * @param delegate - backend to call
+     * @param maxAttempts - attempts per call including the first one, 1 to never retry
+     * @param baseDelayMillis - backoff ceiling before the first retry, doubled for every retry after it
+     * @param maxDelayMillis - largest backoff ceiling
+     * @param breaker - circuit breaker guarding the backend
+     * @param hedge - true to send a second call when the first one is slower than the recent p95
+     * @param hedgeMinDelayMillis - shortest wait before hedging, whatever the p95 is
+     */
+    public ResilientLLMService(LLMService delegate, int maxAttempts, long baseDelayMillis, long maxDelayMillis,
+                               CircuitBreaker breaker, boolean hedge, long hedgeMinDelayMillis) {
+        this.delegate = delegate;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.breaker = breaker;
+        this.hedge = hedge;
+        this.hedgeMinDelayMillis = hedgeMinDelayMillis;
+        this.callLatencies = new LatencyTracker(LATENCY_WINDOW);
+        this.extractLatencies = new LatencyTracker(LATENCY_WINDOW);
+        this.hedgeExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        this.slots = CallSlots.UNLIMITED;
+        this.attempts = new AtomicLong();
+        this.retries = new AtomicLong();
+        this.hedges = new AtomicLong();
+        this.hedgeWins = new AtomicLong();
+        this.hedgesSkipped = new AtomicLong();
+    }
+
+    /**
+     * A view over another delegate, on the slots of a call, that shares the circuit breaker, latencies and
+     * counters of the shared service.
+     */
+    private ResilientLLMService(ResilientLLMService shared, LLMService delegate, CallSlots slots) {
+        this.delegate = delegate;
+        this.maxAttempts = shared.maxAttempts;
+        this.baseDelayMillis = shared.baseDelayMillis;
+        this.maxDelayMillis = shared.maxDelayMillis;
+        this.breaker = shared.breaker;
+        this.hedge = shared.hedge;
+        this.hedgeMinDelayMillis = shared.hedgeMinDelayMillis;
+        this.callLatencies = shared.callLatencies;
+        this.extractLatencies = shared.extractLatencies;
+        this.hedgeExecutor = shared.hedgeExecutor;
+        this.slots = slots;
+        this.attempts = shared.attempts;
+        this.retries = shared.retries;
+        this.hedges = shared.hedges;
+        this.hedgeWins = shared.hedgeWins;
+        this.hedgesSkipped = shared.hedgesSkipped;
+    }
+
+    @Override
+    public boolean authenticate() {
+        return delegate.authenticate();
+    }
+
+    @Override
+    public String getModelName() {
+        return delegate.getModelName();
+    }
+
+    @Override
+    public String call(String prompt) {
+        return withRetries(() -> hedged(callLatencies, () -> delegate.call(prompt)), () -> true, null);
+    }
+
+    /**
+     * Streams are only retried while nothing has reached the client, and never hedged, since two streams
+     * cannot be merged into one.
+     */
+    @Override
+    public String callStream(String prompt, Consumer<String> onChunk) {
+        AtomicBoolean emitted = new AtomicBoolean();
+        AtomicReference<RuntimeException> listenerFailure = new AtomicReference<>();
+
+        Consumer<String> tracked = chunk -> {
+            emitted.set(true);
+            try {
+                onChunk.accept(chunk);
+            } catch (RuntimeException e) {
+                listenerFailure.set(e);
+                throw e;
+            }
+        };
+
+        return withRetries(() -> delegate.callStream(prompt, tracked), () -> !emitted.get(), listenerFailure);
+    }
+
+    @Override
+    public String extractStory(String story) {
+        return withRetries(() -> hedged(extractLatencies, () -> delegate.extractStory(story)), () -> true, null);
+    }
+
+    @Override
+    public CompletableFuture<String> callAsync(String prompt) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        attemptAsync(() -> hedgedAsync(callLatencies, () -> delegate.callAsync(prompt)), 1, result);
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<String> extractStoryAsync(String story) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        attemptAsync(() -> hedgedAsync(extractLatencies, () -> delegate.extractStoryAsync(story)), 1, result);
+        return result;
+    }
+
+    @Override
+    public boolean isRetryable(RuntimeException e) {
+        return delegate.isRetryable(e);
+    }
+
+    /**
+     * An open circuit counts as pushback too: the backend has been failing.
+     */
+    @Override
+    public boolean isThrottled(RuntimeException e) {
+        return e instanceof CircuitOpenException || delegate.isThrottled(e);
+    }
+
+    @Override
+    public LLMService withModel(String model) {
+        return new ResilientLLMService(this, delegate.withModel(model), slots);
+    }
+
+    @Override
+    public LLMService withUsage(ModelUsage usage) {
+        return new ResilientLLMService(this, delegate.withUsage(usage), slots);
+    }
+
+    @Override
+    public LLMService withSlots(CallSlots slots) {
+        return new ResilientLLMService(this, delegate.withSlots(slots), slots);
+    }
+
+    @Override
+    public String cachedCall(String prompt) {
+        return delegate.cachedCall(prompt);
+    }
+
+    @Override
+    public String cachedExtraction(String story) {
+        return delegate.cachedExtraction(story);
+    }
+
+    @Override
+    public JSONObject getLayerStats() {
+        JSONObject stats = delegate.getLayerStats();
+        stats.put("resilience", getStats());
+        return stats;
+    }
+
+    @Override
+    public void shutdown() {
+        hedgeExecutor.shutdown();
+        delegate.shutdown();
+    }
+
+    /**
+     * Returns the retry and hedging counters, recent latencies and the state of the circuit breaker.
+     * @return JSONObject of the stats
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("attempts", attempts.get());
+        stats.put("retries", retries.get());
+        stats.put("hedges", hedges.get());
+        stats.put("hedgeWins", hedgeWins.get());
+        stats.put("hedgesSkipped", hedgesSkipped.get());
+        stats.put("callP95Ms", callLatencies.percentile(95));
+        stats.put("extractP95Ms", extractLatencies.percentile(95));
+        stats.put("circuit", breaker.getStats());
+        return stats;
+    }
+
+    /**
+     * Runs a call through the circuit breaker, retrying failures the backend considers transient.
+     * @param call - call to make
+     * @param canRetry - false once the call can no longer be repeated
+     * @param listenerFailure - holds a failure that came from the caller rather than the backend, or null
+     * @return result of the call
+     * @throws CircuitOpenException if the backend has been failing and is not called
+     */
+    private String withRetries(Supplier<String> call, BooleanSupplier canRetry,
+                               AtomicReference<RuntimeException> listenerFailure) {
+        for (int attempt = 1; ; attempt++) {
+            breaker.acquire();
+            attempts.incrementAndGet();
+
+            try {
+                String result = call.get();
+                breaker.recordSuccess();
+                return result;
+            } catch (RuntimeException e) {
+                // A cancelled request or a rejected request says nothing about the backend's health
+                boolean callerFault = Thread.currentThread().isInterrupted()
+                        || (listenerFailure != null && listenerFailure.get() != null)
+                        || !delegate.isRetryable(e);
+                if (callerFault) {
+                    breaker.recordIgnored();
+                    throw e;
+                }
+
+                breaker.recordFailure();
+                if (attempt >= maxAttempts || !canRetry.getAsBoolean()) {
+                    throw e;
+                }
+
+                // Another call can have the slot while this one backs off
+                retries.incrementAndGet();
+                slots.release();
+                backoff(attempt, e);
+                slots.reacquire();
+            }
+        }
+    }
+
+    /**
+     * Makes one attempt of an asynchronous call, and schedules the next one if it fails and may be retried.
+     * Nothing is retried once the caller has cancelled the result.
+     * @param call - starts the call
+     * @param attempt - number of this attempt, from 1
+     * @param result - completed with the outcome of the last attempt
+     */
+    private void attemptAsync(Supplier<CompletableFuture<String>> call, int attempt, CompletableFuture<String> result) {
+        if (result.isDone()) return;
+
+        CompletableFuture<String> future;
+        try {
+            breaker.acquire();
+            attempts.incrementAndGet();
+            future = call.get();
+        } catch (CircuitOpenException e) {
+            result.completeExceptionally(e);
+            return;
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+
+        future.whenComplete((value, e) -> {
+            if (e == null) {
+                breaker.recordSuccess();
+                result.complete(value);
+                return;
+            }
+
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (result.isDone() || !(cause instanceof RuntimeException failure) || !delegate.isRetryable(failure)) {
+                breaker.recordIgnored();
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            breaker.recordFailure();
+            if (attempt >= maxAttempts) {
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            // Another call can have the slot while this one backs off
+            retries.incrementAndGet();
+            slots.release();
+            CompletableFuture.delayedExecutor(backoffMillis(attempt), TimeUnit.MILLISECONDS)
+                    .execute(() -> slots.reacquireAsync().whenComplete((admitted, busy) -> {
+                        if (busy == null) {
+                            attemptAsync(call, attempt + 1, result);
+                        }
+                        else {
+                            result.completeExceptionally(busy instanceof CompletionException && busy.getCause() != null
+                                    ? busy.getCause()
+                                    : busy);
+                        }
+                    }));
+        });
+    }
+
+    /**
+     * Sleeps the backoff of an attempt.
+     * @param attempt - attempt that just failed, from 1
+     * @param failure - failure of that attempt, rethrown if the sleep is interrupted
+     */
+    private void backoff(int attempt, RuntimeException failure) {
+        long delay = backoffMillis(attempt);
+        if (delay <= 0) return;
+
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw failure;
+        }
+    }
+
+    /**
+     * Picks a random backoff between 0 and the ceiling of the attempt (full jitter).
+     * @param attempt - attempt that just failed, from 1
+     * @return backoff in milliseconds
+     */
+    private long backoffMillis(int attempt) {
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+        return ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+    }
+
+    /**
+     * Makes a call, and a second identical one if the first has not finished after the recent p95.
+     * The first success is returned and the other call is cancelled. Without enough recent calls to know
+     * the p95, or with hedging disabled, the call is made once on the calling thread. Without a free model
+     * slot for the second call, the first one is waited for.
+     * @param latencies - recent latencies of this kind of call
+     * @param call - call to make
+     * @return result of the first call to succeed
+     */
+    private String hedged(LatencyTracker latencies, Supplier<String> call) {
+        Supplier<String> timed = () -> {
+            long start = System.nanoTime();
+            String result = call.get();
+            latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return result;
+        };
+
+        if (!hedge || latencies.count() < MIN_HEDGE_SAMPLES) {
+            return timed.get();
+        }
+
+        long delay = Math.max(hedgeMinDelayMillis, latencies.percentile(95));
+        ExecutorCompletionService<String> completion = new ExecutorCompletionService<>(hedgeExecutor);
+        List<Future<String>> futures = new ArrayList<>(2);
+        futures.add(completion.submit(timed::get));
+        boolean extraSlot = false;
+
+        try {
+            Future<String> done = completion.poll(delay, TimeUnit.MILLISECONDS);
+            if (done == null) {
+                extraSlot = slots.tryAcquireExtra();
+                if (extraSlot) {
+                    hedges.incrementAndGet();
+                    futures.add(completion.submit(timed::get));
+                }
+                else {
+                    hedgesSkipped.incrementAndGet();
+                }
+            }
+
+            // Take the first success; fail only once every call has failed
+            RuntimeException failure = null;
+            for (int i = 0; i < futures.size(); i++) {
+                if (done == null) done = completion.take();
+                try {
+                    String result = done.get();
+                    if (futures.size() > 1 && done == futures.get(1)) hedgeWins.incrementAndGet();
+                    return result;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof RuntimeException cause
+                                ? cause
+                                : new IllegalStateException(e.getCause());
+                    }
+                }
+                done = null;
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the model", e);
+        } finally {
+            for (Future<String> future : futures) {
+                future.cancel(true);
+            }
+            if (extraSlot) slots.releaseExtra();
+        }
+    }
+
+    /**
+     * Asynchronous version of hedged: starts a second call if the first has not finished after the recent
+     * p95, and completes with the first success, or with a failure once every call has failed.
+     * @param latencies - recent latencies of this kind of call
+     * @param call - starts the call
+     * @return future of the result of the first call to succeed
+     */
+    private CompletableFuture<String> hedgedAsync(LatencyTracker latencies, Supplier<CompletableFuture<String>> call) {
+        Supplier<CompletableFuture<String>> timed = () -> {
+            long start = System.nanoTime();
+            return call.get().thenApply(result -> {
+                latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return result;
+            });
+        };
+
+        if (!hedge || latencies.count() < MIN_HEDGE_SAMPLES) {
+            return timed.get();
+        }
+
+        long delay = Math.max(hedgeMinDelayMillis, latencies.percentile(95));
+        CompletableFuture<String> result = new CompletableFuture<>();
+        List<CompletableFuture<String>> futures = new CopyOnWriteArrayList<>();
+        AtomicInteger running = new AtomicInteger(1);
+
+        futures.add(startTracked(timed, running, result, false));
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+            if (running.get() == 0 || result.isDone()) return;
+            if (!slots.tryAcquireExtra()) {
+                hedgesSkipped.incrementAndGet();
+                return;
+            }
+
+            // Only hedge while the first call is still running
+            int count;
+            do {
+                count = running.get();
+                if (count == 0 || result.isDone()) {
+                    slots.releaseExtra();
+                    return;
+                }
+            } while (!running.compareAndSet(count, count + 1));
+
+            hedges.incrementAndGet();
+            CompletableFuture<String> hedgeCall = startTracked(timed, running, result, true);
+            hedgeCall.whenComplete((value, e) -> slots.releaseExtra());
+            futures.add(hedgeCall);
+        });
+
+        result.whenComplete((value, e) -> futures.forEach(future -> future.cancel(false)));
+        return result;
+    }
+
+    /**
+     * Starts one of the calls of a hedge and settles the hedge's result when it is the first success or the
+     * last failure.
+     */
+    private CompletableFuture<String> startTracked(Supplier<CompletableFuture<String>> call, AtomicInteger running,
+                                                   CompletableFuture<String> result, boolean isHedge) {
+        CompletableFuture<String> future;
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+
+        future.whenComplete((value, e) -> {
+            if (e == null) {
+                if (result.complete(value) && isHedge) hedgeWins.incrementAndGet();
+            }
+            else if (running.decrementAndGet() == 0) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                result.completeExceptionally(cause);
+            }
+        });
+        return future;
+    }
+}
@@ -0,0 +1,322 @@
+package service;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Two-tier cache of model responses.
+ * Recently used entries are kept in an in-memory LRU map; every entry is also written to a directory so it
+ * survives restarts. Entries older than the TTL are treated as missing and removed when found.
+ * The directory is swept of expired entries when the cache is created and then in the background, and holds
+ * at most maxDiskEntries files: once it has more, the oldest ones are deleted.
+ */
+public class ResponseCache {
+    private static final long MIN_SWEEP_INTERVAL_MS = 60 * 1000;
+    private static final long MAX_SWEEP_INTERVAL_MS = 60 * 60 * 1000;
+    // Disk entries left after going over the limit, so the directory is not swept again on the next write
+    private static final double DISK_SWEEP_TARGET = 0.9;
+
+    private final int maxEntries;
+    private final int maxDiskEntries;
+    private final long ttlMillis;
+    private final Path directory;
+    private final Map<String, Entry> memory;
+    private final AtomicInteger diskEntries = new AtomicInteger();
+    private final ScheduledExecutorService sweeper;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache that keeps ten times as many entries on disk as in memory.
+     * @param maxEntries - number of entries kept in memory
+     * @param ttl - how long an entry stays valid
+     * @param directory - directory of the on-disk tier, or null to keep entries in memory only
+     */
+    public ResponseCache(int maxEntries, Duration ttl, Path directory) {
+        this(maxEntries, 10 * maxEntries, ttl, directory);
+    }
+
+    /**
+     * @param maxEntries - number of entries kept in memory
+     * @param maxDiskEntries - number of entries kept on disk
+     * @param ttl - how long an entry stays valid
+     * @param directory - directory of the on-disk tier, or null to keep entries in memory only
+     */
+    public ResponseCache(int maxEntries, int maxDiskEntries, Duration ttl, Path directory) {
+        this.maxEntries = maxEntries;
+        this.maxDiskEntries = Math.max(1, maxDiskEntries);
+        this.ttlMillis = ttl.toMillis();
+        this.directory = directory;
+
+        // Access-ordered, so the eldest entry is the least recently used
+        this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > ResponseCache.this.maxEntries;
+            }
+        };
+
+        if (directory == null) {
+            this.sweeper = null;
+            return;
+        }
+
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        // Entries that expired while the server was down are cleared right away
+        sweepDisk();
+        long sweepInterval = Math.max(MIN_SWEEP_INTERVAL_MS, Math.min(MAX_SWEEP_INTERVAL_MS, ttlMillis / 2));
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cache-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweepDisk, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Looks up a response.
+     * @param key - cache key
+     * @return cached response, or null if missing or expired
+     */
+    public String get(String key) {
+        return lookup(key, true, true);
+    }
+
+    /**
+     * Looks up a response without counting a hit or a miss, for a second look at a key that was just
+     * counted, such as after waiting for another call to fill it.
+     * @param key - cache key
+     * @return cached response, or null if missing or expired
+     */
+    public String peek(String key) {
+        return lookup(key, false, false);
+    }
+
+    /**
+     * Looks up a response, counting a hit but not a miss, for a look ahead of the call that counts the miss
+     * if there is one.
+     * @param key - cache key
+     * @return cached response, or null if missing or expired
+     */
+    public String find(String key) {
+        return lookup(key, true, false);
+    }
+
+    private String lookup(String key, boolean countHit, boolean countMiss) {
+        long now = System.currentTimeMillis();
+
+        synchronized (memory) {
+            Entry entry = memory.get(key);
+            if (entry != null) {
+                if (!entry.isExpired(now, ttlMillis)) {
+                    if (countHit) memoryHits.incrementAndGet();
+                    return entry.value();
+                }
+                memory.remove(key);
+            }
+        }
+
+        Entry entry = readFromDisk(key, now);
+        if (entry == null) {
+            if (countMiss) misses.incrementAndGet();
+            return null;
+        }
+
+        synchronized (memory) {
+            memory.put(key, entry);
+        }
+        if (countHit) diskHits.incrementAndGet();
+        return entry.value();
+    }
+
+    /**
+     * Stores a response in both tiers.
+     * @param key - cache key
+     * @param value - response to store
+     */
+    public void put(String key, String value) {
+        Entry entry = new Entry(value, System.currentTimeMillis());
+
+        synchronized (memory) {
+            memory.put(key, entry);
+        }
+        writeToDisk(key, entry);
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getHits() {
+        return memoryHits.get() + diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the hit and miss counters.
+     * @return JSONObject of the counters
+     */
+    public JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("memoryHits", getMemoryHits());
+        stats.put("diskHits", getDiskHits());
+        stats.put("misses", getMisses());
+        synchronized (memory) {
+            stats.put("memoryEntries", memory.size());
+        }
+        stats.put("diskEntries", diskEntries.get());
+        return stats;
+    }
+
+    /**
+     * Stops sweeping the on-disk tier in the background.
+     */
+    public void shutdown() {
+        if (sweeper != null) sweeper.shutdownNow();
+    }
+
+    /**
+     * Deletes the files of expired entries, then the oldest files while there are more than maxDiskEntries.
+     * A file is as old as its last write, which is when its entry was created.
+     */
+    synchronized void sweepDisk() {
+        if (directory == null) return;
+
+        List<Path> kept = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> entries = files
+                    .filter(file -> file.getFileName().toString().endsWith(".json"))
+                    .sorted(Comparator.comparingLong(ResponseCache::lastModified))
+                    .toList();
+            for (Path file : entries) {
+                if (now - lastModified(file) > ttlMillis) {
+                    Files.deleteIfExists(file);
+                }
+                else {
+                    kept.add(file);
+                }
+            }
+
+            int target = kept.size() > maxDiskEntries ? (int) (maxDiskEntries * DISK_SWEEP_TARGET) : kept.size();
+            while (kept.size() > target) {
+                Files.deleteIfExists(kept.remove(0));
+            }
+        } catch (IOException e) {
+            System.err.println("Error sweeping cache directory " + directory + ": " + e.getMessage());
+        }
+        diskEntries.set(kept.size());
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            // Already deleted, sort it first so it is dropped
+            return 0;
+        }
+    }
+
+    private Entry readFromDisk(String key, long now) {
+        if (directory == null) return null;
+
+        Path file = fileFor(key);
+        if (!Files.isRegularFile(file)) return null;
+
+        try {
+            JSONObject json = new JSONObject(Files.readString(file, StandardCharsets.UTF_8));
+
+            // Guard against hash collisions as well as expired entries
+            Entry entry = new Entry(json.getString("value"), json.getLong("createdAt"));
+            if (!key.equals(json.getString("key")) || entry.isExpired(now, ttlMillis)) {
+                if (entry.isExpired(now, ttlMillis) && Files.deleteIfExists(file)) diskEntries.decrementAndGet();
+                return null;
+            }
+            return entry;
+        } catch (Exception e) {
+            System.err.println("Error reading cache entry " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, Entry entry) {
+        if (directory == null) return;
+
+        JSONObject json = new JSONObject();
+        json.put("key", key);
+        json.put("createdAt", entry.createdAt());
+        json.put("value", entry.value());
+
+        // Write to a temporary file first so a crash never leaves a half-written entry behind
+        Path file = fileFor(key);
+        try {
+            boolean added = !Files.exists(file);
+            Path temp = Files.createTempFile(directory, "entry", ".tmp");
+            Files.writeString(temp, json.toString(), StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (added && diskEntries.incrementAndGet() > maxDiskEntries) {
+                sweepDisk();
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing cache entry " + file + ": " + e.getMessage());
+        }
+    }
+
+    private Path fileFor(String key) {
+        return directory.resolve(hash(key) + ".json");
+    }
+
+    /**
+     * Hashes a string with SHA-256.
+     * @param text - text to hash
+     * @return hex digest
+     */
+    public static String hash(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record Entry(String value, long createdAt) {
+        boolean isExpired(long now, long ttlMillis) {
+            return now - createdAt > ttlMillis;
+        }
+    }
+}
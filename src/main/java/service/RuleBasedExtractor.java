@@ -0,0 +1,458 @@
+package service;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts a story without a model, in the same JSON shape as Story.generateSchema().
+ * Names are runs of capitalized words. Whether a name is a character or a location is decided from the
+ * words around it: titles and speech or action verbs point to a character, place prepositions and place
+ * words such as "Lake" or "-ford" to a location. Pronouns near a character give its gender.
+ * Every extraction comes with a confidence from 0 to 1, so a caller can fall back to the model when the
+ * cues were weak or contradictory.
+ */
+public class RuleBasedExtractor {
+    private static final Pattern SENTENCE_END = Pattern.compile("(?<=[.!?])\\s+|\\n+");
+    private static final Pattern WORD = Pattern.compile("[A-Za-z][A-Za-z'’-]*|\\d+");
+    private static final Pattern AGE = Pattern.compile("(\\d{1,3})[- ]years?[- ]old|aged (\\d{1,3})");
+    private static final int DESCRIPTION_LENGTH = 200;
+    private static final int SUMMARY_SENTENCES = 2;
+
+    // Capitalized words that start sentences rather than names
+    private static final Set<String> STOPWORDS = Set.of(
+            "a", "an", "the", "he", "she", "it", "they", "we", "i", "you", "his", "her", "their", "its", "our",
+            "my", "your", "this", "that", "these", "those", "there", "then", "when", "while", "after", "before",
+            "as", "but", "and", "or", "so", "if", "in", "on", "at", "by", "for", "from", "with", "without", "into",
+            "once", "one", "every", "each", "some", "all", "no", "not", "yes", "what", "who", "why", "how", "where",
+            "chapter", "suddenly", "finally", "meanwhile", "later", "soon", "now", "still", "even", "just", "only",
+            "together", "eventually", "however", "perhaps", "maybe", "long", "years", "days", "nobody", "everyone",
+            "someone", "nothing", "everything", "oh", "well", "here", "today", "tomorrow", "yesterday");
+    private static final Set<String> TITLES = Set.of(
+            "mr", "mrs", "ms", "miss", "dr", "sir", "lady", "lord", "king", "queen", "prince", "princess",
+            "captain", "professor", "master", "uncle", "aunt", "grandma", "grandpa", "father", "mother",
+            "brother", "sister", "detective", "officer", "general", "doctor");
+    private static final Set<String> CHARACTER_VERBS = Set.of(
+            "said", "asked", "replied", "whispered", "shouted", "smiled", "laughed", "cried", "thought", "knew",
+            "felt", "walked", "ran", "looked", "nodded", "decided", "wanted", "told", "lived", "found", "saw",
+            "took", "gave", "turned", "grinned", "sighed", "answered", "called", "met", "loved", "hoped", "tried",
+            "began", "realized", "wondered", "stood", "sat", "waited", "frowned");
+    private static final Set<String> PLACE_PREPOSITIONS = Set.of(
+            "in", "at", "near", "into", "towards", "toward", "across", "through", "inside", "outside", "around",
+            "beyond", "above", "below", "reached", "visited", "entered", "left", "leaving", "arrived", "under");
+    private static final Set<String> PLACE_WORDS = Set.of(
+            "city", "town", "village", "lake", "river", "mountain", "mountains", "forest", "woods", "castle",
+            "kingdom", "valley", "mill", "island", "sea", "ocean", "bay", "harbor", "harbour", "port", "hill",
+            "hills", "tower", "temple", "desert", "falls", "bridge", "street", "road", "inn", "palace", "academy",
+            "school", "station", "empire", "realm", "marsh", "moor", "keep", "fortress", "cave", "caves", "grove",
+            "glen", "springs", "park", "market", "square", "house", "hall", "library", "church", "garden");
+    private static final String[] PLACE_SUFFIXES = {
+            "moor", "ford", "ton", "ville", "burg", "bury", "shire", "land", "wood", "port", "field", "dale",
+            "haven", "ham", "wick", "stead", "holm", "mouth", "vale"};
+    private static final Set<String> MALE_PRONOUNS = Set.of("he", "him", "his", "himself");
+    private static final Set<String> FEMALE_PRONOUNS = Set.of("she", "her", "hers", "herself");
+    private static final Set<String> SPECIES = Set.of(
+            "dragon", "elf", "dwarf", "orc", "goblin", "troll", "fairy", "giant", "robot", "android", "cat", "dog",
+            "fox", "wolf", "horse", "owl", "bear", "vampire", "werewolf", "ghost", "mermaid", "unicorn", "rabbit",
+            "mouse", "bird", "alien", "witch", "wizard");
+
+    /**
+     * Result of an extraction.
+     * @param json - Story JSON matching Story.generateSchema()
+     * @param confidence - from 0 to 1, how clear the cues behind the extraction were
+     */
+    public record Extraction(String json, double confidence) {}
+
+    /**
+     * What a name is taken to be from its cues so far.
+     */
+    private enum Kind {CHARACTER, LOCATION, AMBIGUOUS, IGNORED}
+
+    /**
+     * What has been seen of one name across the story. Everything is added as each sentence is scanned, so
+     * building an extraction never reads the sentences again.
+     */
+    private static final class Candidate {
+        final String name;
+        String firstSentence;
+        int lastSentence = -1;
+        int mentions;
+        int midSentenceMentions;
+        double characterScore;
+        double locationScore;
+        int male;
+        int female;
+        int age;
+        String species = "Human";
+
+        Candidate(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Extracts the characters, locations, name and summary of a story.
+     * @param story - story text
+     * @return Extraction with the Story JSON and its confidence
+     */
+    public Extraction extract(String story) {
+        Session session = newSession();
+        session.accept(story);
+        return session.finish();
+    }
+
+    /**
+     * Starts an extraction that is fed the story a piece at a time, such as the chunks of a streamed model call.
+     * @return Session with nothing read yet
+     */
+    public Session newSession() {
+        return new Session();
+    }
+
+    /**
+     * Extraction of a story that is still being written. Each sentence is scanned once, when the one after it
+     * has been read (its first word may be a pronoun referring back), so the running candidates cost little to
+     * keep up and the final result is ready as soon as the last chunk has been read. A snapshot only reads
+     * the candidates, never the sentences behind them.
+     * Not thread-safe: feed a session from one thread at a time.
+     */
+    public final class Session {
+        private final StringBuilder unread = new StringBuilder();
+        private final List<String> sentences = new ArrayList<>();
+        private final Set<String> lowercaseWords = new HashSet<>();
+        private final Map<String, Candidate> candidates = new LinkedHashMap<>();
+        private int scanned;
+        private String lastEntities;
+
+        private Session() {}
+
+        /**
+         * Reads the next piece of the story.
+         * @param chunk - text that follows what has been read so far
+         * @return true if a sentence was scanned, so a new snapshot may differ from the last one
+         */
+        public boolean accept(String chunk) {
+            unread.append(chunk);
+
+            Matcher sentenceEnd = SENTENCE_END.matcher(unread);
+            int from = 0;
+            while (sentenceEnd.find()) {
+                addSentence(unread.substring(from, sentenceEnd.start()));
+                from = sentenceEnd.end();
+            }
+            unread.delete(0, from);
+
+            // Every sentence but the last one read can be scanned now
+            int before = scanned;
+            while (scanned + 1 < sentences.size()) {
+                scanSentence(scanned, firstWord(sentences.get(scanned + 1)));
+                scanned++;
+            }
+            return scanned > before;
+        }
+
+        /**
+         * Builds an extraction of the sentences scanned so far.
+         * @return Extraction of the story up to now
+         */
+        public Extraction snapshot() {
+            return build(sentences.subList(0, scanned));
+        }
+
+        /**
+         * Builds an extraction of the sentences scanned so far, if the characters or locations found have
+         * changed since the last one this returned. Details such as a character's age are not checked.
+         * @return Extraction of the story up to now, or null if the same names are classified the same way
+         */
+        public Extraction snapshotIfChanged() {
+            StringBuilder entities = new StringBuilder();
+            for (Candidate candidate : candidates.values()) {
+                Kind kind = kindOf(candidate);
+                if (kind == Kind.CHARACTER || kind == Kind.LOCATION) {
+                    entities.append(kind.ordinal()).append(candidate.name).append('\n');
+                }
+            }
+
+            String key = entities.toString();
+            if (key.equals(lastEntities)) return null;
+            lastEntities = key;
+            return snapshot();
+        }
+
+        /**
+         * Reads the rest of the story as its last sentence and builds the final extraction.
+         * @return Extraction of the whole story
+         */
+        public Extraction finish() {
+            addSentence(unread.toString());
+            unread.setLength(0);
+            while (scanned < sentences.size()) {
+                String nextSentenceStart = scanned + 1 < sentences.size() ? firstWord(sentences.get(scanned + 1)) : "";
+                scanSentence(scanned, nextSentenceStart);
+                scanned++;
+            }
+            return build(sentences);
+        }
+
+        private void addSentence(String sentence) {
+            if (sentence.isBlank()) return;
+            sentences.add(sentence.trim());
+
+            Matcher matcher = WORD.matcher(sentence);
+            while (matcher.find()) {
+                String word = matcher.group();
+                if (Character.isLowerCase(word.charAt(0))) lowercaseWords.add(word);
+            }
+        }
+
+        private void scanSentence(int index, String nextSentenceStart) {
+            RuleBasedExtractor.this.scanSentence(index, sentences.get(index), nextSentenceStart, candidates);
+        }
+
+        private Kind kindOf(Candidate candidate) {
+            // A lone word that also appears in lower case is an ordinary word at the start of a sentence
+            if (!candidate.name.contains(" ")
+                    && lowercaseWords.contains(candidate.name.toLowerCase(Locale.ROOT))) return Kind.IGNORED;
+
+            if (candidate.characterScore + candidate.locationScore == 0) {
+                // A name that keeps coming up without any cue is most likely someone, but only just
+                if (candidate.midSentenceMentions >= 2) return Kind.CHARACTER;
+                return candidate.midSentenceMentions > 0 ? Kind.AMBIGUOUS : Kind.IGNORED;
+            }
+            return candidate.characterScore >= candidate.locationScore ? Kind.CHARACTER : Kind.LOCATION;
+        }
+
+        private Extraction build(List<String> sentences) {
+            JSONArray characters = new JSONArray();
+            JSONArray locations = new JSONArray();
+            double certaintySum = 0;
+            int certaintyWeight = 0;
+            int ambiguous = 0;
+            Candidate mainCharacter = null;
+
+            for (Candidate candidate : candidates.values()) {
+                Kind kind = kindOf(candidate);
+                if (kind == Kind.AMBIGUOUS) ambiguous++;
+                if (kind == Kind.AMBIGUOUS || kind == Kind.IGNORED) continue;
+
+                double cues = candidate.characterScore + candidate.locationScore;
+                double certainty = cues == 0
+                        ? 0.3
+                        : Math.abs(candidate.characterScore - candidate.locationScore) / cues;
+                certaintySum += certainty * candidate.mentions;
+                certaintyWeight += candidate.mentions;
+
+                if (kind == Kind.CHARACTER) {
+                    characters.put(characterJSON(candidate));
+                    if (mainCharacter == null || candidate.mentions > mainCharacter.mentions) {
+                        mainCharacter = candidate;
+                    }
+                }
+                else {
+                    JSONObject location = new JSONObject();
+                    location.put("name", candidate.name);
+                    location.put("description", shorten(candidate.firstSentence));
+                    locations.put(location);
+                }
+            }
+
+            JSONObject storyJSON = new JSONObject();
+            storyJSON.put("name", mainCharacter != null ? "The Tale of " + mainCharacter.name : "Untitled Story");
+            storyJSON.put("summary", summary(sentences));
+            storyJSON.put("characters", characters);
+            storyJSON.put("locations", locations);
+
+            int classified = characters.length() + locations.length();
+            double confidence = 0;
+            if (classified > 0) {
+                confidence = (certaintySum / certaintyWeight) * classified / (classified + ambiguous);
+            }
+            if (characters.isEmpty()) {
+                // Stories nearly always have someone in them, so finding nobody means the rules missed them
+                confidence /= 2;
+            }
+
+            return new Extraction(storyJSON.toString(), confidence);
+        }
+    }
+
+    /**
+     * Finds the names in a sentence and scores the cues around each of them.
+     */
+    private void scanSentence(int index, String sentence, String nextSentenceStart,
+                              Map<String, Candidate> candidates) {
+        List<String> words = words(sentence);
+        int i = 0;
+        while (i < words.size()) {
+            if (!isCapitalized(words.get(i))) {
+                i++;
+                continue;
+            }
+
+            // Collect the run of capitalized words, allowing "of" and "the" inside it as in "Kingdom of the Sea"
+            int start = i;
+            int end = i + 1;
+            while (end < words.size()) {
+                if (isCapitalized(words.get(end))) {
+                    end++;
+                }
+                else if (isConnector(words.get(end)) && end + 1 < words.size() && isCapitalized(words.get(end + 1))) {
+                    end += 2;
+                }
+                else {
+                    break;
+                }
+            }
+            i = end;
+
+            List<String> run = new ArrayList<>(words.subList(start, end));
+            boolean titled = false;
+            while (!run.isEmpty() && (isStopword(run.get(0)) || isTitle(run.get(0)))) {
+                titled |= isTitle(run.get(0));
+                run.remove(0);
+            }
+            if (run.isEmpty()) continue;
+
+            // Lone words that also appear in lower case are left out when the extraction is built
+            boolean possessive = stripPossessive(run);
+
+            String name = String.join(" ", run);
+            Candidate candidate = candidates.computeIfAbsent(name, Candidate::new);
+            candidate.mentions++;
+            if (start > 0) candidate.midSentenceMentions++;
+            if (candidate.lastSentence != index) {
+                candidate.lastSentence = index;
+                addSentenceDetails(candidate, sentence, words);
+            }
+
+            String previous = start > 0 ? words.get(start - 1).toLowerCase(Locale.ROOT) : "";
+            String next = end < words.size() ? words.get(end).toLowerCase(Locale.ROOT) : "";
+            String last = run.get(run.size() - 1).toLowerCase(Locale.ROOT);
+
+            if (titled) candidate.characterScore += 2;
+            if (possessive) candidate.characterScore += 1;
+            if (CHARACTER_VERBS.contains(next)) candidate.characterScore += 2;
+            if (PLACE_PREPOSITIONS.contains(previous)) candidate.locationScore += 2;
+            if (previous.equals("to") || previous.equals("from")) candidate.locationScore += 1;
+            if (PLACE_WORDS.contains(last)) candidate.locationScore += 3;
+            else if (hasPlaceSuffix(last)) candidate.locationScore += 1;
+
+            // Pronouns in the same sentence, or starting the next one, usually refer back to a character
+            for (String word : words) {
+                String lower = word.toLowerCase(Locale.ROOT);
+                if (MALE_PRONOUNS.contains(lower)) candidate.male++;
+                if (FEMALE_PRONOUNS.contains(lower)) candidate.female++;
+            }
+            String nextStart = nextSentenceStart.toLowerCase(Locale.ROOT);
+            if (MALE_PRONOUNS.contains(nextStart) || FEMALE_PRONOUNS.contains(nextStart)) {
+                candidate.characterScore += 1;
+                if (MALE_PRONOUNS.contains(nextStart)) candidate.male++;
+                else candidate.female++;
+            }
+        }
+    }
+
+    /**
+     * Takes what a sentence mentioning a candidate says about it: the first sentence is its description, and
+     * the first age and species found in its sentences are kept.
+     */
+    private static void addSentenceDetails(Candidate candidate, String sentence, List<String> words) {
+        if (candidate.firstSentence == null) candidate.firstSentence = sentence;
+
+        Matcher ageMatcher = AGE.matcher(sentence);
+        if (candidate.age == 0 && ageMatcher.find()) {
+            candidate.age = Integer.parseInt(ageMatcher.group(1) != null ? ageMatcher.group(1) : ageMatcher.group(2));
+        }
+        for (String word : words) {
+            String lower = word.toLowerCase(Locale.ROOT);
+            if (candidate.species.equals("Human") && SPECIES.contains(lower)) {
+                candidate.species = Character.toUpperCase(lower.charAt(0)) + lower.substring(1);
+            }
+        }
+    }
+
+    private JSONObject characterJSON(Candidate candidate) {
+        String gender = "Unknown";
+        if (candidate.male > candidate.female) gender = "Male";
+        else if (candidate.female > candidate.male) gender = "Female";
+
+        JSONObject character = new JSONObject();
+        character.put("name", candidate.name);
+        character.put("age", candidate.age);
+        character.put("gender", gender);
+        character.put("race", "Unknown");
+        character.put("species", candidate.species);
+        character.put("description", shorten(candidate.firstSentence));
+        return character;
+    }
+
+    private static List<String> words(String sentence) {
+        List<String> words = new ArrayList<>();
+        Matcher matcher = WORD.matcher(sentence);
+        while (matcher.find()) {
+            words.add(matcher.group());
+        }
+        return words;
+    }
+
+    private static String firstWord(String sentence) {
+        Matcher matcher = WORD.matcher(sentence);
+        return matcher.find() ? matcher.group() : "";
+    }
+
+    private static String summary(List<String> sentences) {
+        String summary = String.join(" ", sentences.subList(0, Math.min(SUMMARY_SENTENCES, sentences.size())));
+        return shorten(summary);
+    }
+
+    private static String shorten(String text) {
+        return text.length() <= DESCRIPTION_LENGTH ? text : text.substring(0, DESCRIPTION_LENGTH - 3) + "...";
+    }
+
+    private static boolean isCapitalized(String word) {
+        return Character.isUpperCase(word.charAt(0));
+    }
+
+    private static boolean isConnector(String word) {
+        return word.equals("of") || word.equals("the");
+    }
+
+    private static boolean isStopword(String word) {
+        return STOPWORDS.contains(word.toLowerCase(Locale.ROOT));
+    }
+
+    private static boolean isTitle(String word) {
+        return TITLES.contains(word.toLowerCase(Locale.ROOT));
+    }
+
+    private static boolean hasPlaceSuffix(String word) {
+        for (String suffix : PLACE_SUFFIXES) {
+            if (word.length() > suffix.length() + 2 && word.endsWith(suffix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes a possessive "'s" from the last word of a name.
+     * @return true if there was one
+     */
+    private static boolean stripPossessive(List<String> run) {
+        String last = run.get(run.size() - 1);
+        for (String suffix : new String[] {"'s", "’s"}) {
+            if (last.endsWith(suffix) && last.length() > suffix.length()) {
+                run.set(run.size() - 1, last.substring(0, last.length() - suffix.length()));
+                return true;
+            }
+        }
+        return false;
+    }
+}
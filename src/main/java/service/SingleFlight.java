@@ -0,0 +1,138 @@
+package service;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs at most one call per key at a time.
+ * Callers that ask for a key while its call is still running wait for that call and get the same result
+ * (or exception) instead of starting their own. If the caller running the call is interrupted, because its
+ * request was cancelled, the callers waiting on it try again instead of failing with it.
+ * @param <V> result type
+ */
+public class SingleFlight<V> {
+    private final Map<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong sharedCalls = new AtomicLong();
+
+    /**
+     * Runs the call, or joins the one already running for the same key.
+     * @param key - identifies identical calls
+     * @param call - the call to run if none is running
+     * @return result of the call
+     */
+    public V execute(String key, Supplier<V> call) {
+        while (true) {
+            CompletableFuture<V> flight = new CompletableFuture<>();
+            CompletableFuture<V> running = inFlight.putIfAbsent(key, flight);
+            if (running != null) {
+                sharedCalls.incrementAndGet();
+                try {
+                    return join(running);
+                } catch (CancellationException e) {
+                    sharedCalls.decrementAndGet();
+                    continue;
+                }
+            }
+
+            calls.incrementAndGet();
+            try {
+                V result = call.get();
+                flight.complete(result);
+                return result;
+            } catch (RuntimeException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    flight.cancel(false);
+                }
+                else {
+                    flight.completeExceptionally(e);
+                }
+                throw e;
+            } finally {
+                inFlight.remove(key, flight);
+            }
+        }
+    }
+
+    /**
+     * Starts the asynchronous call, or joins the one already running for the same key.
+     * Cancelling the returned future only stops waiting for it; the shared call goes on for the others.
+     * @param key - identifies identical calls
+     * @param call - starts the call if none is running
+     * @return future of the result of the call
+     */
+    public CompletableFuture<V> executeAsync(String key, Supplier<CompletableFuture<V>> call) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, flight);
+        if (running != null) {
+            sharedCalls.incrementAndGet();
+            return running.copy().exceptionallyCompose(e -> {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (!(cause instanceof CancellationException)) {
+                    return CompletableFuture.failedFuture(cause);
+                }
+
+                // The blocking caller running the call was interrupted, try again
+                sharedCalls.decrementAndGet();
+                return executeAsync(key, call);
+            });
+        }
+
+        calls.incrementAndGet();
+        CompletableFuture<V> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+
+        result.whenComplete((value, e) -> {
+            inFlight.remove(key, flight);
+            if (e != null) {
+                flight.completeExceptionally(e);
+            }
+            else {
+                flight.complete(value);
+            }
+        });
+        return flight.copy();
+    }
+
+    /**
+     * Returns how many calls actually ran.
+     * @return number of calls
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * Returns how many callers joined a running call instead of making their own.
+     * @return number of calls saved
+     */
+    public long getSharedCalls() {
+        return sharedCalls.get();
+    }
+
+    /**
+     * Waits for a running call. Unlike join, gives up if the waiting thread is interrupted.
+     * @throws CancellationException if the caller running the call was interrupted
+     */
+    static <V> V join(CompletableFuture<V> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) throw cause;
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a shared call", e);
+        }
+    }
+}
@@ -3,9 +3,9 @@ package view;
 import controller.GenerationEngine;
 import controller.NarrativeStrategy;
 import controller.SaveLoadHandler;
+import controller.ServerBusyException;
 import controller.ServerConnection;
 import model.Story;
-import org.json.JSONObject;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -17,6 +17,7 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 public class StoryGeneratorGUI extends JFrame {
     // Fields
@@ -29,6 +30,7 @@ public class StoryGeneratorGUI extends JFrame {
     private JTree storyTree;
     private DefaultTreeModel treeModel;
     private DefaultMutableTreeNode topTreeNode;
+    private DefaultMutableTreeNode liveStoryNode;
 
     // Connection
     ServerConnection serverConnection;
@@ -202,8 +204,9 @@ public class StoryGeneratorGUI extends JFrame {
     /**
      * Generates the story node and adds it to the tree.
      * @param story
+     * @return the story node
      */
-    private void addStoryToTree(Story story) {
+    private DefaultMutableTreeNode addStoryToTree(Story story) {
         DefaultMutableTreeNode storyNode = new DefaultMutableTreeNode(story.getName());
         treeModel.insertNodeInto(storyNode, topTreeNode, topTreeNode.getChildCount());
         storyTree.scrollPathToVisible(new TreePath(storyNode.getPath()));
@@ -227,6 +230,35 @@ public class StoryGeneratorGUI extends JFrame {
             DefaultMutableTreeNode location = new DefaultMutableTreeNode(locationName);
             locations.add(location);
         }
+
+        return storyNode;
+    }
+
+    /**
+     * Shows the characters and locations found so far in a story that is still being generated, replacing
+     * the ones shown before.
+     * @param story - partial story from the server
+     */
+    private void showLiveStory(Story story) {
+        removeLiveStory();
+        story.setName(story.getName() + " (in progress)");
+        liveStoryNode = addStoryToTree(story);
+        treeModel.nodeStructureChanged(liveStoryNode);
+
+        for (int i = 0; i < liveStoryNode.getChildCount(); i++) {
+            DefaultMutableTreeNode child = (DefaultMutableTreeNode) liveStoryNode.getChildAt(i);
+            storyTree.expandPath(new TreePath(child.getPath()));
+        }
+    }
+
+    /**
+     * Removes the story that was being generated from the tree.
+     */
+    private void removeLiveStory() {
+        if (liveStoryNode != null) {
+            treeModel.removeNodeFromParent(liveStoryNode);
+            liveStoryNode = null;
+        }
     }
 
     /**
@@ -245,23 +277,29 @@ public class StoryGeneratorGUI extends JFrame {
         updateStatus("Generating story... Please wait...");
 
         // Make the worker generate on another thread so the GUI does not have to freeze.
-        SwingWorker<Story, Void> worker = new SwingWorker<Story, Void>() {
+        SwingWorker<Story, String> worker = new SwingWorker<Story, String>() {
             @Override
             protected Story doInBackground() throws Exception {
                 GenerationEngine engine = new GenerationEngine(new NarrativeStrategy());
                 prompt[0] = engine.construct(prompt[0]);
-                String response = serverConnection.createStory(prompt[0]);
 
-                // Extract story to JSON to Story Object
-                JSONObject storyJSON = serverConnection.extractJSONfromStory(response);
-                Story story = Story.fromJSON(storyJSON);
-                story.setStory(response);
+                // Generate and extract on the server in one round trip, showing the story and the characters and
+                // locations found so far as it streams in
+                return serverConnection.createAndExtractStory(prompt[0], engine.getStrategyName(), engine.getQuality(),
+                        chunk -> publish(chunk), partial -> SwingUtilities.invokeLater(() -> showLiveStory(partial)))
+                        .get();
+            }
 
-                return story;
+            @Override
+            protected void process(List<String> chunks) {
+                for (String chunk : chunks) {
+                    appendText(chunk);
+                }
             }
 
             @Override
             protected void done() {
+                removeLiveStory();
                 Story story = null;
                 try {
                     story = get();
@@ -269,6 +307,20 @@ public class StoryGeneratorGUI extends JFrame {
                     addStoryToTree(story);
                     changeText(String.format("STORY NAME: %s\n\n%s", story.getName(), story.getStory()));
                     updateStatus("Generated the story.");
+                } catch (ExecutionException e) {
+                    // The worker wraps the failure of the request's future in an ExecutionException of its own
+                    Throwable cause = e.getCause();
+                    while (cause != null && !(cause instanceof ServerBusyException)) {
+                        cause = cause.getCause();
+                    }
+
+                    if (cause instanceof ServerBusyException busy) {
+                        updateStatus(String.format("Server is busy. Please try again in %d seconds.",
+                                (busy.getRetryAfterMillis() + 999) / 1000));
+                    }
+                    else {
+                        updateStatus("Error in generating the story.");
+                    }
                 } catch (Exception e) {
                     updateStatus("Error in generating the story.");
                 } finally {
@@ -304,6 +356,14 @@ public class StoryGeneratorGUI extends JFrame {
         textArea.setText(text);
     }
 
+    /**
+     * Appends text to the end of the text area.
+     * @param text text to be appended
+     */
+    private void appendText(String text) {
+        textArea.append(text);
+    }
+
     /**
      * Changes the status label to the given text.
      * @param text - text to change
@@ -338,6 +398,12 @@ public class StoryGeneratorGUI extends JFrame {
      */
     private void doubleClick(TreePath selPath) {
         DefaultMutableTreeNode node = (DefaultMutableTreeNode) selPath.getLastPathComponent();
+
+        // The story being generated has not been saved yet
+        if (liveStoryNode != null && node.isNodeAncestor(liveStoryNode)) {
+            return;
+        }
+
         if (treeModel.isLeaf(node)) {
             String text = (String) node.getUserObject();
             DefaultMutableTreeNode parentNode = (DefaultMutableTreeNode) node.getParent();
@@ -0,0 +1,292 @@
+import com.google.genai.types.GenerateContentConfig;
+import model.Story;
+import org.junit.jupiter.api.Test;
+import service.CachingLLMService;
+import service.CoalescingLLMService;
+import service.ExtractionConfigRegistry;
+import service.ExtractionCachingLLMService;
+import service.FakeLLMService;
+import service.ResponseCache;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CacheTest {
+    /**
+     * Tests if a repeated prompt is answered from memory and counted as a hit.
+     */
+    @Test
+    void memoryHitTest() {
+        ResponseCache cache = new ResponseCache(10, Duration.ofMinutes(1), null);
+        CachingLLMService service = new CachingLLMService(new FakeLLMService(0, 0, 0, 50), cache);
+
+        String first = service.call("A cached prompt");
+        String second = service.call("A cached prompt");
+
+        assertEquals(first, second);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getMemoryHits());
+        assertEquals(1, service.getLayerStats().getJSONObject("responseCache").getLong("memoryHits"));
+    }
+
+    /**
+     * Tests if the least recently used entry is the one evicted from memory.
+     */
+    @Test
+    void lruEvictionTest() {
+        ResponseCache cache = new ResponseCache(2, Duration.ofMinutes(1), null);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    /**
+     * Tests if entries expire after their TTL.
+     */
+    @Test
+    void ttlExpiryTest() throws Exception {
+        ResponseCache cache = new ResponseCache(10, Duration.ofMillis(50), null);
+        cache.put("key", "value");
+        assertEquals("value", cache.get("key"));
+
+        Thread.sleep(100);
+        assertNull(cache.get("key"));
+    }
+
+    /**
+     * Tests if entries on disk survive a new cache instance, like after a server restart.
+     */
+    @Test
+    void diskTierTest() throws Exception {
+        Path directory = Files.createTempDirectory("response-cache");
+
+        new ResponseCache(10, Duration.ofMinutes(1), directory).put("key", "a value\nEND\nwith lines");
+        ResponseCache restarted = new ResponseCache(10, Duration.ofMinutes(1), directory);
+
+        assertEquals("a value\nEND\nwith lines", restarted.get("key"));
+        assertEquals(1, restarted.getDiskHits());
+        assertEquals("a value\nEND\nwith lines", restarted.get("key"));
+        assertEquals(1, restarted.getMemoryHits());
+    }
+
+    /**
+     * Tests if expired entries are swept from disk when a cache starts, and if the disk tier drops its oldest
+     * entries once it holds more than its limit.
+     */
+    @Test
+    void diskSweepTest() throws Exception {
+        Path directory = Files.createTempDirectory("response-cache");
+        new ResponseCache(10, Duration.ofMinutes(1), directory).put("old", "value");
+        Files.setLastModifiedTime(directory.resolve(ResponseCache.hash("old") + ".json"),
+                FileTime.fromMillis(System.currentTimeMillis() - Duration.ofMinutes(2).toMillis()));
+
+        ResponseCache cache = new ResponseCache(2, 10, Duration.ofMinutes(1), directory);
+        assertEquals(0, cache.getStats().getInt("diskEntries"));
+
+        for (int i = 0; i < 11; i++) {
+            cache.put("key" + i, "value" + i);
+        }
+        assertTrue(cache.getStats().getInt("diskEntries") <= 10);
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(cache.getStats().getInt("diskEntries"), files.count());
+        }
+        cache.shutdown();
+    }
+
+    /**
+     * Tests if extracting the same text again, or several times at once, only calls the model once.
+     */
+    @Test
+    void extractionCacheTest() {
+        AtomicInteger modelCalls = new AtomicInteger();
+        FakeLLMService backend = new FakeLLMService(100, 0, 0, 50) {
+            @Override
+            public String extractStory(String story) {
+                modelCalls.incrementAndGet();
+                return super.extractStory(story);
+            }
+        };
+        ExtractionCachingLLMService service =
+                new ExtractionCachingLLMService(backend, new ResponseCache(10, Duration.ofMinutes(1), null));
+
+        String story = backend.call("A story extracted many times");
+        List<CompletableFuture<String>> extractions = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            extractions.add(CompletableFuture.supplyAsync(() -> service.extractStory(story)));
+        }
+        String first = extractions.get(0).join();
+        for (CompletableFuture<String> extraction : extractions) {
+            assertEquals(first, extraction.join());
+        }
+
+        assertEquals(first, service.extractStory(story));
+        assertEquals(1, modelCalls.get());
+    }
+
+    /**
+     * Tests if an extraction that misses the cache is counted as one miss, not once per lookup.
+     */
+    @Test
+    void extractionMissCountTest() {
+        ResponseCache cache = new ResponseCache(10, Duration.ofMinutes(1), null);
+        ExtractionCachingLLMService service = new ExtractionCachingLLMService(new FakeLLMService(0, 0, 0, 50), cache);
+
+        service.extractStory("Mira walked to Oakmere.");
+        assertEquals(1, cache.getMisses());
+        assertEquals(0, cache.getHits());
+
+        service.extractStoryAsync("Mira walked to Oakmere.").join();
+        service.extractStoryAsync("Rowan sailed to the Silver Sea.").join();
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getMemoryHits());
+    }
+
+    /**
+     * Tests if the caches can be looked up ahead of a call without calling the backend, counting a hit but
+     * leaving the miss to the call.
+     */
+    @Test
+    void cachedLookupTest() {
+        ResponseCache responses = new ResponseCache(10, Duration.ofMinutes(1), null);
+        ResponseCache extractions = new ResponseCache(10, Duration.ofMinutes(1), null);
+        CoalescingLLMService service = new CoalescingLLMService(new ExtractionCachingLLMService(
+                new CachingLLMService(new FakeLLMService(0, 0, 0, 50), responses), extractions));
+
+        assertNull(service.cachedCall("A cached prompt"));
+        assertEquals(0, responses.getMisses());
+        String story = service.call("A cached prompt");
+        assertEquals(story, service.cachedCall("A cached prompt"));
+        assertNull(service.withModel("other-model").cachedCall("A cached prompt"));
+        assertEquals(1, responses.getMisses());
+        assertEquals(1, responses.getHits());
+
+        assertNull(service.cachedExtraction(story));
+        String extracted = service.extractStory(story);
+        assertEquals(extracted, service.cachedExtraction(story));
+        assertEquals(1, extractions.getMisses());
+        assertEquals(1, extractions.getHits());
+    }
+
+    /**
+     * Tests if identical requests in flight at the same time share one upstream call, including streams.
+     */
+    @Test
+    void coalescingTest() {
+        AtomicInteger modelCalls = new AtomicInteger();
+        FakeLLMService backend = new FakeLLMService(200, 0, 0, 50) {
+            @Override
+            public String callStream(String prompt, Consumer<String> onChunk) {
+                modelCalls.incrementAndGet();
+                return super.callStream(prompt, onChunk);
+            }
+        };
+        CoalescingLLMService service = new CoalescingLLMService(backend);
+
+        List<StringBuilder> received = new ArrayList<>();
+        List<CompletableFuture<String>> streams = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            StringBuilder chunks = new StringBuilder();
+            received.add(chunks);
+            streams.add(CompletableFuture.supplyAsync(() -> service.callStream("Same prompt", chunks::append)));
+        }
+
+        for (int i = 0; i < streams.size(); i++) {
+            String story = streams.get(i).join();
+            assertEquals(backend.call("Same prompt"), story);
+            assertEquals(story, received.get(i).toString());
+        }
+        assertEquals(modelCalls.get(), service.getStats().getLong("calls"));
+        assertEquals(4 - modelCalls.get(), service.getStats().getLong("savedCalls"));
+        assertEquals(4 - modelCalls.get(),
+                service.getLayerStats().getJSONObject("coalescing").getLong("savedCalls"));
+        assertTrue(modelCalls.get() < 4);
+    }
+
+    /**
+     * Tests if a shared stream goes on for its followers when its caller is cancelled, and if a follower whose
+     * listener fails is dropped without affecting the others.
+     */
+    @Test
+    void coalescingTakeoverTest() throws InterruptedException {
+        FakeLLMService backend = new FakeLLMService(700, 0, 0, 50);
+        CoalescingLLMService service = new CoalescingLLMService(backend);
+        String expected = backend.call("Same prompt");
+
+        Thread leader = Thread.ofVirtual().start(() -> {
+            try {
+                service.callStream("Same prompt", chunk -> { });
+            } catch (IllegalStateException e) {
+                // Cancelled
+            }
+        });
+        Thread.sleep(150);
+
+        StringBuilder received = new StringBuilder();
+        CompletableFuture<String> follower = CompletableFuture.supplyAsync(
+                () -> service.callStream("Same prompt", received::append));
+        CompletableFuture<String> failing = CompletableFuture.supplyAsync(
+                () -> service.callStream("Same prompt", chunk -> {
+                    throw new IllegalStateException("Client went away");
+                }));
+        Thread.sleep(100);
+        leader.interrupt();
+
+        assertEquals(expected, follower.join());
+        assertEquals(expected, received.toString());
+        assertThrows(CompletionException.class, failing::join);
+        assertEquals(2, service.getStats().getLong("calls"));
+    }
+
+    /**
+     * Tests if the same story extracted by different models at the same time is not coalesced.
+     */
+    @Test
+    void coalescingModelTest() {
+        CoalescingLLMService service = new CoalescingLLMService(new FakeLLMService(200, 0, 0, 50));
+
+        CompletableFuture<String> first = service.withModel("model-a").extractStoryAsync("Same story");
+        CompletableFuture<String> second = service.withModel("model-b").extractStoryAsync("Same story");
+        CompletableFuture<String> third = service.withModel("model-a").extractStoryAsync("Same story");
+        CompletableFuture.allOf(first, second, third).join();
+
+        assertEquals(2, service.getStats().getLong("extractions"));
+        assertEquals(1, service.getStats().getLong("savedExtractions"));
+    }
+
+    /**
+     * Tests if the story schema and the extraction config are built once and shared between threads.
+     */
+    @Test
+    void sharedExtractionConfigTest() {
+        assertSame(Story.generateSchema(), Story.generateSchema());
+        assertNotSame(Story.buildSchema(), Story.buildSchema());
+
+        ExtractionConfigRegistry registry = new ExtractionConfigRegistry();
+        List<CompletableFuture<GenerateContentConfig>> configs = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            configs.add(CompletableFuture.supplyAsync(() -> registry.extractionConfig("gemini-2.5-flash-lite")));
+        }
+
+        GenerateContentConfig first = configs.get(0).join();
+        for (CompletableFuture<GenerateContentConfig> config : configs) {
+            assertSame(first, config.join());
+        }
+        assertNotSame(first, registry.extractionConfig("gemini-2.5-flash"));
+    }
+}
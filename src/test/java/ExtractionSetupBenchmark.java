@@ -0,0 +1,43 @@
+import com.google.genai.types.GenerateContentConfig;
+import model.Story;
+import service.ExtractionConfigRegistry;
+
+import java.util.function.Supplier;
+
+/**
+ * Measures the setup cost of one extraction call before anything is sent: building the schema and the
+ * request config every call, as extractions used to, against looking the shared config up in the registry.
+ * Run with "java ExtractionSetupBenchmark [calls]".
+ */
+public class ExtractionSetupBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+
+    // Keeps the JIT from dropping the work being timed
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        ExtractionConfigRegistry registry = new ExtractionConfigRegistry();
+
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            long perCallNanos = time(calls, () -> GenerateContentConfig.builder()
+                    .responseMimeType("application/json")
+                    .responseSchema(Story.buildSchema())
+                    .build());
+            long sharedNanos = time(calls, () -> registry.extractionConfig("gemini-2.5-flash-lite"));
+
+            if (round == WARMUP_ROUNDS) {
+                System.out.printf("Built per call: %d ns/call%n", perCallNanos / calls);
+                System.out.printf("Shared config:  %d ns/call%n", sharedNanos / calls);
+            }
+        }
+    }
+
+    private static long time(int calls, Supplier<GenerateContentConfig> setup) {
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < calls; i++) {
+            sink = setup.get();
+        }
+        return System.nanoTime() - startNanos;
+    }
+}
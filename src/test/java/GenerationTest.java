@@ -8,6 +8,7 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.jupiter.api.Test;
 import service.GeminiAPIService;
+import service.RuleBasedExtractor;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -245,4 +246,51 @@ public class GenerationTest {
         // Remove file
         file.delete();
     }
+
+    /**
+     * Tests if the rule-based extractor finds the characters and locations of a simple story.
+     */
+    @Test
+    void ruleBasedExtractionTest() {
+        String story = "Mira lived in the village of Oakmere with her grandfather. "
+                + "One morning Captain Rowan arrived at Oakmere with a map. He said the map led to the Silver Forest. "
+                + "Mira packed her bag and followed him to the Silver Forest, where they found an old well.";
+
+        RuleBasedExtractor.Extraction extraction = new RuleBasedExtractor().extract(story);
+        Story extracted = Story.fromJSON(new JSONObject(extraction.json()));
+
+        assertTrue(extracted.getCharacterNames().contains("Mira"));
+        assertTrue(extracted.getCharacterNames().contains("Rowan"));
+        assertTrue(extracted.getLocationNames().contains("Oakmere"));
+        assertTrue(extracted.getLocationNames().contains("Silver Forest"));
+        assertEquals("female", extracted.getCharacter("Mira").getGender().toLowerCase());
+        assertTrue(extraction.confidence() > 0 && extraction.confidence() <= 1);
+    }
+
+    /**
+     * Tests if extracting a story fed in small chunks gives the same result as extracting it in one piece,
+     * and if a partial extraction is only built again once the names found have changed.
+     */
+    @Test
+    void incrementalExtractionTest() {
+        String story = "Mira lived in the village of Oakmere with her grandfather. "
+                + "One morning Captain Rowan arrived at Oakmere with a map. He said the map led to the Silver Forest. "
+                + "Mira packed her bag and followed him to the Silver Forest, where they found an old well.";
+        RuleBasedExtractor extractor = new RuleBasedExtractor();
+
+        RuleBasedExtractor.Session session = extractor.newSession();
+        boolean sawPartial = false;
+        for (int i = 0; i < story.length(); i += 7) {
+            if (session.accept(story.substring(i, Math.min(story.length(), i + 7)))) {
+                RuleBasedExtractor.Extraction changed = session.snapshotIfChanged();
+                if (changed != null) {
+                    sawPartial |= !Story.fromJSON(new JSONObject(changed.json())).getCharacterNames().isEmpty();
+                    assertNull(session.snapshotIfChanged());
+                }
+            }
+        }
+
+        assertTrue(sawPartial);
+        assertEquals(extractor.extract(story), session.finish());
+    }
 }
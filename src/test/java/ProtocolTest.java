@@ -0,0 +1,90 @@
+import controller.ClientAuthenticator;
+import controller.MessageStream;
+import controller.Protocol;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProtocolTest {
+    /**
+     * Tests if a framed message survives a line reading "END", which used to end the response early.
+     */
+    @Test
+    void framedMessageWithEndLineTest() throws IOException {
+        String story = "Once upon a time.\nEND\nThe story goes on after the end.";
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessageStream writer = new MessageStream(new ByteArrayInputStream(new byte[0]), bytes);
+        writer.switchToFramed();
+        writer.write(story);
+        writer.write("second");
+
+        MessageStream reader = new MessageStream(new ByteArrayInputStream(bytes.toByteArray()), new ByteArrayOutputStream());
+        reader.switchToFramed();
+
+        assertEquals(story, reader.read());
+        assertEquals("second", reader.read());
+        assertNull(reader.read());
+    }
+
+    /**
+     * Tests if a line longer than the largest frame is rejected instead of buffered.
+     */
+    @Test
+    void oversizedLineTest() {
+        byte[] line = new byte[Protocol.MAX_FRAME_SIZE + 1];
+        Arrays.fill(line, (byte) 'a');
+
+        MessageStream reader = new MessageStream(new ByteArrayInputStream(line), new ByteArrayOutputStream());
+
+        assertThrows(IOException.class, reader::read);
+    }
+
+    /**
+     * Tests if a stream can answer a HELLO in line mode and then switch to frames.
+     */
+    @Test
+    void lineThenFramedTest() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessageStream writer = new MessageStream(new ByteArrayInputStream(new byte[0]), bytes);
+        writer.write(Protocol.hello(Protocol.FRAMED_VERSION).toString());
+        writer.switchToFramed();
+        writer.write("framed ünïcödé payload");
+
+        MessageStream reader = new MessageStream(new ByteArrayInputStream(bytes.toByteArray()), new ByteArrayOutputStream());
+        JSONObject hello = new JSONObject(reader.read());
+        assertTrue(Protocol.isHello(hello));
+        assertEquals(Protocol.FRAMED_VERSION, Protocol.helloReply(hello).getInt(Protocol.VERSION));
+
+        reader.switchToFramed();
+        assertEquals("framed ünïcödé payload", reader.read());
+    }
+
+    /**
+     * Tests if a client asking for a newer version than the server knows gets the highest shared version.
+     */
+    @Test
+    void helloNegotiationTest() {
+        assertEquals(Protocol.FRAMED_VERSION, Protocol.helloReply(Protocol.hello(99)).getInt(Protocol.VERSION));
+        assertEquals(Protocol.LINE_VERSION, Protocol.helloReply(Protocol.hello(1)).getInt(Protocol.VERSION));
+    }
+
+    /**
+     * Tests if a client is only known by the name in its HELLO when it also sends the key configured for it.
+     */
+    @Test
+    void clientKeyTest() {
+        ClientAuthenticator authenticator = new ClientAuthenticator("gui=secret");
+
+        assertEquals("gui", authenticator.clientIdFor(Protocol.hello(2, "gui", "secret"), "10.0.0.1"));
+        assertEquals("10.0.0.1", authenticator.clientIdFor(Protocol.hello(2, "gui", "guess"), "10.0.0.1"));
+        assertEquals("10.0.0.1", authenticator.clientIdFor(Protocol.hello(2, "someone-else"), "10.0.0.1"));
+        assertEquals("10.0.0.1", authenticator.clientIdFor(Protocol.hello(2), "10.0.0.1"));
+    }
+}
@@ -0,0 +1,213 @@
+import controller.AdmissionController;
+import controller.RequestContext;
+import org.junit.jupiter.api.Test;
+import service.CircuitBreaker;
+import service.CircuitOpenException;
+import service.FakeLLMService;
+import service.LLMService;
+import service.ModelUsage;
+import service.ResilientLLMService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the retries, hedging and circuit breaker around model calls.
+ */
+public class ResilienceTest {
+    /**
+     * Backend whose behaviour is scripted per call: the function gets the call number (from 1) and returns
+     * the latency of the call, or a negative number to fail it.
+     */
+    private static class ScriptedLLMService implements LLMService {
+        private final AtomicInteger calls = new AtomicInteger();
+        private volatile IntFunction<Long> script;
+
+        ScriptedLLMService(IntFunction<Long> script) {
+            this.script = script;
+        }
+
+        @Override
+        public boolean authenticate() {
+            return true;
+        }
+
+        @Override
+        public String getModelName() {
+            return "scripted";
+        }
+
+        @Override
+        public String call(String prompt) {
+            long latency = script.apply(calls.incrementAndGet());
+            if (latency < 0) throw new IllegalStateException("Scripted failure");
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted", e);
+            }
+            return "story " + prompt;
+        }
+
+        @Override
+        public String callStream(String prompt, Consumer<String> onChunk) {
+            calls.incrementAndGet();
+            onChunk.accept("Once");
+            throw new IllegalStateException("Scripted failure");
+        }
+
+        @Override
+        public String extractStory(String story) {
+            return "{}";
+        }
+    }
+
+    /**
+     * Tests if a call that fails a few times is retried until it succeeds.
+     */
+    @Test
+    void retryTest() {
+        ScriptedLLMService backend = new ScriptedLLMService(call -> call <= 2 ? -1L : 0L);
+        ResilientLLMService service = new ResilientLLMService(backend, 3, 1, 10,
+                new CircuitBreaker(10, 1000), false, 0);
+
+        assertEquals("story A", service.call("A"));
+        assertEquals(3, backend.calls.get());
+        assertEquals(2, service.getStats().getLong("retries"));
+    }
+
+    /**
+     * Tests if an asynchronous call is retried without blocking the caller.
+     */
+    @Test
+    void asyncRetryTest() throws Exception {
+        ScriptedLLMService backend = new ScriptedLLMService(call -> call <= 2 ? -1L : 0L);
+        ResilientLLMService service = new ResilientLLMService(backend, 3, 1, 10,
+                new CircuitBreaker(10, 1000), false, 0);
+
+        assertEquals("story A", service.callAsync("A").get());
+        assertEquals(3, backend.calls.get());
+        assertEquals(2, service.getStats().getLong("retries"));
+    }
+
+    /**
+     * Tests if a stream is not retried once part of it has reached the client.
+     */
+    @Test
+    void streamNotRetriedTest() {
+        ScriptedLLMService backend = new ScriptedLLMService(call -> 0L);
+        ResilientLLMService service = new ResilientLLMService(backend, 3, 1, 10,
+                new CircuitBreaker(10, 1000), false, 0);
+        List<String> chunks = new ArrayList<>();
+
+        assertThrows(IllegalStateException.class, () -> service.callStream("A", chunks::add));
+        assertEquals(1, backend.calls.get());
+        assertEquals(List.of("Once"), chunks);
+    }
+
+    /**
+     * Tests if the circuit opens after failures in a row, fails fast while open, and closes again after a
+     * successful trial call.
+     */
+    @Test
+    void circuitBreakerTest() throws Exception {
+        ScriptedLLMService backend = new ScriptedLLMService(call -> -1L);
+        CircuitBreaker breaker = new CircuitBreaker(2, 100);
+        ResilientLLMService service = new ResilientLLMService(backend, 1, 1, 10, breaker, false, 0);
+
+        assertThrows(IllegalStateException.class, () -> service.call("A"));
+        assertThrows(IllegalStateException.class, () -> service.call("A"));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        // Open: the backend is not called at all
+        assertThrows(CircuitOpenException.class, () -> service.call("A"));
+        assertEquals(2, backend.calls.get());
+
+        Thread.sleep(150);
+        backend.script = call -> 0L;
+        assertEquals("story A", service.call("A"));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    /**
+     * Tests if a call much slower than usual is hedged and answered by the second call.
+     */
+    @Test
+    void hedgeTest() {
+        // Call 25 hangs, every other call is quick
+        ScriptedLLMService backend = new ScriptedLLMService(call -> call == 25 ? 5000L : 5L);
+        ResilientLLMService service = new ResilientLLMService(backend, 1, 1, 10,
+                new CircuitBreaker(10, 1000), true, 20);
+
+        for (int i = 0; i < 24; i++) {
+            service.call("A");
+        }
+
+        long start = System.currentTimeMillis();
+        assertEquals("story A", service.call("A"));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(1, service.getStats().getLong("hedges"));
+        assertEquals(1, service.getStats().getLong("hedgeWins"));
+    }
+
+    /**
+     * Tests if a slow call is not hedged when the server has no model slot free for the second call, and if
+     * the skipped hedge shows in the layer stats.
+     */
+    @Test
+    void hedgeNeedsSlotTest() {
+        ScriptedLLMService backend = new ScriptedLLMService(call -> call == 25 ? 300L : 5L);
+        ResilientLLMService service = new ResilientLLMService(backend, 1, 1, 10,
+                new CircuitBreaker(10, 1000), true, 20);
+        AdmissionController controller = new AdmissionController(1, 10, 5000);
+        RequestContext context = new RequestContext("client", "CREATE_STORY");
+
+        for (int i = 0; i < 25; i++) {
+            assertEquals("story A", controller.run(context, slots -> service.withSlots(slots).call("A"), () -> true));
+        }
+
+        assertEquals(0, service.getStats().getLong("hedges"));
+        assertEquals(1, service.getStats().getLong("hedgesSkipped"));
+        assertEquals(25, backend.calls.get());
+        assertEquals(0, controller.getStats().getInt("inFlight"));
+        assertEquals(1, service.getLayerStats().getJSONObject("resilience").getLong("hedgesSkipped"));
+        service.shutdown();
+    }
+
+    /**
+     * Tests if retries hide the failures of an unreliable fake backend.
+     */
+    @Test
+    void fakeBackendTest() {
+        ResilientLLMService service = new ResilientLLMService(new FakeLLMService(0, 0, 0.3, 20), 20, 0, 0,
+                new CircuitBreaker(0, 1000), false, 0);
+
+        for (int i = 0; i < 20; i++) {
+            assertFalse(service.call("Prompt " + i).isEmpty());
+        }
+        assertTrue(service.getStats().getLong("retries") > 0);
+    }
+
+    /**
+     * Tests if a usage view records the calls made through it, and only those.
+     */
+    @Test
+    void usageViewTest() {
+        ResilientLLMService service = new ResilientLLMService(new FakeLLMService(0, 0, 0, 20), 3, 1, 10,
+                new CircuitBreaker(10, 1000), false, 0);
+        ModelUsage usage = new ModelUsage();
+
+        service.withUsage(usage).call("Counted prompt");
+        service.call("Not counted");
+
+        assertEquals(1, usage.getCalls());
+        assertEquals(2, usage.getInputTokens());
+        assertEquals(20, usage.getOutputTokens());
+    }
+}
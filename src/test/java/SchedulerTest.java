@@ -0,0 +1,501 @@
+import controller.AdmissionController;
+import controller.AimdLimit;
+import controller.CancellationToken;
+import controller.FairWaitQueue;
+import controller.FifoWaitQueue;
+import controller.JobManager;
+import controller.ModelRouter;
+import controller.PriorityWaitQueue;
+import controller.Protocol;
+import controller.RequestCancelledException;
+import controller.RequestContext;
+import controller.ServerBusyException;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of how the server admits and orders model calls.
+ */
+public class SchedulerTest {
+    /**
+     * Starts a call that holds its slot until the latch is released.
+     */
+    private static CompletableFuture<String> blockingCall(AdmissionController controller, CountDownLatch release) {
+        return CompletableFuture.supplyAsync(() -> controller.run(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "done";
+        }));
+    }
+
+    /**
+     * Starts a call for a client that records when it runs.
+     */
+    private static CompletableFuture<String> recordingCall(AdmissionController controller, String clientId, List<String> order) {
+        return recordingCall(controller, new RequestContext(clientId, "CREATE_STORY"), clientId, order);
+    }
+
+    /**
+     * Starts a call that records its label when it runs.
+     */
+    private static CompletableFuture<String> recordingCall(AdmissionController controller, RequestContext context,
+                                                           String label, List<String> order) {
+        return CompletableFuture.supplyAsync(() -> controller.run(context, () -> {
+            order.add(label);
+            return label;
+        }));
+    }
+
+    private static void waitForState(AdmissionController controller, int inFlight, int queued) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            if (controller.getStats().getInt("inFlight") == inFlight && controller.getStats().getInt("queued") == queued) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Controller never reached " + inFlight + " in flight and " + queued + " queued");
+    }
+
+    /**
+     * Tests if a call that finds the queue full is rejected right away with a retry-after hint.
+     */
+    @Test
+    void queueFullTest() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 1, 10000);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<String> running = blockingCall(controller, release);
+        waitForState(controller, 1, 0);
+        CompletableFuture<String> queued = blockingCall(controller, release);
+        waitForState(controller, 1, 1);
+
+        ServerBusyException busy = assertThrows(ServerBusyException.class, () -> controller.run(() -> "rejected"));
+        assertTrue(busy.getRetryAfterMillis() > 0);
+
+        release.countDown();
+        assertEquals("done", running.get());
+        assertEquals("done", queued.get());
+        assertEquals(1, controller.getStats().getLong("rejected"));
+    }
+
+    /**
+     * Tests if a call that waits longer than the maximum wait is rejected.
+     */
+    @Test
+    void maxWaitTest() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 10, 50);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<String> running = blockingCall(controller, release);
+        waitForState(controller, 1, 0);
+
+        assertThrows(ServerBusyException.class, () -> controller.run(() -> "timed out"));
+        assertEquals(1, controller.getStats().getLong("timedOut"));
+
+        release.countDown();
+        assertEquals("done", running.get());
+        assertEquals("next", controller.run(() -> "next"));
+    }
+
+    /**
+     * Tests if a light client that arrives behind a heavy client's backlog is served on the next turn.
+     */
+    @Test
+    void fairQueueTest() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 20, 10000, new FairWaitQueue(Map.of()), 0, 0);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<String>> calls = new ArrayList<>();
+
+        CompletableFuture<String> running = blockingCall(controller, release);
+        waitForState(controller, 1, 0);
+        for (int i = 0; i < 5; i++) {
+            calls.add(recordingCall(controller, "heavy", order));
+            waitForState(controller, 1, i + 1);
+        }
+        calls.add(recordingCall(controller, "light", order));
+        waitForState(controller, 1, 6);
+
+        release.countDown();
+        running.get();
+        for (CompletableFuture<String> call : calls) {
+            call.get();
+        }
+
+        assertEquals(List.of("heavy", "light", "heavy", "heavy", "heavy", "heavy"), order);
+    }
+
+    /**
+     * Tests if weighted clients get as many turns in a row as their weight.
+     */
+    @Test
+    void weightedQueueTest() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 20, 10000,
+                new FairWaitQueue(Map.of("batch", 2)), 0, 0);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<String>> calls = new ArrayList<>();
+
+        CompletableFuture<String> running = blockingCall(controller, release);
+        waitForState(controller, 1, 0);
+        for (int i = 0; i < 3; i++) {
+            calls.add(recordingCall(controller, "batch", order));
+            calls.add(recordingCall(controller, "gui", order));
+            waitForState(controller, 1, 2 * (i + 1));
+        }
+
+        release.countDown();
+        running.get();
+        for (CompletableFuture<String> call : calls) {
+            call.get();
+        }
+
+        assertEquals(List.of("batch", "batch", "gui", "batch", "gui", "gui"), order);
+    }
+
+    /**
+     * Tests if a client over its rate limit is told when its next request is allowed, without affecting others,
+     * and if the model calls of an admitted request are not charged again.
+     */
+    @Test
+    void rateLimitTest() {
+        AdmissionController controller = new AdmissionController(4, 4, 1000, new FairWaitQueue(Map.of()), 60, 2);
+        RequestContext heavy = new RequestContext("heavy", "CREATE_STORY");
+
+        controller.checkRateLimit("heavy");
+        controller.checkRateLimit("heavy");
+        ServerBusyException busy = assertThrows(ServerBusyException.class, () -> controller.checkRateLimit("heavy"));
+        assertTrue(busy.getRetryAfterMillis() > 0 && busy.getRetryAfterMillis() <= 1000);
+
+        // The calls of requests that were already charged still run
+        assertEquals("ok", controller.run(heavy, () -> "ok"));
+        assertEquals("ok", controller.run(heavy.withAction("EXTRACT_STORY"), () -> "ok"));
+
+        controller.checkRateLimit("light");
+        assertEquals(1, controller.getStats().getLong("rateLimited"));
+    }
+
+    /**
+     * Starts calls of every priority class behind a running call and returns the order they ran in.
+     * The calls are started from the lowest class up, pauseMillis apart.
+     */
+    private static List<String> runPriorityClasses(AdmissionController controller, long pauseMillis) throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<String>> calls = new ArrayList<>();
+
+        CompletableFuture<String> running = blockingCall(controller, release);
+        waitForState(controller, 1, 0);
+        calls.add(recordingCall(controller, new RequestContext("a", "CREATE_STORY", 3), "quality 3", order));
+        waitForState(controller, 1, 1);
+        Thread.sleep(pauseMillis);
+        calls.add(recordingCall(controller, new RequestContext("b", "CREATE_STORY", 1), "quality 1", order));
+        waitForState(controller, 1, 2);
+        Thread.sleep(pauseMillis);
+        calls.add(recordingCall(controller, new RequestContext("c", "EXTRACT_STORY", 1), "extract", order));
+        waitForState(controller, 1, 3);
+
+        release.countDown();
+        running.get();
+        for (CompletableFuture<String> call : calls) {
+            call.get();
+        }
+        return order;
+    }
+
+    /**
+     * Tests if extractions overtake quality 1 stories, which overtake higher quality stories.
+     */
+    @Test
+    void priorityQueueTest() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 20, 10000,
+                new PriorityWaitQueue(FifoWaitQueue::new, 60000), 0, 0);
+
+        assertEquals(List.of("extract", "quality 1", "quality 3"), runPriorityClasses(controller, 0));
+        assertEquals(1, controller.getStats().getJSONObject("queueWait").getJSONObject("HIGH").getLong("admitted"));
+    }
+
+    /**
+     * Tests if calls that have waited long enough are served before newer calls of a higher class.
+     */
+    @Test
+    void priorityAgingTest() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 20, 10000,
+                new PriorityWaitQueue(FifoWaitQueue::new, 10), 0, 0);
+
+        assertEquals(List.of("quality 3", "quality 1", "extract"), runPriorityClasses(controller, 100));
+    }
+
+    /**
+     * Tests if a call cancelled while it waits for a slot leaves the queue right away.
+     */
+    @Test
+    void cancelWhileQueuedTest() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 10, 10000);
+        CountDownLatch release = new CountDownLatch(1);
+        CancellationToken cancellation = CancellationToken.withTimeout(0);
+
+        CompletableFuture<String> running = blockingCall(controller, release);
+        waitForState(controller, 1, 0);
+        CompletableFuture<String> queued = CompletableFuture.supplyAsync(() ->
+                controller.run(new RequestContext("a", "CREATE_STORY", 1, cancellation), () -> "ran"));
+        waitForState(controller, 1, 1);
+
+        cancellation.cancel("Cancelled by client");
+        ExecutionException e = assertThrows(ExecutionException.class, queued::get);
+        assertInstanceOf(RequestCancelledException.class, e.getCause());
+        waitForState(controller, 1, 0);
+
+        release.countDown();
+        assertEquals("done", running.get());
+    }
+
+    /**
+     * Tests if a running call that is cancelled gives its slot up without waiting for the call to return.
+     */
+    @Test
+    void cancelWhileRunningTest() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 10, 10000);
+        CountDownLatch release = new CountDownLatch(1);
+        CancellationToken cancellation = CancellationToken.withTimeout(0);
+
+        CompletableFuture<String> running = CompletableFuture.supplyAsync(() ->
+                controller.run(new RequestContext("a", "CREATE_STORY", 1, cancellation), () -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return "done";
+                }));
+        waitForState(controller, 1, 0);
+
+        cancellation.cancel("Client disconnected");
+        waitForState(controller, 0, 0);
+        assertEquals("next", controller.run(() -> "next"));
+
+        // The abandoned call returning later must not free a second slot
+        release.countDown();
+        running.get();
+        waitForState(controller, 0, 0);
+    }
+
+    /**
+     * Tests if a call stops waiting for a slot when its deadline passes.
+     */
+    @Test
+    void deadlineTest() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 10, 10000);
+        CountDownLatch release = new CountDownLatch(1);
+
+        CompletableFuture<String> running = blockingCall(controller, release);
+        waitForState(controller, 1, 0);
+
+        RequestContext context = new RequestContext("a", "CREATE_STORY", 1, CancellationToken.withTimeout(50));
+        RequestCancelledException e = assertThrows(RequestCancelledException.class, () -> controller.run(context, () -> "late"));
+        assertEquals("Deadline exceeded", e.getMessage());
+        assertEquals(0, controller.getStats().getLong("timedOut"));
+
+        release.countDown();
+        assertEquals("done", running.get());
+    }
+
+    /**
+     * Tests if an asynchronous call waits for a slot without a thread, runs once the slot frees up, and
+     * leaves the queue when its request is cancelled.
+     */
+    @Test
+    void asyncAdmissionTest() throws Exception {
+        AdmissionController controller = new AdmissionController(1, 10, 10000);
+        CompletableFuture<String> model = new CompletableFuture<>();
+
+        CompletableFuture<String> running = controller.runAsync(
+                new RequestContext("a", "CREATE_STORY"), () -> model);
+        CompletableFuture<String> queued = controller.runAsync(
+                new RequestContext("b", "CREATE_STORY"), () -> CompletableFuture.completedFuture("queued"));
+        CancellationToken cancellation = CancellationToken.withTimeout(0);
+        CompletableFuture<String> cancelled = controller.runAsync(
+                new RequestContext("c", "CREATE_STORY", 1, cancellation), () -> CompletableFuture.completedFuture("ran"));
+        waitForState(controller, 1, 2);
+
+        cancellation.cancel("Cancelled by client");
+        ExecutionException e = assertThrows(ExecutionException.class, cancelled::get);
+        assertInstanceOf(RequestCancelledException.class, e.getCause());
+        waitForState(controller, 1, 1);
+
+        model.complete("done");
+        assertEquals("done", running.get());
+        assertEquals("queued", queued.get());
+        waitForState(controller, 0, 0);
+    }
+
+    /**
+     * Tests if the AIMD limit grows while latency is stable and is cut when latency rises or the backend
+     * throttles, once per round trip and never below the minimum.
+     */
+    @Test
+    void aimdLimitTest() {
+        AimdLimit limit = new AimdLimit(4, 2, 6);
+        long ms = 1_000_000;
+
+        // Stable latency with the limit in use
+        for (int i = 0; i < 5; i++) {
+            limit.onSample(System.nanoTime(), 100 * ms, 4, false);
+        }
+        assertEquals(6, limit.getLimit());
+
+        // Latency climbs well above the baseline
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            limit.onSample(start, 1000 * ms, 6, false);
+        }
+        assertEquals(5, limit.getLimit());
+
+        // Every throttled round trip cuts again, down to the minimum
+        for (int i = 0; i < 20; i++) {
+            limit.onSample(System.nanoTime(), 0, 6, true);
+        }
+        assertEquals(2, limit.getLimit());
+    }
+
+    /**
+     * Tests if a throttled call lowers the controller's limit, and a growing limit admits waiting calls.
+     */
+    @Test
+    void adaptiveAdmissionTest() throws Exception {
+        AdmissionController controller = new AdmissionController(new AimdLimit(1, 1, 3), 10, 10000,
+                new FifoWaitQueue(), 0, 0, e -> e instanceof ServerBusyException);
+        assertEquals(1, controller.getStats().getInt("limit"));
+
+        controller.run(() -> "fast");
+        assertEquals(2, controller.getStats().getInt("limit"));
+
+        Thread.sleep(1);
+        assertThrows(ServerBusyException.class, () -> controller.run(() -> {
+            throw new ServerBusyException(100);
+        }));
+        assertEquals(1, controller.getStats().getInt("limit"));
+
+        // With the limit back at 1, a second call waits until the first one finishes
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> first = blockingCall(controller, release);
+        waitForState(controller, 1, 0);
+        CompletableFuture<String> second = CompletableFuture.supplyAsync(() -> controller.run(() -> "second"));
+        waitForState(controller, 1, 1);
+
+        release.countDown();
+        assertEquals("done", first.get());
+        assertEquals("second", second.get());
+        waitForState(controller, 0, 0);
+    }
+
+    /**
+     * Tests if calls that did not reach the backend, such as cache hits, leave the adaptive limit alone.
+     */
+    @Test
+    void unsampledCallTest() {
+        AdmissionController controller = new AdmissionController(new AimdLimit(1, 1, 3), 10, 10000,
+                new FifoWaitQueue(), 0, 0, e -> false);
+        RequestContext context = new RequestContext("client", "CREATE_STORY");
+
+        assertEquals("cached", controller.run(context, slots -> "cached", () -> false));
+        assertEquals(1, controller.getStats().getInt("limit"));
+
+        assertEquals("called", controller.run(context, slots -> "called", () -> true));
+        assertEquals(2, controller.getStats().getInt("limit"));
+    }
+
+    /**
+     * Tests if calls are routed by action and quality, fall back to the faster tier when the preferred one
+     * goes over its latency budget, still probe the slow tier now and then, and go back to it once enough
+     * probes are within budget.
+     */
+    @Test
+    void modelRoutingTest() {
+        ModelRouter router = new ModelRouter("slow=100,fast=50", "CREATE_STORY:3=slow,EXTRACT_STORY=fast");
+        RequestContext detailed = new RequestContext("a", "CREATE_STORY", 3);
+
+        assertEquals("slow", router.route(detailed));
+        assertEquals("fast", router.route(new RequestContext("a", "EXTRACT_STORY", 3)));
+        assertNull(router.route(new RequestContext("a", "CREATE_STORY", 1)));
+
+        for (int i = 0; i < 20; i++) {
+            router.record("slow", 500);
+        }
+
+        List<String> routed = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            routed.add(router.route(detailed));
+        }
+        assertEquals(2, Collections.frequency(routed, "slow"));
+        assertEquals(38, Collections.frequency(routed, "fast"));
+        assertTrue(router.getStats().getJSONObject("slow").getBoolean("overBudget"));
+
+        for (int i = 0; i < 20; i++) {
+            router.record("slow", 50);
+        }
+        assertEquals("slow", router.route(detailed));
+        assertFalse(router.getStats().getJSONObject("slow").getBoolean("overBudget"));
+    }
+
+    /**
+     * Tests if a job that cannot find room in the job queue is shed with BUSY instead of piling up.
+     */
+    @Test
+    void jobQueueFullTest() throws Exception {
+        JobManager jobs = new JobManager(1, 1, 60000, 10000);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        JSONObject first = jobs.submit("a", cancellation -> {
+            running.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "first";
+        });
+        running.await();
+        JSONObject queued = jobs.submit("a", cancellation -> "second");
+
+        assertThrows(ServerBusyException.class, () -> jobs.submit("a", cancellation -> "third"));
+        assertEquals(1, jobs.getStats().getInt("QUEUED"));
+
+        release.countDown();
+        assertEquals("first", jobs.subscribe(first.getString(Protocol.JOB_ID)).get().getString("result"));
+        assertEquals("second", jobs.subscribe(queued.getString(Protocol.JOB_ID)).get().getString("result"));
+        jobs.shutdown();
+    }
+
+    /**
+     * Tests if finished jobs are forgotten once their retention has passed, without any new job being submitted.
+     */
+    @Test
+    void jobRetentionTest() throws Exception {
+        JobManager jobs = new JobManager(1, 1, 50, 10000);
+        String jobId = jobs.submit("a", cancellation -> "done").getString(Protocol.JOB_ID);
+        assertEquals("done", jobs.subscribe(jobId).get().getString("result"));
+
+        for (int attempt = 0; jobs.getStats().getInt("DONE") > 0 && attempt < 100; attempt++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, jobs.getStats().getInt("DONE"));
+        assertNull(jobs.poll(jobId));
+        assertNull(jobs.subscribe(jobId));
+        jobs.shutdown();
+    }
+}
@@ -0,0 +1,429 @@
+import controller.MessageStream;
+import controller.Protocol;
+import controller.Readiness;
+import controller.RequestCancelledException;
+import controller.ServerConnection;
+import controller.ServerMode;
+import controller.StoryGeneratorServer;
+import model.Story;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import service.FakeLLMService;
+import service.LLMService;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * End-to-end tests of the server and ServerConnection against the offline fake backend.
+ */
+public class ServerTest {
+    private static final String HOST = "localhost";
+    private static final int VIRTUAL_PORT = 18881;
+    private static final int NIO_PORT = 18882;
+    private static final int SLOW_AUTH_PORT = 18883;
+    private static final int REJECTED_AUTH_PORT = 18884;
+
+    private static final LLMService fakeLLM = new FakeLLMService(50, 0, 0, 120);
+
+    @BeforeAll
+    static void startServers() {
+        startServer(VIRTUAL_PORT, ServerMode.VIRTUAL);
+        startServer(NIO_PORT, ServerMode.NIO);
+    }
+
+    private static void startServer(int port, ServerMode mode) {
+        StoryGeneratorServer server = new StoryGeneratorServer(port, mode, fakeLLM);
+        Thread thread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                System.err.println("Failed to start server: " + e.getMessage());
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Connects to a test server, retrying while it is still starting up.
+     */
+    private static ServerConnection connect(int port) throws Exception {
+        ServerConnection connection = new ServerConnection();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                connection.connect(HOST, port);
+                return connection;
+            } catch (IOException e) {
+                if (attempt == 50) throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * Tests if many requests can be in flight on one connection and each gets its own response.
+     */
+    @Test
+    void pipelinedRequestsTest() throws Exception {
+        for (int port : new int[] {VIRTUAL_PORT, NIO_PORT}) {
+            ServerConnection connection = connect(port);
+
+            List<String> prompts = new ArrayList<>();
+            List<CompletableFuture<String>> responses = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                prompts.add("Prompt number " + i);
+                responses.add(connection.createStoryAsync(prompts.get(i)));
+            }
+
+            for (int i = 0; i < prompts.size(); i++) {
+                assertEquals(fakeLLM.call(prompts.get(i)), responses.get(i).get());
+            }
+
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Tests if streamed chunks add up to the final story text.
+     */
+    @Test
+    void streamedStoryTest() throws Exception {
+        for (int port : new int[] {VIRTUAL_PORT, NIO_PORT}) {
+            ServerConnection connection = connect(port);
+            StringBuilder chunks = new StringBuilder();
+
+            String story = connection.createStoryStream("A streamed story", chunks::append).get();
+
+            assertEquals(story, chunks.toString());
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Tests if a chunk listener that throws fails only its own request, not the connection.
+     */
+    @Test
+    void throwingListenerTest() throws Exception {
+        for (int port : new int[] {VIRTUAL_PORT, NIO_PORT}) {
+            ServerConnection connection = connect(port);
+
+            CompletableFuture<String> failing = connection.createStoryStream("A listener that fails", chunk -> {
+                throw new IllegalStateException("Listener failed");
+            });
+            ExecutionException e = assertThrows(ExecutionException.class, failing::get);
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+
+            assertEquals(fakeLLM.call("A story after it"), connection.createStoryAsync("A story after it").get());
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Tests if a story can be generated and extracted in a single request.
+     */
+    @Test
+    void createAndExtractTest() throws Exception {
+        ServerConnection connection = connect(VIRTUAL_PORT);
+
+        Story story = connection.createAndExtractStory("A story to extract").get();
+
+        assertEquals(fakeLLM.call("A story to extract"), story.getStory());
+        assertFalse(story.getCharacterNames().isEmpty());
+        connection.disconnect();
+    }
+
+    /**
+     * Tests if a streamed story sends the characters and locations found so far before its final response.
+     */
+    @Test
+    void liveEntitiesTest() throws Exception {
+        for (int port : new int[] {VIRTUAL_PORT, NIO_PORT}) {
+            ServerConnection connection = connect(port);
+            List<Story> partials = Collections.synchronizedList(new ArrayList<>());
+
+            Story story = connection.createAndExtractStory("A live story", "NARRATIVE", 1, chunk -> {},
+                    partials::add).get();
+
+            assertFalse(partials.isEmpty());
+            assertFalse(partials.get(partials.size() - 1).getCharacterNames().isEmpty());
+            assertEquals(fakeLLM.call("A live story"), story.getStory());
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Tests if the server accepts connections and answers HEALTH before the backend has authenticated, and if
+     * a check that fails for a passing reason is tried again.
+     */
+    @Test
+    void healthTest() throws Exception {
+        CountDownLatch authenticated = new CountDownLatch(1);
+        AtomicInteger checks = new AtomicInteger();
+        LLMService slowAuthLLM = new FakeLLMService(0, 0, 0, 50) {
+            @Override
+            public boolean authenticate() {
+                try {
+                    authenticated.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (checks.incrementAndGet() == 1) {
+                    throw new IllegalStateException("Backend unreachable");
+                }
+                return true;
+            }
+        };
+        StoryGeneratorServer server = new StoryGeneratorServer(SLOW_AUTH_PORT, ServerMode.VIRTUAL, slowAuthLLM);
+        Thread thread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                System.err.println("Failed to start server: " + e.getMessage());
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        ServerConnection connection = connect(SLOW_AUTH_PORT);
+        JSONObject health = connection.getHealth().get();
+        assertEquals(Readiness.STARTING.name(), health.getString("status"));
+        assertFalse(health.getBoolean("ready"));
+
+        authenticated.countDown();
+        for (int attempt = 0; !health.getBoolean("ready") && attempt < 150; attempt++) {
+            Thread.sleep(20);
+            health = connection.getHealth().get();
+        }
+        assertEquals(Readiness.READY.name(), health.getString("status"));
+        assertEquals(2, checks.get());
+        connection.disconnect();
+        server.shutdown();
+    }
+
+    /**
+     * Tests if credentials the backend turns down leave the server unavailable without checking them again.
+     */
+    @Test
+    void rejectedCredentialsTest() throws Exception {
+        AtomicInteger checks = new AtomicInteger();
+        LLMService rejectingLLM = new FakeLLMService(0, 0, 0, 50) {
+            @Override
+            public boolean authenticate() {
+                checks.incrementAndGet();
+                return false;
+            }
+        };
+        StoryGeneratorServer server = new StoryGeneratorServer(REJECTED_AUTH_PORT, ServerMode.VIRTUAL, rejectingLLM);
+        Thread thread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (IOException e) {
+                System.err.println("Failed to start server: " + e.getMessage());
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        ServerConnection connection = connect(REJECTED_AUTH_PORT);
+        JSONObject health = connection.getHealth().get();
+        String starting = Readiness.STARTING.name();
+        for (int attempt = 0; starting.equals(health.getString("status")) && attempt < 150; attempt++) {
+            Thread.sleep(20);
+            health = connection.getHealth().get();
+        }
+        assertEquals(Readiness.UNAVAILABLE.name(), health.getString("status"));
+
+        // Longer than the first retry delay
+        Thread.sleep(1500);
+        assertEquals(1, checks.get());
+        connection.disconnect();
+        server.shutdown();
+    }
+
+    /**
+     * Tests if model calls show up in the STATS usage under their action and strategy.
+     */
+    @Test
+    void statsTest() throws Exception {
+        ServerConnection connection = connect(VIRTUAL_PORT);
+        connection.createAndExtractStory("A story to count", "NARRATIVE", 2, chunk -> {}, null).get();
+
+        JSONObject usage = connection.getStats().get().getJSONObject("usage");
+        JSONObject narrative = usage.getJSONObject("strategy").getJSONObject("NARRATIVE");
+        assertTrue(narrative.getLong("calls") >= 2);
+        assertTrue(narrative.getLong("inputTokens") > 0);
+        assertTrue(narrative.getLong("outputTokens") > 0);
+        assertTrue(usage.getJSONObject("action").has("EXTRACT_STORY"));
+        assertTrue(usage.getJSONObject("total").getDouble("cost") > 0);
+        connection.disconnect();
+    }
+
+    /**
+     * Tests if a request can ask for the rule-based extractor instead of the model.
+     */
+    @Test
+    void ruleBasedExtractTest() throws Exception {
+        ServerConnection connection = connect(NIO_PORT);
+
+        JSONObject request = new JSONObject();
+        request.put(Protocol.ACTION, "EXTRACT_STORY");
+        request.put(Protocol.PROMPT, "Tomas walked to the Old Mill. He was looking for his sister Elena.");
+        request.put(Protocol.EXTRACTOR, "RULES");
+
+        Story story = Story.fromJSON(new JSONObject(connection.sendRequestAsync(request).get()));
+        assertTrue(story.getCharacterNames().contains("Tomas"));
+        assertTrue(story.getLocationNames().contains("Old Mill"));
+        connection.disconnect();
+    }
+
+    /**
+     * Tests if a request that runs past its deadline is answered with CANCELLED and the connection keeps working.
+     */
+    @Test
+    void deadlineTest() throws Exception {
+        for (int port : new int[] {VIRTUAL_PORT, NIO_PORT}) {
+            ServerConnection connection = connect(port);
+
+            JSONObject request = new JSONObject();
+            request.put(Protocol.ACTION, "CREATE_STORY");
+            request.put(Protocol.PROMPT, "Too slow");
+            request.put(Protocol.TIMEOUT, 1);
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> connection.sendRequestAsync(request).get());
+            assertInstanceOf(RequestCancelledException.class, e.getCause());
+            assertEquals(fakeLLM.call("Still works"), connection.createStory("Still works"));
+
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Tests if a job submitted on one connection can be picked up from another after the first one closes.
+     */
+    @Test
+    void jobTest() throws Exception {
+        for (int port : new int[] {VIRTUAL_PORT, NIO_PORT}) {
+            ServerConnection submitter = connect(port);
+            JSONObject job = new JSONObject();
+            job.put(Protocol.ACTION, "CREATE_STORY");
+            job.put(Protocol.PROMPT, "A job for later");
+            String jobId = submitter.submitJob(job).get();
+            submitter.disconnect();
+
+            ServerConnection connection = connect(port);
+            JSONObject status = connection.subscribeJob(jobId).get();
+            assertEquals("DONE", status.getString("status"));
+            assertEquals(fakeLLM.call("A job for later"), status.getString("result"));
+            assertEquals("DONE", connection.pollJob(jobId).get().getString("status"));
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> connection.pollJob("no-such-job").get());
+            assertInstanceOf(IOException.class, e.getCause());
+
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Tests if an untagged batch that asks to stream still gets every item in its one response, since it has
+     * nowhere else to receive them.
+     */
+    @Test
+    void untaggedBatchTest() throws Exception {
+        // Waits for the server to be up
+        connect(VIRTUAL_PORT).disconnect();
+        try (Socket socket = new Socket(HOST, VIRTUAL_PORT)) {
+            MessageStream stream = new MessageStream(socket.getInputStream(), socket.getOutputStream());
+
+            JSONArray items = new JSONArray();
+            items.put(new JSONObject().put(Protocol.PROMPT, "Untagged batch prompt"));
+            JSONObject request = new JSONObject();
+            request.put(Protocol.ACTION, "BATCH_CREATE");
+            request.put(Protocol.ITEMS, items);
+            request.put(Protocol.STREAM, true);
+            stream.write(request.toString());
+
+            StringBuilder response = new StringBuilder();
+            for (String line = stream.read(); !Protocol.END.equals(line); line = stream.read()) {
+                response.append(line);
+            }
+            JSONObject summary = new JSONObject(response.toString());
+            assertEquals(1, summary.getInt("succeeded"));
+            assertEquals(1, summary.getJSONArray(Protocol.ITEMS).length());
+        }
+    }
+
+    /**
+     * Tests if an untagged POLL for an unknown job is answered with an error and the connection stays open.
+     */
+    @Test
+    void untaggedUnknownJobTest() throws Exception {
+        for (int port : new int[] {VIRTUAL_PORT, NIO_PORT}) {
+            connect(port).disconnect();
+            try (Socket socket = new Socket(HOST, port)) {
+                MessageStream stream = new MessageStream(socket.getInputStream(), socket.getOutputStream());
+
+                for (int i = 0; i < 2; i++) {
+                    JSONObject request = new JSONObject();
+                    request.put(Protocol.ACTION, Protocol.POLL);
+                    request.put(Protocol.JOB_ID, "no-such-job");
+                    stream.write(request.toString());
+
+                    StringBuilder response = new StringBuilder();
+                    for (String line = stream.read(); !Protocol.END.equals(line); line = stream.read()) {
+                        response.append(line);
+                    }
+                    JSONObject reply = new JSONObject(response.toString());
+                    assertEquals(Protocol.ERROR, reply.getString(Protocol.TYPE));
+                }
+            }
+        }
+    }
+
+    /**
+     * Tests if a batch streams every item back and reports a bad item without failing the others.
+     */
+    @Test
+    void batchTest() throws Exception {
+        for (int port : new int[] {VIRTUAL_PORT, NIO_PORT}) {
+            ServerConnection connection = connect(port);
+
+            JSONArray items = new JSONArray();
+            for (int i = 0; i < 6; i++) {
+                JSONObject item = new JSONObject();
+                item.put(Protocol.PROMPT, "Batch prompt " + i);
+                item.put(Protocol.QUALITY, i % 3 + 1);
+                items.put(item);
+            }
+            items.getJSONObject(4).put("strategy", "NO_SUCH_STRATEGY");
+
+            List<JSONObject> streamed = Collections.synchronizedList(new ArrayList<>());
+            JSONObject summary = connection.createBatch(items, streamed::add).get();
+            assertEquals(5, summary.getInt("succeeded"));
+            assertEquals(1, summary.getInt("failed"));
+            assertEquals(6, streamed.size());
+
+            for (JSONObject result : streamed) {
+                if (result.getInt("index") == 4) {
+                    assertTrue(result.getString("error").contains("NO_SUCH_STRATEGY"));
+                }
+                else {
+                    assertFalse(result.getJSONObject("story").getString("story").isEmpty());
+                }
+            }
+
+            connection.disconnect();
+        }
+    }
+}